@@ -0,0 +1,1098 @@
+package org.mcxa.zephyrlogger;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.PowerManager;
+import android.os.Process;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import org.mcxa.zephyrlogger.chart.SampleBuffer;
+import org.mcxa.zephyrlogger.history.HistoryStore;
+import org.mcxa.zephyrlogger.history.HistoryWriter;
+import org.mcxa.zephyrlogger.hxm.FrameRing;
+import org.mcxa.zephyrlogger.hxm.HrvMetrics;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+import org.mcxa.zephyrlogger.hxm.SensorClock;
+import org.mcxa.zephyrlogger.metrics.LatencyHistogram;
+import org.mcxa.zephyrlogger.metrics.MetricsRegistry;
+import org.mcxa.zephyrlogger.pipeline.BackpressurePolicy;
+import org.mcxa.zephyrlogger.pipeline.ReadingPipeline;
+import org.mcxa.zephyrlogger.pipeline.ReadingSink;
+import org.mcxa.zephyrlogger.session.BinarySessionEncoder;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
+import org.mcxa.zephyrlogger.session.SegmentCompactor;
+import org.mcxa.zephyrlogger.session.SessionEncoder;
+import org.mcxa.zephyrlogger.session.SessionJournal;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Foreground service that owns the capture: an HxmService for each strap we are connected
+ * to, the R-R and HRV analysis and the session files.
+ *
+ * Several straps can be captured at once, each gets a small device id (0 up to MAX_DEVICES)
+ * when it is first connected and keeps it for as long as it stays around.  The id tags every
+ * frame in the pipeline, picks the snapshot the display reads, and each strap is recorded
+ * to a session file of its own.
+ *
+ * Frames come in on a capture thread of our own, not on the UI thread, and are published to
+ * a ReadingPipeline.  The analysis, the history and the session files are sinks of the
+ * pipeline, each on a thread and queue of its own, and anything else that wants the frames (an uploader, say)
+ * registers a sink with getPipeline().  The service keeps going when the activity goes away,
+ * so rotating the screen or backing out of the app doesn't end a recording.
+ *
+ * The activity binds to the service only to show what is going on: it registers a Handler
+ * with setClient(), gets the state, device name and toast messages passed through from the
+ * HxmServices (arg2 is the device id), and a CAPTURE_SERVICE_MSG_UPDATE whenever there is a
+ * new reading, after which it reads the latest values with getSnapshot().  Updates are
+ * coalesced, a UI that is busy sees one update for any number of frames.
+ */
+public class CaptureService extends Service {
+    private static final String TAG = "CaptureService";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /*
+     * Most straps connected at once, a Bluetooth radio can't keep up more links than this
+     */
+    public static final int MAX_DEVICES = 7;
+
+    /*
+     * The latest values for the display, copied out with getSnapshot()
+     */
+    public static class Snapshot {
+        public boolean valid;
+        public int heartRate;
+        public int batteryIndicator;
+        // in 1/256 m/s
+        public int speed;
+        // mean of the last few R-R intervals, 0 until there are any
+        public int rriMs;
+        // number of intervals the HRV values are computed from
+        public int hrvBeats;
+        public double rmssd;
+        public double sdnn;
+        public double pnn50;
+        // what the reader made of the stream since the strap connected, see HxmFrameReader
+        public long acceptedFrames;
+        public long crcFailures;
+        public long truncatedFrames;
+        public long resyncs;
+        // wall clock time of the newest beat, from the strap's clock (see SensorClock), -1 until known
+        public long beatTimeMs;
+        // how much faster the strap's clock runs than the phone's
+        public double clockDriftPpm;
+        // System.nanoTime() when the snapshot was last updated
+        public long updatedNanos;
+
+        void copyTo(Snapshot s) {
+            s.valid = valid;
+            s.heartRate = heartRate;
+            s.batteryIndicator = batteryIndicator;
+            s.speed = speed;
+            s.rriMs = rriMs;
+            s.hrvBeats = hrvBeats;
+            s.rmssd = rmssd;
+            s.sdnn = sdnn;
+            s.pnn50 = pnn50;
+            s.acceptedFrames = acceptedFrames;
+            s.crcFailures = crcFailures;
+            s.truncatedFrames = truncatedFrames;
+            s.resyncs = resyncs;
+            s.beatTimeMs = beatTimeMs;
+            s.clockDriftPpm = clockDriftPpm;
+            s.updatedNanos = updatedNanos;
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public CaptureService getService() {
+            return CaptureService.this;
+        }
+    }
+
+    /*
+     * A strap we have connected to at some point
+     */
+    private static class Device {
+        final HxmService hxm;
+        final String address;
+        // guarded by the service
+        String name;
+        // for the live chart, a new strap in the slot starts with empty ones
+        final SampleBuffer heartRateSamples = new SampleBuffer(CHART_SAMPLES);
+        final SampleBuffer rrSamples = new SampleBuffer(CHART_SAMPLES);
+
+        Device(HxmService hxm, String address, String name) {
+            this.hxm = hxm;
+            this.address = address;
+            this.name = name;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+
+    private HandlerThread mCaptureThread;
+    private Handler mCaptureHandler;
+    private PowerManager.WakeLock mWakeLock;
+
+    // indexed by device id, guarded by this
+    private final Device[] mDevices = new Device[MAX_DEVICES];
+
+    /*
+     * Connecting to a list of straps: up to MAX_PROBES of them are tried at once, each given
+     * CONNECT_TIMEOUT_MS to answer, and as soon as one is done with the next one on the list
+     * gets its turn.  Asking a radio to page many straps at once only slows all of them down.
+     */
+    private static final int MAX_PROBES = 3;
+    private static final long CONNECT_TIMEOUT_MS = 6000;
+    // the straps still to try, best first, guarded by this
+    private final ArrayDeque<BluetoothDevice> mCandidates = new ArrayDeque<>();
+    private DeviceRegistry mRegistry;
+
+    // The activity's handler, null while nobody is bound
+    private volatile Handler mClient;
+
+    private volatile boolean mForeground;
+
+    /*
+     * Queue sizes of our own sinks.  The analysis may skip frames when it falls behind, the
+     * session files have room for half a minute of frames from every strap before they hold
+     * up the capture thread.
+     */
+    private static final int ANALYSIS_QUEUE_CAPACITY = 16 * MAX_DEVICES;
+    private static final int SESSION_QUEUE_CAPACITY = 32 * MAX_DEVICES;
+    private static final int HISTORY_QUEUE_CAPACITY = 32 * MAX_DEVICES;
+
+    /*
+     * Samples of heart rate and R-R kept for the live chart of each strap, over four hours
+     * of frames or beats at 192 kB a buffer
+     */
+    private static final int CHART_SAMPLES = 16384;
+
+    /*
+     * Session files are cut into segments of at most an hour or 8 MB, a few hours of a day
+     * long recording can then be copied off or opened on their own.  Closed segments are
+     * gzipped in the background.
+     */
+    private static final long SEGMENT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final long SEGMENT_MAX_MS = 60 * 60 * 1000;
+    private final SegmentCompactor mCompactor = new SegmentCompactor();
+
+    /*
+     * The open segment of each strap is journaled in internal storage, which doesn't go away
+     * like a card can (see SessionJournal).  Journals start with room for an hour of frames,
+     * about 280 kB.  Whatever journals are left when the service starts are from a process
+     * that died while recording, their segments are written again from them.
+     */
+    private static final int JOURNAL_CAPACITY = 4096;
+    private File mJournalFolder;
+
+    // Only touched on the capture thread
+    private final HxmFrame mFrame = new HxmFrame();
+    private final FrameDrainer mDrainer = new FrameDrainer();
+
+    // how many times each device id has connected, a session marks a gap when it goes up
+    private final AtomicIntegerArray mConnections = new AtomicIntegerArray(MAX_DEVICES);
+
+    private ReadingPipeline mPipeline;
+    private final AnalysisSink mAnalysis = new AnalysisSink();
+
+    /*
+     * Everything every strap ever sent, recording or not, rolled up for charts of the long
+     * run (see HistoryStore), in internal storage
+     */
+    private HistoryStore mHistory;
+    private final HistorySink mHistorySink = new HistorySink();
+
+    // indexed by device id, each guarded by itself
+    private final Snapshot[] mSnapshots = new Snapshot[MAX_DEVICES];
+
+    // guarded by this
+    private ReadingPipeline.Subscription mSessionSubscription;
+    private String mRecordingTag;
+
+    /*
+     * Timing of every stage a frame goes through, in the order it goes through them: the
+     * interval between messages from each strap, the wait for the capture thread, publishing
+     * to the pipeline, then queue wait and processing for each sink, the display and the
+     * flushes of the session files.  See getMetrics().
+     */
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private LatencyHistogram mDispatchLatency;
+    private LatencyHistogram mPublishLatency;
+    private LatencyHistogram mFlushLatency;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "onCreate");
+
+        for (int i = 0; i < MAX_DEVICES; i++)
+            mSnapshots[i] = new Snapshot();
+
+        mCaptureThread = new HandlerThread("CaptureThread", Process.THREAD_PRIORITY_MORE_FAVORABLE);
+        mCaptureThread.start();
+        mCaptureHandler = new CaptureHandler(this, mCaptureThread.getLooper());
+
+        mPipeline = new ReadingPipeline(new ReadingPipeline.ErrorListener() {
+            @Override
+            public void onSinkError(ReadingPipeline.Subscription subscription, Exception e) {
+                // we are on the sink's thread, deal with it on the capture thread
+                Log.e(TAG, "sink " + subscription + " failed", e);
+                mCaptureHandler.obtainMessage(R.string.SESSION_WRITER_MSG_ERROR, subscription).sendToTarget();
+            }
+        });
+        mDispatchLatency = mMetrics.histogram("dispatch");
+        mPublishLatency = mMetrics.histogram("publish");
+        registerMetrics(mPipeline.register("analysis", mAnalysis, ANALYSIS_QUEUE_CAPACITY, BackpressurePolicy.DROP_OLDEST));
+        mHistory = new HistoryStore(new File(getFilesDir(), "history"));
+        registerMetrics(mPipeline.register("history", mHistorySink, HISTORY_QUEUE_CAPACITY, BackpressurePolicy.DROP_OLDEST));
+        mMetrics.histogram("display");
+        mFlushLatency = mMetrics.histogram("session.flush");
+        mMetrics.register("segments.compacting", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return mCompactor.getQueued();
+            }
+        });
+
+        mJournalFolder = new File(getFilesDir(), "journal");
+        recoverSessions();
+
+        mRegistry = new DeviceRegistry(this);
+
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // there is no connection to pick up again if we get killed, don't come back on our own
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.d(TAG, "onDestroy");
+        stopDevices();
+        setRecording(false, false);
+        mPipeline.close();
+        mCaptureThread.quit();
+        if (mWakeLock.isHeld())
+            mWakeLock.release();
+        super.onDestroy();
+    }
+
+    /*
+     * Register the activity's handler, or null to unregister it
+     */
+    public void setClient(Handler client) {
+        mClient = client;
+    }
+
+    /*
+     * Start a connection to a strap, on top of any others we are connected to
+     * @return the device id of the strap, or -1 if MAX_DEVICES straps are connected already
+     */
+    public int connect(BluetoothDevice device) {
+        int id = attach(device.getAddress(), device.getName());
+        if (id < 0)
+            return id;
+        HxmService hxm = getService(id);
+        if (hxm.getState() == R.string.HXM_SERVICE_RESTING) {
+            goForeground();
+            hxm.connect(device, CONNECT_TIMEOUT_MS);
+        }
+        return id;
+    }
+
+    /*
+     * Connect to every strap on a list that answers, in the order of the list (see
+     * DeviceRegistry.getCandidates()), instead of any list we were still going through
+     * @return false if there weren't enough device ids for all of them, the rest are tried
+     *         as straps go away
+     */
+    public boolean connect(List<BluetoothDevice> candidates) {
+        synchronized (this) {
+            mCandidates.clear();
+            mCandidates.addAll(candidates);
+        }
+        return probeNext();
+    }
+
+    /*
+     * Start on the next candidates, as far as MAX_PROBES and the free device ids allow
+     * @return false if we ran out of device ids
+     */
+    private boolean probeNext() {
+        while (true) {
+            BluetoothDevice device;
+            synchronized (this) {
+                if (mCandidates.isEmpty() || countProbing() >= MAX_PROBES)
+                    return true;
+                device = mCandidates.poll();
+            }
+            if (connect(device) < 0) {
+                synchronized (this) {
+                    mCandidates.addFirst(device);
+                }
+                return false;
+            }
+        }
+    }
+
+    /*
+     * Straps we are waiting on for a first answer, reconnecting ones don't count
+     */
+    private synchronized int countProbing() {
+        int n = 0;
+        for (Device d : mDevices) {
+            if (d != null && d.hxm.getState() == R.string.HXM_SERVICE_CONNECTING && !d.hxm.isReconnecting())
+                n++;
+        }
+        return n;
+    }
+
+    /*
+     * The straps we know of, for picking the ones to connect to
+     */
+    public DeviceRegistry getDeviceRegistry() {
+        return mRegistry;
+    }
+
+    /*
+     * Capture a stream of HxM messages as if it was another strap, a simulated one or a
+     * recorded session being replayed (see the sim package of the hxm library), for trying
+     * out the whole capture on a phone without hardware.
+     * @return the device id given to the stream, or -1 if MAX_DEVICES straps are connected already
+     */
+    public int connect(InputStream in, String name) {
+        int id = attach("stream:" + name, name);
+        if (id < 0)
+            return id;
+        goForeground();
+        getService(id).connect(in, name);
+        return id;
+    }
+
+    /*
+     * Find the device id of a strap, or give it one
+     * @return the device id, or -1 if all MAX_DEVICES are taken
+     */
+    private synchronized int attach(String address, String name) {
+        int id = findDevice(address);
+        if (id >= 0)
+            return id;
+
+        HxmService hxm = null;
+        for (int i = 0; i < MAX_DEVICES && id < 0; i++) {
+            if (mDevices[i] == null)
+                id = i;
+            else if (mSessionSubscription == null
+                    && mDevices[i].hxm.getState() == R.string.HXM_SERVICE_RESTING) {
+                // take over the slot of a strap that has gone, unless it may still
+                // have a session file open
+                id = i;
+                hxm = mDevices[i].hxm;
+            }
+        }
+        if (id < 0) {
+            Log.w(TAG, "attach(): already connected to " + MAX_DEVICES + " devices");
+            return -1;
+        }
+        if (hxm == null) {
+            hxm = new HxmService(this, mCaptureHandler, id);
+            final HxmService service = hxm;
+            mMetrics.register("device" + id + ".interval", hxm.getReadIntervals());
+            mMetrics.register("device" + id + ".reconnect", hxm.getReconnectTimes());
+            mMetrics.register("device" + id + ".dropped", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return service.getDroppedFrames();
+                }
+            });
+            mMetrics.register("device" + id + ".queued", new MetricsRegistry.Gauge() {
+                @Override
+                public long get() {
+                    return service.getQueuedFrames();
+                }
+            });
+        }
+        mDevices[id] = new Device(hxm, address, name);
+        return id;
+    }
+
+    private synchronized HxmService getService(int device) {
+        return mDevices[device].hxm;
+    }
+
+    /*
+     * The service starts itself and goes to the foreground so the capture keeps going on its
+     * own until shutdown()
+     */
+    private void goForeground() {
+        startService(new Intent(this, CaptureService.class));
+        mForeground = true;
+        startForeground(NOTIFICATION_ID, buildNotification());
+    }
+
+    /*
+     * Drop the connections, stop recording and let the service go away once unbound
+     */
+    public void shutdown() {
+        stopDevices();
+        setRecording(false, false);
+        mForeground = false;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    private void stopDevices() {
+        synchronized (this) {
+            mCandidates.clear();
+        }
+        for (HxmService hxm : getServices())
+            hxm.stop();
+    }
+
+    private synchronized HxmService[] getServices() {
+        int n = 0;
+        HxmService[] services = new HxmService[MAX_DEVICES];
+        for (Device d : mDevices) {
+            if (d != null)
+                services[n++] = d.hxm;
+        }
+        HxmService[] result = new HxmService[n];
+        System.arraycopy(services, 0, result, 0, n);
+        return result;
+    }
+
+    private int findDevice(String address) {
+        for (int i = 0; i < MAX_DEVICES; i++) {
+            if (mDevices[i] != null && mDevices[i].address.equals(address))
+                return i;
+        }
+        return -1;
+    }
+
+    /*
+     * The state of the capture as a whole: connected if any strap is, connecting if any
+     * strap is on its way, resting otherwise
+     */
+    public int getState() {
+        int state = R.string.HXM_SERVICE_RESTING;
+        for (HxmService hxm : getServices()) {
+            int s = hxm.getState();
+            if (s == R.string.HXM_SERVICE_CONNECTED)
+                return s;
+            if (s == R.string.HXM_SERVICE_CONNECTING)
+                state = s;
+        }
+        return state;
+    }
+
+    /*
+     * @return the state of one strap, resting for ids that were never connected
+     */
+    public synchronized int getState(int device) {
+        Device d = mDevices[device];
+        return d == null ? R.string.HXM_SERVICE_RESTING : d.hxm.getState();
+    }
+
+    /*
+     * @return the name of a strap, null for ids that were never connected
+     */
+    public synchronized String getDeviceName(int device) {
+        Device d = mDevices[device];
+        return d == null ? null : d.name;
+    }
+
+    /*
+     * @return the Bluetooth address of a strap, "stream:<name>" for streams, null for ids
+     *         that were never connected
+     */
+    public synchronized String getDeviceAddress(int device) {
+        Device d = mDevices[device];
+        return d == null ? null : d.address;
+    }
+
+    /*
+     * The pipeline every frame is published to, register a ReadingSink with it to get them too
+     */
+    public ReadingPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    /*
+     * Copy out the latest values of a strap
+     * @return false if there are none, because we haven't heard from it since it connected
+     */
+    public boolean getSnapshot(int device, Snapshot out) {
+        Snapshot snapshot = mSnapshots[device];
+        synchronized (snapshot) {
+            snapshot.copyTo(out);
+        }
+        // the counters are read straight from the reader, they move even when no frame gets through
+        HxmFrameReader reader = getFrameReader(device);
+        if (reader != null) {
+            out.acceptedFrames = reader.getAcceptedFrames();
+            out.crcFailures = reader.getCrcFailures();
+            out.truncatedFrames = reader.getTruncatedFrames();
+            out.resyncs = reader.getResyncs();
+        }
+        return out.valid;
+    }
+
+    /*
+     * The heart rates of a strap, one per frame, for the live chart
+     * @return null if nothing ever connected with this device id
+     */
+    public synchronized SampleBuffer getHeartRateSamples(int device) {
+        Device d = mDevices[device];
+        return d == null ? null : d.heartRateSamples;
+    }
+
+    /*
+     * The R-R intervals of a strap in ms, at the time of the beat that ended them
+     * @return null if nothing ever connected with this device id
+     */
+    public synchronized SampleBuffer getRrSamples(int device) {
+        Device d = mDevices[device];
+        return d == null ? null : d.rrSamples;
+    }
+
+    private synchronized HxmFrameReader getFrameReader(int device) {
+        Device d = mDevices[device];
+        return d == null ? null : d.hxm.getFrameReader();
+    }
+
+    public synchronized boolean isRecording() {
+        return mSessionSubscription != null;
+    }
+
+    /*
+     * Start or stop recording.  A new session goes to the ZephyrLogs folder in external
+     * storage, one file for each strap, the folder and files are created by the writer thread.
+     * @param binary  record raw frames instead of CSV text
+     */
+    public void setRecording(boolean recording, boolean binary) {
+        synchronized (this) {
+            if (recording && mSessionSubscription == null) {
+                mRecordingTag = "" + System.currentTimeMillis();
+                File zephyrlogFolder = new File(Environment.getExternalStorageDirectory(), "ZephyrLogs");
+                mSessionSubscription = mPipeline.register("session",
+                        new SessionSink(zephyrlogFolder, mRecordingTag, binary),
+                        SESSION_QUEUE_CAPACITY, BackpressurePolicy.BLOCK);
+                registerMetrics(mSessionSubscription);
+                // keep the CPU up while recording, the straps keep talking with the screen off
+                mWakeLock.acquire();
+            } else if (!recording && mSessionSubscription != null) {
+                // whatever is still queued gets written and flushed by the sink's thread
+                mSessionSubscription.close();
+                mSessionSubscription = null;
+                mWakeLock.release();
+            }
+        }
+        updateNotification();
+    }
+
+    /*
+     * Rebuild the segments a recording that was cut short left open, in the background.  The
+     * journals are listed here, before any recording of our own can start.
+     */
+    private void recoverSessions() {
+        final File[] journals = SessionJournal.find(mJournalFolder);
+        if (journals.length == 0)
+            return;
+        Log.i(TAG, "recovering " + journals.length + " session segments");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SessionWriter.recover(journals, mCompactor);
+            }
+        }, "SessionRecovery");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /*
+     * The long term history of every strap, for charts
+     */
+    public HistoryStore getHistory() {
+        return mHistory;
+    }
+
+    /*
+     * Latency histograms and gauges of the whole capture, for the debug screen
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /*
+     * Write the metrics as they are now to a file in the ZephyrLogs folder
+     * @return the file written
+     */
+    public File dumpMetrics() throws IOException {
+        File folder = new File(Environment.getExternalStorageDirectory(), "ZephyrLogs");
+        if (!folder.exists() && !folder.mkdirs())
+            throw new IOException("Could not create directory " + folder);
+        File file = new File(folder, "Zephyr_" + System.currentTimeMillis() + "_metrics.txt");
+        FileWriter writer = new FileWriter(file);
+        try {
+            mMetrics.dump(writer);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /*
+     * Add the timings and queue gauges of a subscription to the metrics, under its name
+     */
+    private void registerMetrics(final ReadingPipeline.Subscription subscription) {
+        String name = subscription.getName();
+        mMetrics.register(name + ".queue", subscription.getQueueLatency());
+        mMetrics.register(name + ".sink", subscription.getSinkLatency());
+        mMetrics.register(name + ".queued", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getQueued();
+            }
+        });
+        mMetrics.register(name + ".maxQueued", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getMaxQueued();
+            }
+        });
+        mMetrics.register(name + ".dropped", new MetricsRegistry.Gauge() {
+            @Override
+            public long get() {
+                return subscription.getDropped();
+            }
+        });
+    }
+
+    private Notification buildNotification() {
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        int text;
+        if (isRecording())
+            text = R.string.recording_on;
+        else if (getState() == R.string.HXM_SERVICE_CONNECTED)
+            text = R.string.notification_connected;
+        else
+            text = R.string.notConnected;
+
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(text))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    private void updateNotification() {
+        if (!mForeground)
+            return;
+        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    /*
+     * Runs on the capture thread when a device has frames waiting, takes all of them
+     */
+    private void drainFrames(int device) {
+        mDrainer.device = device;
+        getService(device).drainFrames(mDrainer);
+    }
+
+    /*
+     * Runs on the capture thread for every frame, the frame is at offset in buffer
+     */
+    private void handleFrame(int device, byte[] buffer, int offset, long readNanos) {
+        long start = System.nanoTime();
+        long waitedNanos = HxmService.elapsedRealtimeNanos() - readNanos;
+        mDispatchLatency.record(waitedNanos);
+
+        /*
+         * The frame is timed from when it was read, however long it then waited for us: on
+         * the monotonic clock as it was stamped, and on the wall clock for the files
+         */
+        long timeMs = System.currentTimeMillis() - waitedNanos / 1000000;
+        // the pipeline copies the frame, the ring slot is free again once we return
+        mPipeline.publish(device, timeMs, readNanos / 1000000, mFrame.wrap(buffer, offset));
+        mPublishLatency.recordSince(start);
+    }
+
+    /*
+     * Takes the frames of one device out of its HxmService's ring, only used on the capture
+     * thread
+     */
+    private class FrameDrainer implements FrameRing.Consumer {
+        int device;
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, long timestamp) {
+            handleFrame(device, buffer, offset, timestamp);
+        }
+    }
+
+    /*
+     * Works out R-R intervals and HRV from the frames of every strap and keeps the snapshots
+     * up to date for the display, on the sink's own thread.  The analysis of a device id
+     * carries on when the same strap connects to it again and starts over for another one.
+     */
+    private class AnalysisSink implements ReadingSink {
+        private static final int RRI_DISPLAY_BEATS = 14;
+        private static final long HRV_WINDOW_MS = 60000;
+
+        // per device id, created with the first frame of the device
+        private final RrBuffer[] mRrBuffers = new RrBuffer[MAX_DEVICES];
+        private final RrIntervalExtractor[] mRrExtractors = new RrIntervalExtractor[MAX_DEVICES];
+        private final HrvMetrics[] mHrvMetrics = new HrvMetrics[MAX_DEVICES];
+        private final SensorClock[] mClocks = new SensorClock[MAX_DEVICES];
+        // the strap the analysis of each device id is of
+        private final String[] mAddresses = new String[MAX_DEVICES];
+
+        // set from the capture thread when a strap connects
+        private final AtomicIntegerArray mResetPending = new AtomicIntegerArray(MAX_DEVICES);
+
+        void reset(int device) {
+            mResetPending.set(device, 1);
+        }
+
+        @Override
+        public void onFrame(int device, long timeMs, long elapsedMs, HxmFrame frame) {
+            if (mRrBuffers[device] == null) {
+                mRrBuffers[device] = new RrBuffer(256);
+                mRrExtractors[device] = new RrIntervalExtractor(mRrBuffers[device]);
+                mHrvMetrics[device] = new HrvMetrics(HRV_WINDOW_MS, 256);
+                mClocks[device] = new SensorClock();
+                mAddresses[device] = getDeviceAddress(device);
+            }
+            RrBuffer rrBuffer = mRrBuffers[device];
+            RrIntervalExtractor rrExtractor = mRrExtractors[device];
+            HrvMetrics hrvMetrics = mHrvMetrics[device];
+            SensorClock clock = mClocks[device];
+
+            if (mResetPending.getAndSet(device, 0) != 0) {
+                String address = getDeviceAddress(device);
+                if (address != null && !address.equals(mAddresses[device])) {
+                    /*
+                     * Another strap took over the device id, none of the last one's beats are
+                     * its.  Its first frame fills the RRI mean with its own 14 intervals.
+                     */
+                    mAddresses[device] = address;
+                    rrExtractor.reset();
+                    hrvMetrics.clear();
+                    clock.reset();
+                }
+            }
+
+            /*
+             * The beat numbers and the strap's clock carry on across a lost connection, only
+             * a strap that was switched off and on has a clock that started over.  The clock
+             * is fitted against the monotonic read times, a wall clock set by NTP would bend it.
+             */
+            long restarts = rrExtractor.getRestarts();
+            int newIntervals = rrExtractor.extract(frame, elapsedMs);
+            if (rrExtractor.getRestarts() != restarts)
+                clock.reset();
+            hrvMetrics.addFrom(rrBuffer);
+            clock.update(frame, elapsedMs);
+            // beat times go out on the wall clock, with one offset taken now
+            long wallOffsetMs = System.currentTimeMillis() - HxmService.elapsedRealtimeNanos() / 1000000;
+
+            SampleBuffer heartRates = getHeartRateSamples(device);
+            SampleBuffer rrs = getRrSamples(device);
+            if (heartRates != null) {
+                heartRates.add(timeMs, frame.heartRate());
+                // oldest first, each at its beat where the strap's clock tells us
+                for (int n = newIntervals; n >= 1; n--) {
+                    long beatMs = clock.beatTime(frame, n);
+                    rrs.add(beatMs >= 0 ? beatMs + wallOffsetMs : timeMs, rrBuffer.latest(n - 1));
+                }
+            }
+
+            Snapshot snapshot = mSnapshots[device];
+            synchronized (snapshot) {
+                snapshot.valid = true;
+                snapshot.heartRate = frame.heartRate();
+                snapshot.batteryIndicator = frame.batteryIndicator();
+                snapshot.speed = frame.speed();
+                snapshot.rriMs = rrBuffer.mean(RRI_DISPLAY_BEATS);
+                snapshot.hrvBeats = hrvMetrics.count();
+                snapshot.rmssd = hrvMetrics.rmssd();
+                snapshot.sdnn = hrvMetrics.sdnn();
+                snapshot.pnn50 = hrvMetrics.pnn50();
+                long beatMs = clock.beatTime(frame, 1);
+                snapshot.beatTimeMs = beatMs >= 0 ? beatMs + wallOffsetMs : -1;
+                snapshot.clockDriftPpm = clock.getDriftPpm();
+                snapshot.updatedNanos = System.nanoTime();
+            }
+
+            // one pending update is enough, the UI reads the latest snapshots when it gets to it
+            Handler client = mClient;
+            if (client != null && !client.hasMessages(R.string.CAPTURE_SERVICE_MSG_UPDATE))
+                client.sendEmptyMessage(R.string.CAPTURE_SERVICE_MSG_UPDATE);
+        }
+
+        @Override
+        public void onIdle() {
+        }
+
+        @Override
+        public void onClose() {
+        }
+    }
+
+    /*
+     * Adds the frames of every strap to its history, on the sink's own thread.  The history
+     * goes by device name, the writer of a device id carries on when the same strap connects
+     * to it again and is only opened again for another one.
+     */
+    private class HistorySink implements ReadingSink {
+        private final HistoryWriter[] mWriters = new HistoryWriter[MAX_DEVICES];
+        // the history each writer is adding to
+        private final String[] mNames = new String[MAX_DEVICES];
+        private boolean mPruned;
+
+        // set from the capture thread when a strap connects
+        private final AtomicIntegerArray mResetPending = new AtomicIntegerArray(MAX_DEVICES);
+
+        void reset(int device) {
+            mResetPending.set(device, 1);
+        }
+
+        @Override
+        public void onFrame(int device, long timeMs, long elapsedMs, HxmFrame frame) throws IOException {
+            if (!mPruned) {
+                mPruned = true;
+                int deleted = mHistory.prune(System.currentTimeMillis());
+                if (deleted > 0)
+                    Log.i(TAG, "deleted " + deleted + " old history files");
+            }
+            if (mResetPending.getAndSet(device, 0) != 0
+                    && !fileName(getDeviceName(device), device).equals(mNames[device]))
+                closeWriter(device);
+            HistoryWriter writer = mWriters[device];
+            if (writer == null) {
+                mNames[device] = fileName(getDeviceName(device), device);
+                writer = mHistory.openWriter(mNames[device]);
+                mWriters[device] = writer;
+            }
+            writer.add(timeMs, frame);
+        }
+
+        @Override
+        public void onIdle() throws IOException {
+            for (HistoryWriter writer : mWriters) {
+                if (writer != null)
+                    writer.flushIfDue();
+            }
+        }
+
+        @Override
+        public void onClose() {
+            for (int i = 0; i < MAX_DEVICES; i++)
+                closeWriter(i);
+        }
+
+        private void closeWriter(int device) {
+            HistoryWriter writer = mWriters[device];
+            if (writer == null)
+                return;
+            mWriters[device] = null;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.e(TAG, "closing the history of device " + device + " failed", e);
+            }
+        }
+    }
+
+    /*
+     * Records each strap of a session to its own files, Zephyr_<tag>_<device name>_data_<segment>,
+     * started with the first frame from the strap, each journaled in mJournalFolder.  A strap
+     * that connected again since its last frame gets a gap marked in its files, the session
+     * carries on in the same files.
+     */
+    private class SessionSink implements ReadingSink {
+        private final File mFolder;
+        private final String mTag;
+        private final boolean mBinary;
+        private final SessionWriter[] mWriters = new SessionWriter[MAX_DEVICES];
+        // mConnections of each device as of its last frame
+        private final int[] mConnection = new int[MAX_DEVICES];
+
+        SessionSink(File folder, String tag, boolean binary) {
+            mFolder = folder;
+            mTag = tag;
+            mBinary = binary;
+        }
+
+        @Override
+        public void onFrame(int device, long timeMs, long elapsedMs, HxmFrame frame) throws IOException {
+            SessionWriter writer = mWriters[device];
+            if (writer == null) {
+                SessionEncoder encoder = mBinary ? new BinarySessionEncoder() : new CsvSessionEncoder();
+                String name = fileName(getDeviceName(device), device);
+                writer = new SessionWriter(mFolder, "Zephyr_" + mTag + "_" + name, encoder)
+                        .setSegmentLimits(SEGMENT_MAX_BYTES, SEGMENT_MAX_MS)
+                        .setCompactor(mCompactor)
+                        .setJournal(mJournalFolder, JOURNAL_CAPACITY)
+                        .setFlushLatency(mFlushLatency);
+                mWriters[device] = writer;
+                mConnection[device] = mConnections.get(device);
+            }
+            int connection = mConnections.get(device);
+            if (connection != mConnection[device]) {
+                mConnection[device] = connection;
+                writer.markGap();
+            }
+            writer.onFrame(device, timeMs, elapsedMs, frame);
+        }
+
+        @Override
+        public void onIdle() throws IOException {
+            for (SessionWriter writer : mWriters) {
+                if (writer != null)
+                    writer.onIdle();
+            }
+        }
+
+        @Override
+        public void onClose() {
+            for (SessionWriter writer : mWriters) {
+                if (writer != null)
+                    writer.onClose();
+            }
+        }
+    }
+
+    /*
+     * The device name, made safe to use in a file name
+     */
+    private static String fileName(String deviceName, int device) {
+        if (deviceName == null || deviceName.length() == 0)
+            return "device" + device;
+        StringBuilder sb = new StringBuilder(deviceName.length());
+        for (int i = 0; i < deviceName.length(); i++) {
+            char c = deviceName.charAt(i);
+            boolean safe = (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-';
+            sb.append(safe ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private void forwardToClient(Message msg) {
+        Handler client = mClient;
+        if (client != null) {
+            Message m = client.obtainMessage(msg.what, msg.arg1, msg.arg2, msg.obj);
+            m.setData(msg.getData());
+            client.sendMessage(m);
+        }
+    }
+
+    // The Handler that gets information back from the hrm services, on the capture thread
+    private static class CaptureHandler extends Handler {
+        private final WeakReference<CaptureService> serviceReference;
+
+        CaptureHandler(CaptureService service, Looper looper) {
+            super(looper);
+            serviceReference = new WeakReference<>(service);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            CaptureService service = serviceReference.get();
+            if (service == null)
+                return;
+
+            switch (msg.what) {
+                case R.string.HXM_SERVICE_MSG_READ:
+                    service.drainFrames(msg.arg2);
+                    break;
+
+                case R.string.HXM_SERVICE_MSG_STATE:
+                    if (msg.arg1 == R.string.HXM_SERVICE_CONNECTED) {
+                        service.mConnections.incrementAndGet(msg.arg2);
+                        service.mAnalysis.reset(msg.arg2);
+                        service.mHistorySink.reset(msg.arg2);
+                        service.mRegistry.connected(service.getDeviceAddress(msg.arg2));
+                    } else if (msg.arg1 == R.string.HXM_SERVICE_RESTING) {
+                        Snapshot snapshot = service.mSnapshots[msg.arg2];
+                        synchronized (snapshot) {
+                            snapshot.valid = false;
+                        }
+                    }
+                    // a strap answering or giving up makes room for the next candidate
+                    if (msg.arg1 != R.string.HXM_SERVICE_CONNECTING)
+                        service.probeNext();
+                    service.updateNotification();
+                    service.forwardToClient(msg);
+                    break;
+
+                case R.string.HXM_SERVICE_MSG_DEVICE_NAME:
+                    synchronized (service) {
+                        Device d = service.mDevices[msg.arg2];
+                        if (d != null)
+                            d.name = msg.getData().getString(null);
+                    }
+                    service.forwardToClient(msg);
+                    break;
+
+                case R.string.SESSION_WRITER_MSG_ERROR:
+                    // only the session files failing is worth bothering the user with
+                    synchronized (service) {
+                        if (msg.obj != service.mSessionSubscription)
+                            break;
+                    }
+                    service.setRecording(false, false);
+                    service.forwardToClient(msg);
+                    break;
+
+                default:
+                    service.forwardToClient(msg);
+                    break;
+            }
+        }
+    }
+}
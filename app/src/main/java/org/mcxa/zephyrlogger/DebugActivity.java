@@ -0,0 +1,133 @@
+package org.mcxa.zephyrlogger;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.design.widget.Snackbar;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.io.File;
+import java.io.IOException;
+
+import butterknife.BindView;
+import butterknife.ButterKnife;
+
+/*
+ * Shows the timing of every stage of the capture, from the Bluetooth read to the session
+ * files, as kept by the CaptureService (see CaptureService.getMetrics()), refreshed every
+ * second.  The menu saves it to a file or starts the counts over.
+ */
+public class DebugActivity extends AppCompatActivity {
+    private static final String TAG = "DebugActivity";
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    @BindView(R.id.toolbar) Toolbar toolbar;
+    @BindView(R.id.metrics) TextView mMetrics;
+
+    private CaptureService mCaptureService = null;
+    private final Handler mHandler = new Handler();
+    private final StringBuilder mText = new StringBuilder();
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mCaptureService = ((CaptureService.LocalBinder) binder).getService();
+            mRefresh.run();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mCaptureService = null;
+        }
+    };
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mCaptureService == null)
+                return;
+            mText.setLength(0);
+            try {
+                mCaptureService.getMetrics().dump(mText);
+            } catch (IOException e) {
+                // a StringBuilder doesn't throw
+            }
+            mMetrics.setText(mText);
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_debug);
+        ButterKnife.bind(this);
+
+        setSupportActionBar(toolbar);
+        //show the back button on the toolbar
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+            getSupportActionBar().setDisplayShowHomeEnabled(true);
+        }
+    }
+
+    @Override
+    public void onStart() {
+        super.onStart();
+        bindService(new Intent(this, CaptureService.class), mConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        mHandler.removeCallbacks(mRefresh);
+        mCaptureService = null;
+        unbindService(mConnection);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.debug_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+
+            case R.id.save:
+                if (mCaptureService != null) {
+                    try {
+                        File file = mCaptureService.dumpMetrics();
+                        Snackbar.make(mMetrics, getString(R.string.metrics_saved, file.getName()), Snackbar.LENGTH_LONG).show();
+                    } catch (IOException e) {
+                        Log.e(TAG, "saving the metrics failed", e);
+                        Snackbar.make(mMetrics, R.string.metrics_failed, Snackbar.LENGTH_LONG).show();
+                    }
+                }
+                return true;
+
+            case R.id.reset:
+                if (mCaptureService != null) {
+                    mCaptureService.getMetrics().reset();
+                    mHandler.removeCallbacks(mRefresh);
+                    mRefresh.run();
+                }
+                return true;
+        }
+
+        return super.onOptionsItemSelected(item);
+    }
+}
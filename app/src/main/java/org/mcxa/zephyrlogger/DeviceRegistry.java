@@ -0,0 +1,172 @@
+package org.mcxa.zephyrlogger;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The straps we know about, kept in shared preferences so connecting doesn't have to go
+ * through the paired devices every time.  For each strap (by Bluetooth address) we keep its
+ * name, when it was last among the paired straps and when we last connected to it.
+ *
+ * getCandidates() lists the straps to connect to, best first: the preferred strap, the one
+ * the user last chose to show, then the others by the last successful connection, the
+ * ones that never answered last.  The list is refreshed from the paired devices with
+ * update(), which only needs to happen when a strap has been paired or unpaired.
+ *
+ * Thread safe, the preferences are written in the background.
+ */
+public class DeviceRegistry {
+    private static final String PREFS_NAME = "devices";
+    private static final String KEY_PREFIX = "strap:";
+    private static final String KEY_PREFERRED = "preferred";
+
+    private static class Entry {
+        final String address;
+        String name;
+        long lastSeen;
+        long lastSuccess;
+
+        Entry(String address, String name) {
+            this.address = address;
+            this.name = name;
+        }
+    }
+
+    // the straps most recently connected to first, never connected to in the order last paired
+    private static final Comparator<Entry> BY_LAST_SUCCESS = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.lastSuccess != b.lastSuccess)
+                return a.lastSuccess > b.lastSuccess ? -1 : 1;
+            if (a.lastSeen != b.lastSeen)
+                return a.lastSeen > b.lastSeen ? -1 : 1;
+            return a.address.compareTo(b.address);
+        }
+    };
+
+    private final SharedPreferences mPrefs;
+    // by address, guarded by this
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private String mPreferred;
+
+    public DeviceRegistry(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            if (!pref.getKey().startsWith(KEY_PREFIX) || !(pref.getValue() instanceof String))
+                continue;
+            Entry entry = decode(pref.getKey().substring(KEY_PREFIX.length()), (String) pref.getValue());
+            if (entry != null)
+                mEntries.put(entry.address, entry);
+        }
+        mPreferred = mPrefs.getString(KEY_PREFERRED, null);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /*
+     * Bring the registry in line with the straps that are paired now, the ones that aren't
+     * any more are forgotten
+     */
+    public synchronized void update(Collection<BluetoothDevice> paired) {
+        long now = System.currentTimeMillis();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        Map<String, Entry> gone = new HashMap<>(mEntries);
+        for (BluetoothDevice device : paired) {
+            String address = device.getAddress();
+            Entry entry = gone.remove(address);
+            if (entry == null) {
+                entry = new Entry(address, device.getName());
+                mEntries.put(address, entry);
+            } else if (device.getName() != null) {
+                entry.name = device.getName();
+            }
+            entry.lastSeen = now;
+            editor.putString(KEY_PREFIX + address, encode(entry));
+        }
+        for (String address : gone.keySet()) {
+            mEntries.remove(address);
+            editor.remove(KEY_PREFIX + address);
+        }
+        editor.apply();
+    }
+
+    /*
+     * A connection to a strap was made, it goes ahead of the ones we haven't connected to as
+     * recently.  Addresses we don't know, streams for example, are ignored.
+     */
+    public synchronized void connected(String address) {
+        Entry entry = mEntries.get(address);
+        if (entry == null)
+            return;
+        entry.lastSuccess = System.currentTimeMillis();
+        mPrefs.edit().putString(KEY_PREFIX + address, encode(entry)).apply();
+    }
+
+    /*
+     * The strap the user would rather see, tried before all the others
+     */
+    public synchronized void setPreferred(String address) {
+        if (address == null ? mPreferred == null : address.equals(mPreferred))
+            return;
+        mPreferred = address;
+        mPrefs.edit().putString(KEY_PREFERRED, address).apply();
+    }
+
+    /*
+     * The straps to connect to, best first
+     */
+    public List<BluetoothDevice> getCandidates(BluetoothAdapter adapter) {
+        List<Entry> entries;
+        String preferred;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.values());
+            preferred = mPreferred;
+        }
+        Collections.sort(entries, BY_LAST_SUCCESS);
+
+        List<BluetoothDevice> devices = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (!BluetoothAdapter.checkBluetoothAddress(entry.address))
+                continue;
+            BluetoothDevice device = adapter.getRemoteDevice(entry.address);
+            if (entry.address.equals(preferred))
+                devices.add(0, device);
+            else
+                devices.add(device);
+        }
+        return devices;
+    }
+
+    /*
+     * name \n last seen \n last success, the name may be empty
+     */
+    private static String encode(Entry entry) {
+        return (entry.name != null ? entry.name : "") + '\n' + entry.lastSeen + '\n' + entry.lastSuccess;
+    }
+
+    private static Entry decode(String address, String value) {
+        String[] fields = value.split("\n", -1);
+        if (fields.length < 3)
+            return null;
+        try {
+            Entry entry = new Entry(address, fields[0].length() > 0 ? fields[0] : null);
+            entry.lastSeen = Long.parseLong(fields[1]);
+            entry.lastSuccess = Long.parseLong(fields[2]);
+            return entry;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -32,21 +32,31 @@
 
 package org.mcxa.zephyrlogger;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.mcxa.zephyrlogger.hxm.FrameRing;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.hxm.ReconnectBackoff;
+import org.mcxa.zephyrlogger.metrics.LatencyHistogram;
+
 /**
  * This class does all the work for setting up and managing the 
  * Bluetooth connection to the HxM device.  It also does the parsing of the
@@ -54,6 +64,16 @@ import android.util.Log;
  * 
  * It has a thread for connecting to the HxM device, and a
  * thread for performing data transmissions when connected.
+ *
+ * Each HxmService talks to one strap.  To capture several straps at once create one
+ * per strap with its own device id, they can all send to the same Handler and every
+ * message carries the id in arg2.
+ *
+ * When the connection to a strap is lost the service tries to connect to it again, with
+ * waits that grow from a fraction of a second to half a minute (see ReconnectBackoff), and
+ * stays in the connecting state meanwhile.  It only gives up and rests after
+ * RECONNECT_TIMEOUT_MS, or when told to stop.  A stream passed to connect() is not
+ * reconnected, once it ends it is over.
  */
 public class HxmService {
     // Debugging
@@ -62,9 +82,42 @@ public class HxmService {
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
+    private final int mDeviceId;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
     private int mState;
+    // reader of the current, or else the last, connection
+    private volatile HxmFrameReader mReader;
+    // time from one message coming off the reader to the next
+    private final LatencyHistogram mReadIntervals = new LatencyHistogram();
+
+    /*
+     * Reconnecting after the connection was lost.  The first attempt comes within 250 ms,
+     * most straps are back after the first few.
+     */
+    private static final long RECONNECT_INITIAL_MS = 250;
+    private static final long RECONNECT_MAX_MS = 30000;
+    private static final long RECONNECT_TIMEOUT_MS = 10 * 60 * 1000;
+    private final ReconnectBackoff mBackoff = new ReconnectBackoff(RECONNECT_INITIAL_MS, RECONNECT_MAX_MS);
+    // the strap to reconnect to, null for a stream
+    private BluetoothDevice mDevice;
+    // elapsedRealtime() the connection was lost at, 0 unless we are reconnecting
+    private long mLostAt;
+    // time from losing the connection to having it back
+    private final LatencyHistogram mReconnectTimes = new LatencyHistogram();
+
+    /*
+     * Frames on their way from the ConnectedThread to the consumer, stamped with the time
+     * they were read.  The reader only sends HXM_SERVICE_MSG_READ when the consumer isn't
+     * already due to drain the ring, so a consumer that is behind gets one message for the
+     * lot instead of one per frame.  At one frame a second this is minutes of slack.
+     */
+    private static final int FRAME_RING_SIZE = 256;
+    private final FrameRing mRing = new FrameRing(FRAME_RING_SIZE, HxmFrameReader.FRAME_LENGTH);
+    // set when HXM_SERVICE_MSG_READ has been sent and the consumer hasn't drained yet
+    private final AtomicBoolean mDrainPending = new AtomicBoolean();
+    // the last ConnectedThread started, the next one waits for it so the ring has one producer
+    private Thread mProducer;
 
 
     /*
@@ -76,9 +129,22 @@ public class HxmService {
      * instantiating the service and note the state.
      */
     public HxmService(Context context, Handler handler) {
+        this(context, handler, 0);
+    }
+
+    /*
+     * Constructor for one of several HxmServices sharing a Handler, one per strap
+     * @param deviceId  passed back as arg2 of every message so they can be told apart
+     */
+    public HxmService(Context context, Handler handler, int deviceId) {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mState = R.string.HXM_SERVICE_RESTING;
         mHandler = handler;
+        mDeviceId = deviceId;
+    }
+
+    public int getDeviceId() {
+        return mDeviceId;
     }
 
     /*
@@ -90,7 +156,7 @@ public class HxmService {
         mState = state;
 
         // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_STATE, state, -1).sendToTarget();
+        mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_STATE, state, mDeviceId).sendToTarget();
     }
 
     /*
@@ -101,6 +167,66 @@ public class HxmService {
         return mState;
     } 
 
+    /*
+     * The reader of the current connection, or of the last one once it is over, for its
+     * counts of good and bad messages.  Null before the first connection.
+     */
+    public HxmFrameReader getFrameReader() {
+        return mReader;
+    }
+
+    /*
+     * The time between one message and the next as the reader hands them out.  The strap
+     * sends one a second, so anything well away from 1 s is the Bluetooth link bunching
+     * messages up or holding them back.
+     */
+    public LatencyHistogram getReadIntervals() {
+        return mReadIntervals;
+    }
+
+    /*
+     * How long it took to get the connection back each time it was lost
+     */
+    public LatencyHistogram getReconnectTimes() {
+        return mReconnectTimes;
+    }
+
+    /*
+     * Frames dropped because the ring was full, the consumer was that far behind
+     */
+    public long getDroppedFrames() {
+        return mRing.getOverruns();
+    }
+
+    /*
+     * Frames read and not drained yet
+     */
+    public int getQueuedFrames() {
+        return mRing.size();
+    }
+
+    /*
+     * The phone's monotonic clock, SystemClock.elapsedRealtimeNanos() where there is one (API
+     * 17 on) and elapsedRealtime() in ns before that
+     */
+    public static long elapsedRealtimeNanos() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return SystemClock.elapsedRealtimeNanos();
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    /*
+     * Pass every frame read so far to the consumer, with the time it was read on the
+     * elapsedRealtimeNanos() clock.  Called for HXM_SERVICE_MSG_READ, always from the same
+     * thread.
+     * @return the number of frames
+     */
+    public int drainFrames(FrameRing.Consumer consumer) {
+        // cleared first, a frame published from here on sends a new message
+        mDrainPending.set(false);
+        return mRing.drain(consumer);
+    }
+
     /*
      * Start the HxM service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume() 
@@ -108,6 +234,7 @@ public class HxmService {
      */
     public synchronized void start() {
         Log.d(TAG, "start()");
+        mLostAt = 0;
 
         // Cancel any thread attempting to make a connection
         if (mConnectThread != null) {
@@ -143,11 +270,46 @@ public class HxmService {
         }
 
         // Make the connection
-        mConnectThread = new ConnectThread(device);
+        mDevice = device;
+        mLostAt = 0;
+        mConnectThread = new ConnectThread(device, 0);
         mConnectThread.start();
         setState(R.string.HXM_SERVICE_CONNECTING);
     }
 
+    /*
+     * Connect to a strap, giving up if it hasn't answered within a time.  A strap that is
+     * out of range can otherwise take the Bluetooth stack ten seconds or more to give up on.
+     * @param timeoutMs  how long to wait for the connection
+     */
+    public synchronized void connect(BluetoothDevice device, long timeoutMs) {
+        connect(device);
+        final ConnectThread attempt = mConnectThread;
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                timedOut(attempt);
+            }
+        }, timeoutMs);
+    }
+
+    private synchronized void timedOut(ConnectThread attempt) {
+        // connected, or given up on for some other reason, already
+        if (mConnectThread != attempt)
+            return;
+        Log.i(TAG, "timedOut(): no answer from " + mDevice);
+        mConnectThread.cancel();
+        mConnectThread = null;
+        connectionFailed();
+    }
+
+    /*
+     * Are we trying to get a lost connection back?
+     */
+    public synchronized boolean isReconnecting() {
+        return mLostAt != 0;
+    }
+
     /*
      * Start the ConnectedThread to begin managing a Bluetooth connection
      * @param socket  The BluetoothSocket on which the connection was made
@@ -166,24 +328,77 @@ public class HxmService {
                 mConnectedThread.cancel(); mConnectedThread = null;
         }
 
+        // Get the BluetoothSocket input stream
+        InputStream in;
+        try {
+            in = socket.getInputStream();
+        } catch (IOException e) {
+            Log.e(TAG, "connected(): socket input stream not available", e);
+            try {
+                socket.close();
+            } catch (IOException e2) {
+                Log.e(TAG, "connected(): unable to close() socket", e2);
+            }
+            connectionLost();
+            return;
+        }
+
+        if (mLostAt != 0) {
+            mReconnectTimes.record((SystemClock.elapsedRealtime() - mLostAt) * 1000000L);
+            Log.i(TAG, "connected(): back after " + mBackoff.getAttempts() + " attempts");
+            mLostAt = 0;
+        }
+        mBackoff.reset();
+
+        final BluetoothSocket connection = socket;
+        startReading(in, new Closeable() {
+            @Override
+            public void close() throws IOException {
+                connection.close();
+            }
+        }, device.getName());
+        Log.d(TAG, "connected() finished");
+    }
+
+    /*
+     * Read HxM messages from any stream as if it was a strap that just connected, a
+     * simulated strap or a session being replayed for example.  The stream is read on the
+     * same thread and through the same code as a Bluetooth connection.
+     * @param in    the stream of HxM messages, closed by stop()
+     * @param name  passed on as the device name
+     */
+    public synchronized void connect(final InputStream in, String name) {
+        Log.d(TAG, "connect(): reading from stream " + name);
+        mDevice = null;
+        mLostAt = 0;
+
+        if (mConnectThread != null) {
+                mConnectThread.cancel(); mConnectThread = null;
+        }
+        if (mConnectedThread != null) {
+                mConnectedThread.cancel(); mConnectedThread = null;
+        }
+
+        startReading(in, in, name);
+    }
+
+    private synchronized void startReading(InputStream in, Closeable connection, String name) {
         // Start the thread to manage the connection and read the data from the device
-        mConnectedThread = new ConnectedThread(socket);
+        mConnectedThread = new ConnectedThread(in, connection, mProducer);
         mConnectedThread.start();
+        mProducer = mConnectedThread;
 
-        
         /*
          *  Send the name of the connected HxM back to the UI Activity
          *  The only parameter to the message is the device name
          */
-        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_DEVICE_NAME);
+        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_DEVICE_NAME, 0, mDeviceId);
         Bundle bundle = new Bundle();
-        bundle.putString(null, device.getName()); 
+        bundle.putString(null, name);
         msg.setData(bundle);
         mHandler.sendMessage(msg);
 
         setState(R.string.HXM_SERVICE_CONNECTED);
-        Log.d(TAG, "connected() finished");
-
     }
 
     /*
@@ -191,6 +406,7 @@ public class HxmService {
      */
     public synchronized void stop() {
         Log.d(TAG, "stop() starting ---- ok, it's a little funny:)");
+        mLostAt = 0;
         
         if (mConnectThread != null) {
                 mConnectThread.cancel(); 
@@ -213,6 +429,7 @@ public class HxmService {
     @SuppressWarnings("unused")
         private synchronized void reset() {
         Log.d(TAG, "reset() starting");
+        mLostAt = 0;
         
         if (mConnectThread != null) {
                 mConnectThread.cancel(); 
@@ -241,7 +458,7 @@ public class HxmService {
          *  Tell the main activity about the problem connecting.  Only one parameter 
          *  in the message so we won't use a identifier to name it.
          */
-        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST);
+        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST, 0, mDeviceId);
         Bundle bundle = new Bundle();
         bundle.putString(null, "connectionFailed(): Unable to connect device");
         msg.setData(bundle);
@@ -252,16 +469,35 @@ public class HxmService {
     }
 
     /*
-     * Indicate that the connection was lost and notify the UI Activity.
+     * Indicate that the connection was lost and notify the UI Activity.  A strap we try to
+     * connect to again, the UI only hears about it if that takes too long.
      */
     private void connectionLost() {
+        synchronized (this) {
+            if (mDevice != null) {
+                if (mConnectedThread != null) {
+                    mConnectedThread.cancel();
+                    mConnectedThread = null;
+                }
+                if (mLostAt == 0) {
+                    Log.i(TAG, "connectionLost(): reconnecting to " + mDevice);
+                    mLostAt = SystemClock.elapsedRealtime();
+                    mBackoff.reset();
+                }
+                if (SystemClock.elapsedRealtime() - mLostAt < RECONNECT_TIMEOUT_MS) {
+                    retry();
+                    return;
+                }
+                mLostAt = 0;
+            }
+        }
         setState(R.string.HXM_SERVICE_RESTING);
 
         /*
          *  Tell the main activity about the problem with the connection.  Only
          *  one parameter in the message so we won't use an identifier to name it.
          */
-        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST);
+        Message msg = mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_TOAST, 0, mDeviceId);
         Bundle bundle = new Bundle();
         bundle.putString(null, "connectionLost(): Device connection was lost");
         msg.setData(bundle);
@@ -269,17 +505,49 @@ public class HxmService {
     }
 
 
+    /*
+     * Make the next attempt to get a lost connection back, after the backoff
+     */
+    private synchronized void retry() {
+        mConnectThread = new ConnectThread(mDevice, mBackoff.nextDelay());
+        mConnectThread.start();
+        setState(R.string.HXM_SERVICE_CONNECTING);
+    }
+
+    /*
+     * A reconnection attempt failed, try again unless we've been at it too long or were
+     * stopped meanwhile
+     * @return false if we have given up
+     */
+    private synchronized boolean retryAfter(ConnectThread attempt) {
+        if (mLostAt == 0 || mConnectThread != attempt)
+            return false;
+        if (SystemClock.elapsedRealtime() - mLostAt >= RECONNECT_TIMEOUT_MS) {
+            Log.w(TAG, "retryAfter(): giving up on " + mDevice + " after " + mBackoff.getAttempts() + " attempts");
+            mLostAt = 0;
+            return false;
+        }
+        retry();
+        return true;
+    }
+
     /*
      * This thread runs while attempting to create the outgoing connection
      * with a HxM. It runs straight through; the connection either
-     * succeeds or fails.
+     * succeeds or fails.  When reconnecting it waits a while first.
      */
     private class ConnectThread extends Thread {
         private final BluetoothSocket mmSocket;
         private final BluetoothDevice mmDevice;
+        private final long mmDelayMs;
+        private volatile boolean mmCancelled;
 
-        public ConnectThread(BluetoothDevice device) {
+        /*
+         * @param delayMs  how long to wait before connecting
+         */
+        public ConnectThread(BluetoothDevice device, long delayMs) {
             mmDevice = device;
+            mmDelayMs = delayMs;
             BluetoothSocket tmp = null;
 
             // Get a BluetoothSocket for a connection with the
@@ -360,7 +628,17 @@ public class HxmService {
         @Override
                 public void run() {
             Log.i(TAG, "BEGIN mConnectThread");
-            setName("ConnectThread");
+            setName("ConnectThread-" + mDeviceId);
+
+            if (mmDelayMs > 0) {
+                try {
+                    Thread.sleep(mmDelayMs);
+                } catch (InterruptedException e) {
+                    // cancelled
+                }
+                if (mmCancelled)
+                    return;
+            }
 
             // Always cancel discovery because it will slow down a connection
             mAdapter.cancelDiscovery();
@@ -370,14 +648,16 @@ public class HxmService {
                 // This is a blocking call and will only return on a successful connection or an exception
                 mmSocket.connect();
             } catch (IOException e) {
-                connectionFailed();
                 // Close the socket
                 try {
                     mmSocket.close();
                 } catch (IOException e2) {
                     Log.e(TAG, "ConnectThread.run(): unable to close() socket during connection failure", e2);
                 }
-                
+                if (mmCancelled || retryAfter(this))
+                    return;
+                connectionFailed();
+
                 // Start the service over to restart listening mode
                 HxmService.this.start();
                 return;
@@ -393,6 +673,8 @@ public class HxmService {
         }
 
         public void cancel() {
+            mmCancelled = true;
+            interrupt();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -406,107 +688,97 @@ public class HxmService {
      * It handles all incoming data
      */
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Closeable mmConnection;
         private final InputStream mmInStream;
+        // the thread that read the last connection, cancelled already
+        private final Thread mmPrevious;
+        // set by cancel(), the read failing after that is not a lost connection
+        private volatile boolean mmCancelled;
 
-        public ConnectedThread(BluetoothSocket socket) {
-                Log.d(TAG, "ConnectedThread(): starting");
-
-            mmSocket = socket;
-            InputStream tmpIn = null;
-
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "ConnectedThread(): temp sockets not created", e);
-            }
-
-            mmInStream = tmpIn;
-            
-            Log.d(TAG, "ConnectedThread(): finished");
-            
+        /*
+         * @param in          the stream to read HxM messages from
+         * @param connection  closed to cancel, which makes a blocked read fail
+         * @param previous    the ConnectedThread before this one, if any
+         */
+        public ConnectedThread(InputStream in, Closeable connection, Thread previous) {
+            mmInStream = in;
+            mmConnection = connection;
+            mmPrevious = previous;
         }
 
         /*
-         * The code below is a basic implementation of a reader specific to the HxM device.  It is 
-         * intended to illustrate the packet structure and field extraction.  Consider if your 
-         * implementation should include more robust error detection logic to prevent things like 
-         * buffer sizes from causing read overruns, or recomputing the CRC and comparing it to the 
-         * contents of the message to detect transmission erros.
+         * The framing itself is done by HxmFrameReader, which pulls whatever the socket has
+         * in bulk instead of issuing a blocking read() for every single byte, takes care of
+         * finding the start of each message again after line noise, and drops messages whose
+         * CRC doesn't match, so only intact messages ever leave this thread.
          */
-        private final int STX = 0x02;
-        private final int MSGID = 0x26;
-        private final int DLC = 55;
-        private final int ETX = 0x03;
-        
         @Override
                 public void run() {
                 Log.d(TAG, "ConnectedThread.run(): starting");
-            byte[] buffer = new byte[1024];
-            int b = 0;
-            int bufferIndex = 0;
-            int payloadBytesRemaining;
-            
+            setName("ConnectedThread-" + mDeviceId);
+            // The ring takes one producer at a time, let the last one finish its frame
+            if (mmPrevious != null) {
+                try {
+                    mmPrevious.join();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "ConnectedThread.run(): interrupted waiting for the previous reader");
+                    return;
+                }
+            }
+            // Frames are read here when the ring is full, and dropped unless it has room by then
+            byte[] scratch = new byte[HxmFrameReader.FRAME_LENGTH];
+            byte[] frames = mRing.buffer();
+            HxmFrameReader reader = new HxmFrameReader(mmInStream);
+            mReader = reader;
+            long lastReadNanos = 0;
+
             // Keep listening to the InputStream while connected
             while (true) {
+                int slot = mRing.claim();
                 try {
-                        
-                        bufferIndex = 0;
-                        // Read bytes from the stream until we encounter the the start of message character
-                        while (( b = mmInStream.read()) != STX )
-                                ;
-                        
-                        buffer[bufferIndex++] = (byte) b;
-                        
-                        // The next byte must be the message ID, see the basic message format in the document 
-                        if ((b = mmInStream.read()) != MSGID )
-                                continue;
-                        
-                        buffer[bufferIndex++] = (byte) b;
-                        
-                        // The next byte must be the expected data length code, we don't handle variable length messages, see the doc 
-                        if ((b = mmInStream.read()) != DLC )
-                                continue;
+                    if (mmCancelled)
+                        throw new EOFException("cancelled");
+                    int frameLength = slot >= 0 ? reader.readFrame(frames, slot) : reader.readFrame(scratch, 0);
+                    if (frameLength < 0)
+                        throw new EOFException("end of stream from HxM");
+                    // stamped here on the reader, the time the frame then waits for the capture thread doesn't count
+                    long now = elapsedRealtimeNanos();
+                    if (lastReadNanos != 0)
+                        mReadIntervals.record(now - lastReadNanos);
+                    lastReadNanos = now;
+
+                    if (slot >= 0) {
+                        mRing.publish(now);
+                    } else if (!mRing.offer(scratch, 0, now)) {
+                        // The consumer is a whole ring behind, skip this frame
+                        Log.w(TAG, "ConnectedThread.run(): frame ring full, dropping frame");
+                        continue;
+                    }
+
+                    // Wake the consumer, unless it is already due to drain the ring
+                    if (!mDrainPending.getAndSet(true))
+                        mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_READ, 0, mDeviceId).sendToTarget();
 
-                        buffer[bufferIndex++] = (byte) b;
-                        
-                        payloadBytesRemaining = b;
-                        
-                        while ( (payloadBytesRemaining--) > 0 ) {
-                                buffer[bufferIndex++] = (byte) (b = mmInStream.read());                                                         
-                        }
-                        
-                        // The next byte should be a CRC
-                        buffer[bufferIndex++] = (byte) (b = mmInStream.read());
-                                
-                        // The next byte must be the end of text indicator, or there was sadness, see the basic message format in the document 
-                        if ((b = mmInStream.read()) != ETX )
-                                continue;
-                                
-                        buffer[bufferIndex++] = (byte) b;
-                                
-                    Log.d(TAG, "mConnectedThread: read "+Integer.toString(bufferIndex)+" bytes");
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(R.string.HXM_SERVICE_MSG_READ, bufferIndex, 0, buffer)
-                            .sendToTarget();
-                    
-                        
                 } catch (IOException e) {
+                    if (mmCancelled)
+                        break;
                     Log.e(TAG, "disconnected", e);
                     connectionLost();
                     break;
                 }
             }            
             
-            Log.d(TAG, "ConnectedThread.run(): finished");
+            Log.d(TAG, "ConnectedThread.run(): finished, " + reader.getAcceptedFrames() + " messages, "
+                    + reader.getCrcFailures() + " CRC failures, " + reader.getTruncatedFrames() + " truncated, "
+                    + reader.getResyncs() + " resyncs");
 
         }
 
         public void cancel() {
+            mmCancelled = true;
             try {
-                mmSocket.close();
+                if (mmConnection != null)
+                    mmConnection.close();
             } catch (IOException e) {
                 Log.e(TAG, "ConnectedThread.cancel(): close() of connect socket failed", e);
             }
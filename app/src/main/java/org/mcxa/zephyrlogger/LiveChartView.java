@@ -0,0 +1,226 @@
+package org.mcxa.zephyrlogger;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.view.ViewCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+import org.mcxa.zephyrlogger.chart.MinMaxDecimator;
+import org.mcxa.zephyrlogger.chart.SampleBuffer;
+
+/*
+ * LiveChartView
+ *
+ * Scrolling chart of the heart rate (top) and the R-R intervals (bottom) of one strap, drawn
+ * straight from the SampleBuffers the capture service fills.  Each half goes through a
+ * MinMaxDecimator with one column per pixel, so a frame costs the same with a minute or four
+ * hours in the buffers, and nothing is allocated while drawing except the axis labels when
+ * the range changes.
+ *
+ * The chart redraws with the display, not with the frames: while it is on screen it asks for
+ * the next animation frame each time it has drawn, or waits when the window is so long that
+ * the picture wouldn't move a quarter of a pixel in one.  Tapping it moves on to the next
+ * window length.
+ */
+public class LiveChartView extends View {
+    private static final long[] WINDOWS_MS = {2 * 60 * 1000, 10 * 60 * 1000, 60 * 60 * 1000, 4 * 60 * 60 * 1000};
+
+    // columns further apart than this aren't joined up, the strap was gone in between
+    private static final long MAX_GAP_MS = 5000;
+
+    // the axes go in steps of 10 bpm and 100 ms
+    private static final int HEART_RATE_STEP = 10;
+    private static final int RR_STEP = 100;
+
+    private static final long FRAME_MS = 16;
+    private static final int SUBPIXEL_STEPS = 4;
+
+    private final Paint mHeartRatePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mRrPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mGridPaint = new Paint();
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private MinMaxDecimator mHeartRate;
+    private MinMaxDecimator mRr;
+    private int mWindow;
+
+    // plot area and the lines to draw, sized in onSizeChanged()
+    private int mColumns;
+    private float[] mLines = new float[0];
+
+    // the axis ranges of the last frame and their labels
+    private final int[] mHeartRateRange = new int[2];
+    private final int[] mRrRange = new int[2];
+    private final String[] mHeartRateLabels = new String[2];
+    private final String[] mRrLabels = new String[2];
+    private String mWindowLabel;
+
+    public LiveChartView(Context context) {
+        this(context, null);
+    }
+
+    public LiveChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        float scaledDensity = getResources().getDisplayMetrics().scaledDensity;
+
+        mHeartRatePaint.setColor(ContextCompat.getColor(context, R.color.accent));
+        mHeartRatePaint.setStrokeWidth(2 * density);
+        mHeartRatePaint.setStrokeCap(Paint.Cap.ROUND);
+        mRrPaint.setColor(ContextCompat.getColor(context, R.color.primary_dark));
+        mRrPaint.setStrokeWidth(2 * density);
+        mRrPaint.setStrokeCap(Paint.Cap.ROUND);
+        mGridPaint.setColor(ContextCompat.getColor(context, R.color.divider));
+        mGridPaint.setStrokeWidth(density);
+        mTextPaint.setColor(ContextCompat.getColor(context, R.color.secondary_text));
+        mTextPaint.setTextSize(12 * scaledDensity);
+
+        mWindowLabel = windowLabel(WINDOWS_MS[mWindow]);
+    }
+
+    /*
+     * Chart these buffers, null for none.  The same buffers again carry on where the chart is.
+     */
+    public void setSources(SampleBuffer heartRates, SampleBuffer rrs) {
+        if (mHeartRate == null ? heartRates == null : mHeartRate.getBuffer() == heartRates) {
+            if (mRr == null ? rrs == null : mRr.getBuffer() == rrs)
+                return;
+        }
+        mHeartRate = heartRates == null ? null : new MinMaxDecimator(heartRates);
+        mRr = rrs == null ? null : new MinMaxDecimator(rrs);
+        setResolution();
+        invalidate();
+    }
+
+    /*
+     * Move on to the next window length, after the longest back to the shortest
+     */
+    public void nextWindow() {
+        mWindow = (mWindow + 1) % WINDOWS_MS.length;
+        mWindowLabel = windowLabel(WINDOWS_MS[mWindow]);
+        setResolution();
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        mColumns = Math.max(0, w - getPaddingLeft() - getPaddingRight());
+        // a line down each column and one joining it to the column before, 4 floats a line
+        mLines = new float[8 * mColumns];
+        setResolution();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        long now = System.currentTimeMillis();
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int bottom = getHeight() - getPaddingBottom();
+        int middle = (top + bottom) / 2;
+
+        canvas.drawLine(left, middle, left + mColumns, middle, mGridPaint);
+        canvas.drawText(mWindowLabel, left + mColumns - mTextPaint.measureText(mWindowLabel),
+                top + mTextPaint.getTextSize(), mTextPaint);
+        if (mHeartRate == null || mRr == null || mColumns == 0)
+            return;
+
+        drawHalf(canvas, mHeartRate, now, top, middle, HEART_RATE_STEP, mHeartRateRange, mHeartRateLabels, mHeartRatePaint);
+        drawHalf(canvas, mRr, now, middle, bottom, RR_STEP, mRrRange, mRrLabels, mRrPaint);
+
+        if (isShown()) {
+            long delay = mHeartRate.getColumnMs() / SUBPIXEL_STEPS - FRAME_MS;
+            if (delay > 0)
+                postInvalidateDelayed(delay);
+            else
+                ViewCompat.postInvalidateOnAnimation(this);
+        }
+    }
+
+    /*
+     * Draw the columns of one decimator between two heights, scaled to the range of what is in
+     * the window
+     */
+    private void drawHalf(Canvas canvas, MinMaxDecimator decimator, long now, int top, int bottom,
+                          int step, int[] range, String[] labels, Paint paint) {
+        decimator.advanceTo(now);
+        decimator.update();
+
+        int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE;
+        int columns = decimator.getColumns();
+        for (int i = 0; i < columns; i++) {
+            if (decimator.hasData(i)) {
+                low = Math.min(low, decimator.getMin(i));
+                high = Math.max(high, decimator.getMax(i));
+            }
+        }
+        if (low > high)
+            return;
+        low = Math.max(0, low / step * step);
+        high = (high / step + 1) * step;
+        if (range[0] != low || range[1] != high || labels[0] == null) {
+            range[0] = low;
+            range[1] = high;
+            labels[0] = String.valueOf(low);
+            labels[1] = String.valueOf(high);
+        }
+
+        float textSize = mTextPaint.getTextSize();
+        float plotTop = top + textSize / 2;
+        float plotBottom = bottom - textSize / 2;
+        float scale = (plotBottom - plotTop) / (high - low);
+        int left = getPaddingLeft();
+        canvas.drawText(labels[1], left, top + textSize, mTextPaint);
+        canvas.drawText(labels[0], left, bottom - textSize / 4, mTextPaint);
+
+        // the newest column holds now, slide everything left by how far into it we are
+        long columnMs = decimator.getColumnMs();
+        float x0 = left + 0.5f - (float) (now - decimator.getFirstColumnTime() - (columns - 1) * columnMs) / columnMs;
+        long maxGap = MAX_GAP_MS / columnMs + 1;
+
+        int n = 0;
+        int last = -1;
+        float lastMin = 0, lastMax = 0;
+        for (int i = 0; i < columns; i++) {
+            if (!decimator.hasData(i))
+                continue;
+            float x = x0 + i;
+            float min = plotBottom - (decimator.getMin(i) - low) * scale;
+            float max = plotBottom - (decimator.getMax(i) - low) * scale;
+            mLines[n++] = x;
+            mLines[n++] = min;
+            mLines[n++] = x;
+            mLines[n++] = max;
+            if (last >= 0 && i - last <= maxGap) {
+                // from the end of the last column nearest this one, y grows downwards
+                float middle = (min + max) / 2;
+                float from = Math.max(lastMax, Math.min(lastMin, middle));
+                mLines[n++] = x0 + last;
+                mLines[n++] = from;
+                mLines[n++] = x;
+                mLines[n++] = Math.max(max, Math.min(min, from));
+            }
+            last = i;
+            lastMin = min;
+            lastMax = max;
+        }
+        canvas.drawLines(mLines, 0, n, paint);
+    }
+
+    private void setResolution() {
+        long windowMs = WINDOWS_MS[mWindow];
+        if (mHeartRate != null)
+            mHeartRate.setResolution(mColumns, windowMs);
+        if (mRr != null)
+            mRr.setResolution(mColumns, windowMs);
+    }
+
+    private static String windowLabel(long windowMs) {
+        long minutes = windowMs / 60000;
+        return minutes < 60 ? minutes + " min" : minutes / 60 + " h";
+    }
+}
@@ -51,12 +51,16 @@ package org.mcxa.zephyrlogger;
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.design.widget.Snackbar;
@@ -72,14 +76,11 @@ import android.view.View;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-import org.mcxa.zephyrlogger.hxm.HrmReading;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
@@ -89,9 +90,6 @@ import butterknife.OnClick;
 
 public class MainActivity extends AppCompatActivity {
 
-	private boolean isRecording=false;
-	private String recordingTag;
-
 	/*
 	 *  TAG for Debugging Log
 	 */
@@ -100,11 +98,14 @@ public class MainActivity extends AppCompatActivity {
 	/**
 	 * CSV format for the file
 	 */
-	public static final String CSV_FORMAT = "timeInMs,stx,msgId,dlc,firmwareId,firmwareVersion,hardWareId," +
-			"hardwareVersion,batteryIndicator,heartRate,heartBeatNumber,hbTime1,hbTime2," +
-			"hbTime3,hbTime4,hbTime5,hbTime6,hbTime7,hbTime8,hbTime9,hbTime10,hbTime11," +
-			"hbTime12,hbTime13,hbTime14,hbTime15,reserved1,reserved2,reserved3,distance," +
-			"speed,strides,reserved4,reserved5,crc,etx,reserved5,crc,etx";
+	public static final String CSV_FORMAT = CsvSessionEncoder.HEADER;
+
+	/*
+	 * Preference remembering whether sessions are recorded as raw binary frames
+	 * instead of CSV text
+	 */
+	private static final String PREFS_NAME = "ZephyrLogger";
+	private static final String PREF_BINARY_FORMAT = "binary_format";
 
 	/*
 	 *  Layout Views
@@ -119,12 +120,14 @@ public class MainActivity extends AppCompatActivity {
 	@BindView(R.id.rri) TextView mRri;
 	@BindView(R.id.battery) TextView mBattery;
 	@BindView(R.id.speed) TextView mSpeed;
+	@BindView(R.id.hrv) TextView mHrv;
+	@BindView(R.id.devices) TextView mDevices;
+	@BindView(R.id.chart) LiveChartView mChart;
 
 	/*
-	 * Name of the connected device, and it's address
+	 * Id of the strap shown in the big display, the others are listed below it
 	 */
-	private String mHxMName = null;
-	private String mHxMAddress = null;
+	private int mShownDevice = -1;
 
 	/*
 	 * Local Bluetooth adapter
@@ -132,9 +135,35 @@ public class MainActivity extends AppCompatActivity {
 	private BluetoothAdapter mBluetoothAdapter = null;
 
 	/*
-	 * Member object for the chat services
+	 * The capture service, which owns the connection and the recording, null while we are
+	 * not bound to it.  If we are asked to connect before the binding is done we connect
+	 * as soon as it is.
 	 */
-	private HxmService mHxmService = null;
+	private CaptureService mCaptureService = null;
+	private boolean mConnectWhenBound = false;
+
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			Log.d(TAG, "onServiceConnected");
+			mCaptureService = ((CaptureService.LocalBinder) binder).getService();
+			mCaptureService.setClient(mHandler);
+			// the service may have been capturing while we were away, catch up with it
+			showState(mCaptureService.getState());
+			refreshReading();
+			// connect if we were asked to, unless the service already is
+			if (mConnectWhenBound) {
+				mConnectWhenBound = false;
+				if (mCaptureService.getState() == R.string.HXM_SERVICE_RESTING)
+					connectToHxm(false);
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mCaptureService = null;
+		}
+	};
 
 	/* Checks if external storage is available for read and write */
 	public boolean isExternalStorageWritable() {
@@ -142,99 +171,58 @@ public class MainActivity extends AppCompatActivity {
 		return Environment.MEDIA_MOUNTED.equals(state);
 	}
 
-	public File exportData(HrmReading m) {
-		// Create a ZephyrLogs folder in external storage if it doesn't already exist
-		File zephyrlogFolder = new File(Environment.getExternalStorageDirectory(), "ZephyrLogs");
-
-        boolean dirExists = zephyrlogFolder.exists();
-        //if the directory doesn't exist, create it
-        if (!dirExists) {
-            dirExists = zephyrlogFolder.mkdirs();
-            //if it still doesn't exist, give up and exit
-            if (!dirExists) {
-                Log.e(TAG, "Could not create ZephyrLogs directory.");
-                System.exit(1);
-            }
-        }
-
-        //create a data file and write into it
-		File file = new File(zephyrlogFolder, "Zephyr_"+recordingTag+"_data.txt");
-		try {
-			FileWriter writer;
-			if(!file.exists()){
-				boolean created = file.createNewFile();
-				if (!created) throw new IOException("Could not create data file");
-				writer = new FileWriter(file, true);
-				//if this is a new file, write the CSV format at the top
-				writer.write(CSV_FORMAT + "\n");
-			} else {
-				writer = new FileWriter(file, true);
-			}
-			writer.write(System.currentTimeMillis()+","+m.toString()+"\n");
-			writer.close();
-		} catch (FileNotFoundException e) {
-			Log.e(TAG, "Could not create logging file");
-            e.printStackTrace();
-			System.exit(1);
-		} catch (UnsupportedEncodingException e) {
-			Log.e(TAG, "Unsupported encoding exception thrown trying to write file");
-			e.printStackTrace();
-            System.exit(1);
-		} catch (IOException e) {
-            Log.e(TAG, "IO Exception trying to write to data file");
-            e.printStackTrace();
-            System.exit(1);
-		}
-		return file;
+	private boolean isBinaryFormat() {
+		return getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_BINARY_FORMAT, false);
 	}
 
 	/*
 	 * connectToHxm() sets up our service loops and starts the connection
 	 * logic to manage the HxM device data stream 
+	 *
+	 * rescan goes through the paired devices for straps again, otherwise the
+	 * straps we already know of are tried, best first (see DeviceRegistry)
 	 */
-	private void connectToHxm() {
+	private void connectToHxm(boolean rescan) {
 		/*
 		 * Update the status to connecting so the user can tell what's happening
 		 */
 		mStatus.setText(R.string.connecting);
 
 		/*
-		 * Setup the service that will talk with the Hxm
+		 * The capture service talks with the Hxm, wait for it if we are not bound yet
 		 */
-		if (mHxmService == null)
-			// Initialize the service to perform bluetooth connections
-			mHxmService = new HxmService(this, mHandler);
+		if (mCaptureService == null) {
+			mConnectWhenBound = true;
+			return;
+		}
 
 		/*
-		 * Look for an Hxm to connect to, if none is found tell the user
+		 * Look for the Hxms to connect to, if none is found tell the user
 		 * about it
 		 */
-		if ( getFirstConnectedHxm() ) {
-			BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mHxMAddress);
-			mHxmService.connect(device);    // Attempt to connect to the device
-		} else {
-			mStatus.setText(R.string.nonePaired);           
+		DeviceRegistry registry = mCaptureService.getDeviceRegistry();
+		if (rescan || registry.isEmpty())
+			registry.update(getPairedHxms());
+		List<BluetoothDevice> devices = registry.getCandidates(mBluetoothAdapter);
+		if (devices.isEmpty()) {
+			mStatus.setText(R.string.nonePaired);
+			return;
 		}
-
+		// Attempt to connect to all of them, the ones that answer first win the device ids
+		if (!mCaptureService.connect(devices))
+			Snackbar.make(view, R.string.tooManyDevices, Snackbar.LENGTH_LONG).show();
 	}
 
 
 	/*
-	 * Loop through all the connected bluetooth devices, the first one that 
-	 * starts with HXM will be assumed to be our Zephyr HxM Heart Rate Monitor,
-	 * and this is the device we will connect to
-	 * 
-	 * returns true if a HxM is found and the global device address has been set 
+	 * Loop through all the paired bluetooth devices, every one that starts
+	 * with HXM will be assumed to be a Zephyr HxM Heart Rate Monitor, and
+	 * these are the devices we will connect to
+	 *
+	 * returns the HxMs found, empty if there are none
 	 */
-	private boolean getFirstConnectedHxm() {
-
-		/*
-		 * Initialize the global device address to null, that means we haven't 
-		 * found a HxM to connect to yet        
-		 */
-		mHxMAddress = null;     
-		mHxMName = null;
-
+	private List<BluetoothDevice> getPairedHxms() {
+		List<BluetoothDevice> hxms = new ArrayList<>();
 
 		/*
 		 * Get the local Bluetooth adapter
@@ -249,28 +237,17 @@ public class MainActivity extends AppCompatActivity {
 
 		/*
 		 * For each device check to see if it starts with HXM, if it does assume it
-		 * is the Zephyr HxM device we want to pair with      
+		 * is a Zephyr HxM device we want to connect to
 		 */
-		if (bondedDevices.size() > 0) {
-			for (BluetoothDevice device : bondedDevices) {
-				String deviceName = device.getName();
-				if ( deviceName.startsWith("HXM") ) {
-					/*
-					 * we found an HxM to try to talk to!, let's remember its name and 
-					 * stop looking for more
-					 */
-					mHxMAddress = device.getAddress();
-					mHxMName = device.getName();
-					Log.d(TAG,"getFirstConnectedHxm() found a device whose name starts with 'HXM', its name is "+mHxMName+" and its address is ++mHxMAddress");
-					break;
-				}
+		for (BluetoothDevice device : bondedDevices) {
+			String deviceName = device.getName();
+			if (deviceName != null && deviceName.startsWith("HXM")) {
+				Log.d(TAG,"getPairedHxms() found a device whose name starts with 'HXM', its name is "+deviceName+" and its address is "+device.getAddress());
+				hxms.add(device);
 			}
 		}
 
-		/*
-		 * return true if we found an HxM and set the global device address
-		 */
-		return (mHxMAddress != null);
+		return hxms;
 	}
 
     // Identifier for the permission request
@@ -371,7 +348,7 @@ public class MainActivity extends AppCompatActivity {
 				mStatus.setText(R.string.btNotEnabled);
 				Log.d(TAG, "onStart: Blueooth adapter detected, but it's not enabled");
 			} else {
-				connectToHxm();
+				connectToHxm(false);
 			}
 		}        
 	}
@@ -397,36 +374,43 @@ public class MainActivity extends AppCompatActivity {
 			Log.d(TAG, "onStart: No blueooth adapter detected, it needs to be present and enabled");
 		}
 
+		/*
+		 * Hook up to the capture service, it keeps running on its own while it is
+		 * connected so we may be picking up a capture that is already going
+		 */
+		bindService(new Intent(this, CaptureService.class), mConnection, Context.BIND_AUTO_CREATE);
 	}
 
 	@Override
-	public synchronized void onResume() {
-		super.onResume();
-		Log.d(TAG, "onResume");
-
-		// Performing this check in onResume() covers the case in which BT was
-		// not enabled during onStart(), so we were paused to enable it...
-		// onResume() will be called when ACTION_REQUEST_ENABLE activity returns.
-		if (mHxmService != null) {
-			// Only if the state is STATE_NONE, do we know that we haven't started already
-			if (mHxmService.getState() == R.string.HXM_SERVICE_RESTING) {
-				// Start the Bluetooth scale services
-				mHxmService.start();
-			}
+	public void onStop() {
+		super.onStop();
+		Log.d(TAG, "onStop");
+
+		if (mCaptureService != null) {
+			mCaptureService.setClient(null);
+			mCaptureService = null;
 		}
+		mHandler.removeMessages(R.string.CAPTURE_SERVICE_MSG_UPDATE);
+		unbindService(mConnection);
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		// Stop the Bluetooth chat services
-		Log.e(TAG, "Destroying activity. Stopping bluetooth service");
-		if (mHxmService != null) mHxmService.stop();
+		// The capture service carries on without us, quit from the menu stops it
+		Log.d(TAG, "onDestroy");
 	}
 
 	Handler mHandler = new MessageHandler(this);
 
-	// The Handler that gets information back from the hrm service
+	/*
+	 * The latest values from the capture service, only used on the UI thread
+	 */
+	private final CaptureService.Snapshot mSnapshot = new CaptureService.Snapshot();
+	// when the reading on display was taken by the service, for the display latency
+	private long mShownUpdatedNanos;
+
+	// The Handler that gets information back from the capture service
 	private static class MessageHandler extends Handler {
 		private final WeakReference<MainActivity> activityReference;
 
@@ -442,54 +426,30 @@ public class MainActivity extends AppCompatActivity {
 				switch (msg.what) {
 					case R.string.HXM_SERVICE_MSG_STATE:
 						Log.d(TAG, "handleMessage():  MESSAGE_STATE_CHANGE: " + msg.arg1);
-						switch (msg.arg1) {
-							case R.string.HXM_SERVICE_CONNECTED:
-								if ((activity.mStatus != null) && (activity.mHxMName != null)) {
-									activity.mStatus.setText(R.string.connectedTo);
-									activity.mStatus.append(activity.mHxMName);
-									//set button to start recording
-									activity.mButton.setText(activity.getResources()
-											.getString(R.string.start_record));
-									activity.mButton
-											.setCompoundDrawablesWithIntrinsicBounds(R.drawable.ic_play, 0, 0, 0);
-								}
-								break;
-
-							case R.string.HXM_SERVICE_CONNECTING:
-								activity.mStatus.setText(R.string.connecting);
-								break;
-
-							case R.string.HXM_SERVICE_RESTING:
-								if (activity.mStatus != null) {
-									activity.mStatus.setText(R.string.notConnected);
-									//set button to connect
-									activity.mButton.setText(activity.getResources()
-											.getString(R.string.connect));
-									activity.mButton
-											.setCompoundDrawablesWithIntrinsicBounds(R.drawable.ic_connect, 0, 0, 0);
-									activity.mHeartRate.setText("");
-									activity.mBattery.setText("");
-									activity.mRri.setText("");
-									activity.mSpeed.setText("");
-								}
-								break;
-						}
+						// arg2 is the strap that changed, show the state of the capture as a whole
+						activity.showState(activity.mCaptureService != null
+								? activity.mCaptureService.getState() : msg.arg1);
 						break;
 
-					case R.string.HXM_SERVICE_MSG_READ: {
+					case R.string.HXM_SERVICE_MSG_DEVICE_NAME:
+						if (activity.mCaptureService != null)
+							activity.showState(activity.mCaptureService.getState());
+						break;
+
+					case R.string.CAPTURE_SERVICE_MSG_UPDATE:
 				/*
-				 * MESSAGE_READ will have the byte buffer in tow, we take it, build an instance
-				 * of a HrmReading object from the bytes, and then display it into our view
+				 * The service has handled one or more frames since the last update, show
+				 * where things are now
 				 */
-						byte[] readBuf = (byte[]) msg.obj;
-						HrmReading hrm = new HrmReading(readBuf);
-						activity.displayHrmReading(hrm);
+						activity.refreshReading();
+						activity.recordDisplayLatency();
+						break;
 
-						if (activity.isExternalStorageWritable() && activity.isRecording) {
-							activity.exportData(hrm);
-						}
+					case R.string.SESSION_WRITER_MSG_ERROR:
+						// the service has already stopped recording
+						Snackbar.make(activity.view, R.string.write_failed, Snackbar.LENGTH_LONG).show();
+						activity.showRecording(false);
 						break;
-					}
 
 					case R.string.HXM_SERVICE_MSG_TOAST:
 						String message = msg.getData().getString(null);
@@ -504,6 +464,7 @@ public class MainActivity extends AppCompatActivity {
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.option_menu, menu);
+		menu.findItem(R.id.binary_format).setChecked(isBinaryFormat());
 		return true;
 	}
 
@@ -512,21 +473,33 @@ public class MainActivity extends AppCompatActivity {
 		switch (item.getItemId()) {
 
 		case R.id.scan:
-			connectToHxm();
+			connectToHxm(true);
 			return true;
 
 		case R.id.record:
 			startStopRecording();
 			return true;
 
+		case R.id.binary_format:
+			// takes effect with the next recording
+			item.setChecked(!item.isChecked());
+			getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+					.putBoolean(PREF_BINARY_FORMAT, item.isChecked()).apply();
+			return true;
+
+		case R.id.debug:
+			startActivity(new Intent(this, DebugActivity.class));
+			return true;
+
 		case R.id.about:
 			Intent i = new Intent(this, AboutActivity.class);
 			startActivity(i); // brings up the second activity
 			return true;
 
 		case R.id.quit:
-			//stop the service
-			mHxmService.stop();
+			//stop the capture service, this ends the connection and any recording
+			if (mCaptureService != null)
+				mCaptureService.shutdown();
 			finish();
 			return true;
 		}
@@ -538,98 +511,181 @@ public class MainActivity extends AppCompatActivity {
 	public void onMainButtonCLicked() {
 		if (mBluetoothAdapter == null || !mBluetoothAdapter.isEnabled())
 			Log.d(TAG, "Unable to connect, bluetooth unavailable or not enabled");
-		else if (mHxmService == null || mHxmService.getState() != R.string.HXM_SERVICE_CONNECTED)
-			connectToHxm();
+		else if (mCaptureService == null || mCaptureService.getState() != R.string.HXM_SERVICE_CONNECTED)
+			connectToHxm(false);
 		else startStopRecording();
 	}
 
 	private void startStopRecording() {
+		if (mCaptureService == null)
+			return;
 		if (ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
-				== PackageManager.PERMISSION_GRANTED) {
-			isRecording = !isRecording;
-			recordingTag = (isRecording ? "" + System.currentTimeMillis() : recordingTag);
+				!= PackageManager.PERMISSION_GRANTED) {
+			Snackbar.make(view,"Cannot record without external storage permissions.",
+					Snackbar.LENGTH_LONG).show();
+		} else if (!mCaptureService.isRecording() && !isExternalStorageWritable()) {
+			Snackbar.make(view, R.string.write_failed, Snackbar.LENGTH_LONG).show();
+		} else {
+			boolean recording = !mCaptureService.isRecording();
+			mCaptureService.setRecording(recording, isBinaryFormat());
+			showRecording(recording);
 			Snackbar.make(view,
-					(isRecording ? R.string.recording_on : R.string.recording_off),
+					(recording ? R.string.recording_on : R.string.recording_off),
 					Snackbar.LENGTH_SHORT).show();
+		}
+	}
 
-			//set button to start or stop recording
-			if (isRecording) {
-				mButton.setText(getResources().getString(R.string.stop_record));
-				mButton.setCompoundDrawablesWithIntrinsicBounds( R.drawable.ic_stop, 0, 0, 0);
-			} else {
-				mButton.setText(getResources().getString(R.string.start_record));
-				mButton.setCompoundDrawablesWithIntrinsicBounds( R.drawable.ic_play, 0, 0, 0);
-			}
+	private void showRecording(boolean recording) {
+		//set button to start or stop recording
+		if (recording) {
+			mButton.setText(getResources().getString(R.string.stop_record));
+			mButton.setCompoundDrawablesWithIntrinsicBounds( R.drawable.ic_stop, 0, 0, 0);
 		} else {
-			Snackbar.make(view,"Cannot record without external storage permissions.",
-					Snackbar.LENGTH_LONG).show();
+			mButton.setText(getResources().getString(R.string.start_record));
+			mButton.setCompoundDrawablesWithIntrinsicBounds( R.drawable.ic_play, 0, 0, 0);
 		}
-
 	}
 
-	/**
-	 * Calculate the average RRi in milliseconds per packet recieved
-	 * @param h HrmReading object
-	 * @return the average RRi in ms from the recieved packet
-     */
-	private Long calcRRi(HrmReading h) {
-		Long interval = 0L;
-		/* Note that each heart beat is a value from 0 to 65535. The value rolls over
-		 * at 65535, so when we have a large enough difference (I'm using 10000), we know that
-		 * a rollover occured and we need to subtract 65535 from the result
-		 */
+	/*
+	 * Show the state of the connection, as passed on from the capture service
+	 */
+	private void showState(int state) {
+		switch (state) {
+			case R.string.HXM_SERVICE_CONNECTED:
+				mStatus.setText(R.string.connectedTo);
+				if (mCaptureService != null) {
+					// list every strap that is connected
+					String separator = "";
+					for (int i = 0; i < CaptureService.MAX_DEVICES; i++) {
+						String name = mCaptureService.getDeviceName(i);
+						if (name != null && mCaptureService.getState(i) == R.string.HXM_SERVICE_CONNECTED) {
+							mStatus.append(separator);
+							mStatus.append(name);
+							separator = ", ";
+						}
+					}
+				}
+				showRecording(mCaptureService != null && mCaptureService.isRecording());
+				break;
+
+			case R.string.HXM_SERVICE_CONNECTING:
+				mStatus.setText(R.string.connecting);
+				break;
+
+			case R.string.HXM_SERVICE_RESTING:
+				mStatus.setText(R.string.notConnected);
+				//set button to connect
+				mButton.setText(getResources().getString(R.string.connect));
+				mButton.setCompoundDrawablesWithIntrinsicBounds(R.drawable.ic_connect, 0, 0, 0);
+				clearReading();
+				break;
+		}
+	}
 
-		Long tmp = Math.abs(h.hbTime15 - h.hbTime14);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		//yeah this would probably be easier with a loop, but idk how to do that without
-		//shoving all the hbTime things in an array and thus copying them needlessly
-		tmp = Math.abs(h.hbTime14 - h.hbTime13);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime13 - h.hbTime12);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime12 - h.hbTime11);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime11 - h.hbTime10);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime10 - h.hbTime9);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime9 - h.hbTime8);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime8 - h.hbTime7);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime7 - h.hbTime6);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime6 - h.hbTime5);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime5 - h.hbTime4);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime4 - h.hbTime3);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime3 - h.hbTime2);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-		tmp = Math.abs(h.hbTime2 - h.hbTime1);
-		interval += (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
-
-		return interval/14;
+	private void clearReading() {
+		mHeartRate.setText("");
+		mBattery.setText("");
+		mRri.setText("");
+		mSpeed.setText("");
+		mHrv.setText("");
+		mDevices.setText("");
+		mChart.setSources(null, null);
+		mShownDevice = -1;
 	}
 
 	/**
 	 * Calculate speed which is measured in 1/256m/s blocks
-	 * @param h HrmReading object
-	 * @return Double containing speed
+	 * @param speed speed field of the packet
+	 * @return speed in m/s
      */
-	private Double calcSpeed(HrmReading h) {
-		return ((double) h.speed)/256;
+	private double calcSpeed(int speed) {
+		return ((double) speed)/256;
+	}
+
+	/*
+	 * Fetch the latest values from the capture service and show them, the strap we are
+	 * showing in full and a line for each of the others
+	 */
+	private void refreshReading() {
+		if (mCaptureService == null)
+			return;
+
+		int shown = -1;
+		int count = 0;
+		StringBuilder others = new StringBuilder();
+		for (int i = 0; i < CaptureService.MAX_DEVICES; i++) {
+			if (!mCaptureService.getSnapshot(i, mSnapshot))
+				continue;
+			count++;
+			if (shown < 0 || i == mShownDevice)
+				shown = i;
+			if (others.length() > 0)
+				others.append('\n');
+			String name = mCaptureService.getDeviceName(i);
+			others.append(String.format(Locale.US, "%s: %d bpm, %d %%",
+					name != null ? name : "#" + i, mSnapshot.heartRate, mSnapshot.batteryIndicator));
+		}
+
+		if (shown < 0) {
+			clearReading();
+			return;
+		}
+		mShownDevice = shown;
+		mCaptureService.getSnapshot(shown, mSnapshot);
+		displayHrmReading(mSnapshot);
+		mChart.setSources(mCaptureService.getHeartRateSamples(shown), mCaptureService.getRrSamples(shown));
+		mShownUpdatedNanos = mSnapshot.updatedNanos;
+		// with a single strap the list would only repeat the display
+		mDevices.setText(count > 1 ? others : "");
+	}
+
+	/*
+	 * Time from the service updating the reading to it being on the screen
+	 */
+	private void recordDisplayLatency() {
+		if (mCaptureService != null && mShownUpdatedNanos != 0)
+			mCaptureService.getMetrics().histogram("display").recordSince(mShownUpdatedNanos);
+	}
+
+	/*
+	 * Tapping the list of straps moves the display on to the next one, which is
+	 * the one connected to first from then on
+	 */
+	@OnClick(R.id.devices)
+	public void onDevicesClicked() {
+		if (mCaptureService == null)
+			return;
+		for (int n = 1; n <= CaptureService.MAX_DEVICES; n++) {
+			int i = (mShownDevice + n) % CaptureService.MAX_DEVICES;
+			if (mCaptureService.getSnapshot(i, mSnapshot)) {
+				mShownDevice = i;
+				mCaptureService.getDeviceRegistry().setPreferred(mCaptureService.getDeviceAddress(i));
+				break;
+			}
+		}
+		refreshReading();
+	}
+
+	/*
+	 * Tapping the chart shows a longer stretch of time, after the longest the shortest again
+	 */
+	@OnClick(R.id.chart)
+	public void onChartClicked() {
+		mChart.nextWindow();
 	}
 
 	/****************************************************************************
 	 * Some utility functions to control the formatting of HxM fields into the 
 	 * activity's view
 	 ****************************************************************************/	
-	private void displayHrmReading(HrmReading h){
+	private void displayHrmReading(CaptureService.Snapshot h){
 		mHeartRate.setText(String.format(Locale.US, "%d bpm", h.heartRate));
 		mBattery.setText(String.format(Locale.US, "%d %%", h.batteryIndicator));
-		mRri.setText(String.format(Locale.US, "%d ms", calcRRi(h)));
-		mSpeed.setText(String.format(Locale.US, "%.1f m/s", calcSpeed(h)));
+		if (h.rriMs > 0)
+			mRri.setText(String.format(Locale.US, "%d ms", h.rriMs));
+		if (h.hrvBeats > 1)
+			mHrv.setText(String.format(Locale.US, "RMSSD %.0f ms, SDNN %.0f ms, pNN50 %.0f%%",
+					h.rmssd, h.sdnn, h.pnn50));
+		mSpeed.setText(String.format(Locale.US, "%.1f m/s", calcSpeed(h.speed)));
 	}
 }
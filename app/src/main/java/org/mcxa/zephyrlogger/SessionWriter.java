@@ -0,0 +1,409 @@
+package org.mcxa.zephyrlogger;
+
+import android.util.Log;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.metrics.LatencyHistogram;
+import org.mcxa.zephyrlogger.pipeline.ReadingSink;
+import org.mcxa.zephyrlogger.session.BinarySessionEncoder;
+import org.mcxa.zephyrlogger.session.BinarySessionFormat;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
+import org.mcxa.zephyrlogger.session.SegmentCompactor;
+import org.mcxa.zephyrlogger.session.SessionEncoder;
+import org.mcxa.zephyrlogger.session.SessionIndex;
+import org.mcxa.zephyrlogger.session.SessionJournal;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes the frames of one strap in a recording session to its data files, as a sink of the
+ * ReadingPipeline.
+ *
+ * The pipeline queues the frames and calls us on a worker thread of our own, so nothing
+ * here ever runs on the UI or capture thread.  Frames are encoded (CSV text or raw binary
+ * frames, depending on the SessionEncoder) into a buffered stream which is flushed once
+ * enough frames are pending or enough time has gone by.
+ *
+ * A session is stored in segments, <name>_data_0001.txt, <name>_data_0002.txt and so on,
+ * each a complete data file with its own header.  A new segment is started once the
+ * current one reaches its size or age limit.  Closed segments are listed in the session
+ * index, <name>_index.csv (see SessionIndex), and handed to the SegmentCompactor to be
+ * gzipped in the background.  onClose() closes the last segment the same way.
+ *
+ * With a journal folder set, every frame also goes into a SessionJournal of the segment
+ * before it is encoded, and the journal is checkpointed with every flush.  If the segment
+ * can't be written, the frames carry on into the journal and the segment is written again
+ * from it once it is closed, so the SD card going away for a moment costs nothing.  If the
+ * process dies instead, recover() rebuilds the segments it had open the next time around.
+ * Only a failure of the journal itself ends the recording.
+ *
+ * When the strap was away for a while and came back, markGap() has a gap record written
+ * ahead of the next frame, from the last frame before it to that one.
+ */
+public class SessionWriter implements ReadingSink {
+    private static final String TAG = "SessionWriter";
+
+    // flush after this many frames, or after this long, whichever comes first
+    private static final int FLUSH_LINES = 30;
+    private static final long FLUSH_INTERVAL_MS = 5000;
+
+    private static final String DATA_INFIX = "_data_";
+    private static final String INDEX_SUFFIX = "_index.csv";
+
+    private final File mFolder;
+    private final String mName;
+    private final SessionEncoder mEncoder;
+    private long mSegmentBytes = Long.MAX_VALUE;
+    private long mSegmentMs = Long.MAX_VALUE;
+    private SegmentCompactor mCompactor;
+    private LatencyHistogram mFlushLatency = new LatencyHistogram();
+    private File mJournalFolder;
+    private int mJournalCapacity;
+
+    // Only touched by the pipeline's worker thread
+    private int mSegment;
+    private File mFile;
+    private SessionJournal mJournal;
+    private boolean mOpen;
+    // the segment couldn't be written to at some point, mOut is null since
+    private boolean mFailed;
+    private CountingOutputStream mCounter;
+    private OutputStream mOut;
+    private int mUnflushed;
+    private long mLastFlush;
+    private long mFirstTimeMs;
+    private long mLastTimeMs;
+    private long mFrames;
+    private boolean mGapPending;
+
+    /**
+     * @param folder    where the data files go, created if needed
+     * @param name      the files are called <name>_data_<segment><extension>
+     * @param encoder   the format of the data files
+     */
+    public SessionWriter(File folder, String name, SessionEncoder encoder) {
+        mFolder = folder;
+        mName = name;
+        mEncoder = encoder;
+    }
+
+    /**
+     * Start a new segment once the current one has this many bytes or spans this long,
+     * there is no limit by default
+     */
+    public SessionWriter setSegmentLimits(long bytes, long durationMs) {
+        mSegmentBytes = bytes;
+        mSegmentMs = durationMs;
+        return this;
+    }
+
+    /**
+     * Compress closed segments with this compactor, by default they are left as they are
+     */
+    public SessionWriter setCompactor(SegmentCompactor compactor) {
+        mCompactor = compactor;
+        return this;
+    }
+
+    /**
+     * Journal every segment in this folder, it should be in internal storage
+     * @param capacity  frames to make room for in a new journal, it grows if there are more
+     */
+    public SessionWriter setJournal(File folder, int capacity) {
+        mJournalFolder = folder;
+        mJournalCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Record the time each flush to the file system takes in this histogram
+     */
+    public SessionWriter setFlushLatency(LatencyHistogram flushLatency) {
+        mFlushLatency = flushLatency;
+        return this;
+    }
+
+    /**
+     * The index of the session, see SessionIndex
+     */
+    public File getIndexFile() {
+        return new File(mFolder, mName + INDEX_SUFFIX);
+    }
+
+    /**
+     * The strap was not connected since the last frame, mark the gap before the next one.
+     * Only called from the pipeline's worker thread.
+     */
+    public void markGap() {
+        mGapPending = true;
+    }
+
+    @Override
+    public void onFrame(int device, long timeMs, long elapsedMs, HxmFrame frame) throws IOException {
+        if (mGapPending) {
+            mGapPending = false;
+            // a gap before the first frame is no gap in the session
+            if (mOpen)
+                writeGap(timeMs);
+        }
+        if (mOpen && ((mOut != null && mCounter.mCount >= mSegmentBytes) || timeMs - mFirstTimeMs >= mSegmentMs))
+            closeSegment();
+        if (!mOpen)
+            openSegment(timeMs);
+        if (mJournal != null)
+            mJournal.append(timeMs, frame);
+        if (mOut != null) {
+            try {
+                mEncoder.writeFrame(mOut, timeMs, frame);
+            } catch (IOException e) {
+                segmentFailed(e);
+            }
+        }
+        mLastTimeMs = timeMs;
+        mFrames++;
+        mUnflushed++;
+        if (mUnflushed >= FLUSH_LINES)
+            flush();
+    }
+
+    private void writeGap(long endMs) throws IOException {
+        if (mJournal != null)
+            mJournal.appendGap(mLastTimeMs, endMs);
+        if (mOut != null) {
+            try {
+                mEncoder.writeGap(mOut, mLastTimeMs, endMs);
+            } catch (IOException e) {
+                segmentFailed(e);
+            }
+        }
+        mUnflushed++;
+    }
+
+    @Override
+    public void onIdle() throws IOException {
+        if (mUnflushed > 0 && System.currentTimeMillis() - mLastFlush >= FLUSH_INTERVAL_MS)
+            flush();
+    }
+
+    @Override
+    public void onClose() {
+        if (!mOpen)
+            return;
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            Log.e(TAG, "closing data file " + mFile + " failed", e);
+        }
+    }
+
+    private void flush() throws IOException {
+        long start = System.nanoTime();
+        if (mOut != null) {
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                segmentFailed(e);
+            }
+        }
+        if (mJournal != null)
+            mJournal.checkpoint();
+        mFlushLatency.recordSince(start);
+        mUnflushed = 0;
+        mLastFlush = System.currentTimeMillis();
+    }
+
+    /*
+     * The segment can't be written to.  With a journal we go on without it and write it again
+     * when it is closed, without one there is nothing to be done.
+     */
+    private void segmentFailed(IOException e) throws IOException {
+        if (mJournal == null)
+            throw e;
+        Log.w(TAG, "writing " + mFile + " failed, carrying on in the journal", e);
+        OutputStream out = mOut;
+        mOut = null;
+        mFailed = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // it's being written again anyway
+            }
+        }
+    }
+
+    private void openSegment(long timeMs) throws IOException {
+        // if the directory doesn't exist, create it
+        if (!mFolder.exists() && !mFolder.mkdirs())
+            throw new IOException("Could not create directory " + mFolder);
+
+        // carry on after the segments that are there already, a session never overwrites one
+        do {
+            mSegment++;
+            mFile = new File(mFolder, String.format(Locale.US, "%s%s%04d%s", mName, DATA_INFIX, mSegment, mEncoder.extension()));
+        } while (mFile.exists() || SegmentCompactor.compressedFile(mFile).exists());
+
+        if (mJournalFolder != null) {
+            if (!mJournalFolder.exists() && !mJournalFolder.mkdirs())
+                throw new IOException("Could not create directory " + mJournalFolder);
+            mJournal = SessionJournal.create(new File(mJournalFolder, mFile.getName() + SessionJournal.EXTENSION),
+                    mFile, mJournalCapacity);
+        }
+        mOpen = true;
+        mFailed = false;
+        mLastFlush = System.currentTimeMillis();
+        mFirstTimeMs = timeMs;
+        mFrames = 0;
+
+        try {
+            mCounter = new CountingOutputStream(new FileOutputStream(mFile));
+            mOut = new BufferedOutputStream(mCounter, 8192);
+            // every segment starts with the header of the format, so each can be read on its own
+            mEncoder.writeHeader(mOut);
+        } catch (IOException e) {
+            segmentFailed(e);
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        mOpen = false;
+        mUnflushed = 0;
+        if (mOut != null) {
+            try {
+                // close() flushes whatever is still buffered
+                mOut.close();
+                mOut = null;
+            } catch (IOException e) {
+                segmentFailed(e);
+            }
+        }
+
+        SessionJournal journal = mJournal;
+        mJournal = null;
+        SessionIndex.Entry entry;
+        if (mFailed) {
+            // the segment comes out of the journal as a whole, if that fails too the journal
+            // stays behind for recover()
+            journal.close();
+            entry = rebuild(journal.getFile(), mEncoder);
+            Log.i(TAG, "wrote " + mFile + " again from the journal, " + entry.frames + " frames");
+        } else {
+            entry = new SessionIndex.Entry(mFile.getName(), mFirstTimeMs, mLastTimeMs, mFrames, mCounter.mCount);
+        }
+        SessionIndex.append(getIndexFile(), entry);
+        if (journal != null)
+            journal.delete();
+        if (mCompactor != null)
+            mCompactor.compact(mFile);
+    }
+
+    /**
+     * Write the segments that were still open when the process last went away from their
+     * journals, add them to their session index and queue them to be compressed.  Call it
+     * before any session is started, with the journals that were there then, so none of
+     * them is in use.  A journal that can't be recovered is left where it is for next time.
+     * @return the number of segments recovered
+     */
+    public static int recover(File[] journals, SegmentCompactor compactor) {
+        int recovered = 0;
+        for (File journal : journals) {
+            try {
+                File segment;
+                SessionIndex.Entry entry = null;
+                SessionJournal.Reader reader = new SessionJournal.Reader(journal);
+                try {
+                    segment = reader.getSegment();
+                    // a compressed segment was closed and indexed already, only the journal is left
+                    if (!SegmentCompactor.compressedFile(segment).exists())
+                        entry = reader.rebuild(encoderFor(segment));
+                } finally {
+                    reader.close();
+                }
+                if (entry != null) {
+                    File index = indexFileOf(segment);
+                    if (!isIndexed(index, entry.segment))
+                        SessionIndex.append(index, entry);
+                }
+                if (!journal.delete())
+                    throw new IOException("could not delete " + journal);
+                if (entry != null) {
+                    Log.i(TAG, "recovered " + entry.frames + " frames of " + segment);
+                    if (compactor != null)
+                        compactor.compact(segment);
+                }
+                recovered++;
+            } catch (IOException e) {
+                Log.e(TAG, "recovering " + journal + " failed", e);
+            }
+        }
+        return recovered;
+    }
+
+    private static SessionIndex.Entry rebuild(File journal, SessionEncoder encoder) throws IOException {
+        SessionJournal.Reader reader = new SessionJournal.Reader(journal);
+        try {
+            return reader.rebuild(encoder);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static SessionEncoder encoderFor(File segment) {
+        if (segment.getName().endsWith(BinarySessionFormat.EXTENSION))
+            return new BinarySessionEncoder();
+        return new CsvSessionEncoder();
+    }
+
+    /*
+     * <name>_index.csv for a segment <name>_data_<segment><extension>
+     */
+    private static File indexFileOf(File segment) throws IOException {
+        String name = segment.getName();
+        int i = name.lastIndexOf(DATA_INFIX);
+        if (i < 0)
+            throw new IOException(segment + " is not a session segment");
+        return new File(segment.getParentFile(), name.substring(0, i) + INDEX_SUFFIX);
+    }
+
+    private static boolean isIndexed(File index, String segment) throws IOException {
+        if (!index.exists())
+            return false;
+        List<SessionIndex.Entry> entries = SessionIndex.read(index);
+        for (SessionIndex.Entry entry : entries) {
+            if (entry.segment.equals(segment))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Counts the bytes going into the file, they are below the buffer so this is what has
+     * actually been handed to the file system
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
@@ -61,6 +61,10 @@ import android.util.Log;
  * signed/unsigned variants of numbers, we sometimes put the fields extracted from the 
  * HxM message into fields larger than is necessary.
  * 
+ * The decoding itself is done by the HxmFrame flyweight, HrmReading just copies the fields
+ * out of it.  Code on the hot path should read the fields from an HxmFrame directly, which
+ * does not allocate anything per message.
+ * 
  *
  *  
  */
@@ -110,71 +114,80 @@ public class HrmReading {
     public byte etx;
 
     public HrmReading(byte[] buffer) {
-        int bufferIndex = 0;
-
-        Log.d(TAG, "HrmReading being built from byte buffer");
-
-        try {
-            stx = buffer[bufferIndex++];
-            msgId = buffer[bufferIndex++];
-            dlc = buffer[bufferIndex++];
-            firmwareId = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            firmwareVersion = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hardWareId = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hardwareVersion = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            batteryIndicator = (0x000000FF & (buffer[bufferIndex++]));
-            heartRate = (0x000000FF & (buffer[bufferIndex++]));
-            heartBeatNumber = (0x000000FF & (buffer[bufferIndex++]));
-            hbTime1 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime2 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime3 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime4 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime5 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime6 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime7 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime8 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime9 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime10 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime11 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime12 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime13 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime14 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            hbTime15 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            reserved1 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            reserved2 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            reserved3 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            distance = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            speed = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            strides = buffer[bufferIndex++];
-            reserved4 = buffer[bufferIndex++];
-            reserved5 = ((0x000000FF & buffer[bufferIndex++]) | (0x000000FF & buffer[bufferIndex++]) << 8);
-            crc = buffer[bufferIndex++];
-            etx = buffer[bufferIndex];
-        } catch (Exception e) {
+        this(new HxmFrame().wrap(buffer, 0), buffer.length);
+    }
+
+    /*
+     * Copy the fields out of a flyweight view of the message, useful to keep a reading around
+     * after the buffer behind the view has been reused
+     */
+    public HrmReading(HxmFrame frame) {
+        this(frame, HxmFrameReader.FRAME_LENGTH);
+    }
+
+    private HrmReading(HxmFrame frame, int length) {
+        boolean debug = Log.isLoggable(TAG, Log.DEBUG);
+
+        if (debug) Log.d(TAG, "HrmReading being built from byte buffer");
+
+        if (length < HxmFrameReader.FRAME_LENGTH) {
             /*
-			 * An exception should only happen if the buffer is too short and we walk off the end of the bytes,
-			 * because of the way we read the bytes from the device this should never happen, but just in case
-			 * we'll catch the exception
-			 */
+             * The buffer is too short, because of the way we read the bytes from the device
+             * this should never happen, but just in case leave the reading empty
+             */
             Log.d(TAG, "Failure building HrmReading from byte buffer, probably an incopmplete or corrupted buffer");
+            return;
         }
 
-
-        Log.d(TAG, "Building HrmReading from byte buffer complete, consumed " + bufferIndex + " bytes in the process");
+        stx = frame.byteAt(HxmFrame.OFFSET_STX);
+        msgId = frame.byteAt(HxmFrame.OFFSET_MSGID);
+        dlc = frame.byteAt(HxmFrame.OFFSET_DLC);
+        firmwareId = frame.firmwareId();
+        firmwareVersion = frame.firmwareVersion();
+        hardWareId = frame.hardwareId();
+        hardwareVersion = frame.hardwareVersion();
+        batteryIndicator = frame.batteryIndicator();
+        heartRate = frame.heartRate();
+        heartBeatNumber = frame.heartBeatNumber();
+        hbTime1 = frame.hbTime(1);
+        hbTime2 = frame.hbTime(2);
+        hbTime3 = frame.hbTime(3);
+        hbTime4 = frame.hbTime(4);
+        hbTime5 = frame.hbTime(5);
+        hbTime6 = frame.hbTime(6);
+        hbTime7 = frame.hbTime(7);
+        hbTime8 = frame.hbTime(8);
+        hbTime9 = frame.hbTime(9);
+        hbTime10 = frame.hbTime(10);
+        hbTime11 = frame.hbTime(11);
+        hbTime12 = frame.hbTime(12);
+        hbTime13 = frame.hbTime(13);
+        hbTime14 = frame.hbTime(14);
+        hbTime15 = frame.hbTime(15);
+        reserved1 = frame.reserved1();
+        reserved2 = frame.reserved2();
+        reserved3 = frame.reserved3();
+        distance = frame.distance();
+        speed = frame.speed();
+        strides = frame.byteAt(HxmFrame.OFFSET_STRIDES);
+        reserved4 = frame.byteAt(HxmFrame.OFFSET_RESERVED_4);
+        reserved5 = frame.reserved5();
+        crc = frame.byteAt(HxmFrame.OFFSET_CRC);
+        etx = frame.byteAt(HxmFrame.OFFSET_ETX);
 
 		/*
 		 * One simple check to see if we parsed the bytes properly is to check if the ETX 
-		 * character was found where we expected it,  a more robust implementation would be
-		 * to calculate the CRC from the message contents and compare it to the CRC from 
-		 * the packet.  
+		 * character was found where we expected it.  Messages from HxmFrameReader have had
+		 * their CRC checked as well, so this should only ever fire for a buffer from elsewhere.
 		 */
         if (etx != ETX)
             Log.e(TAG, "...ETX mismatch!  The HxM message was not parsed properly");
 
 		/*
-		 * log the contents of the HrmReading, use logcat to watch the data as it arrives  
+		 * log the contents of the HrmReading, use logcat to watch the data as it arrives,
+		 * enable it with 'adb shell setprop log.tag.HrmReading DEBUG'
 		 */
-        dump();
+        if (debug) dump();
     }
 
     /*
@@ -222,17 +235,22 @@ public class HrmReading {
 
     @Override
     public String toString() {
-        StringBuilder builder = new StringBuilder();
-        Object[] data = new Object[]{stx, msgId, dlc, firmwareId, firmwareVersion, hardWareId,
-                hardwareVersion, batteryIndicator, heartRate, heartBeatNumber, hbTime1, hbTime2,
-                hbTime3, hbTime4, hbTime5, hbTime6, hbTime7, hbTime8, hbTime9, hbTime10, hbTime11,
-                hbTime12, hbTime13, hbTime14, hbTime15, reserved1, reserved2, reserved3, distance,
-                speed, strides, reserved4, reserved5, crc, etx, reserved5, crc, etx};
-        for (int i = 0; i < data.length; i++) {
-            builder.append(data[i]);
-            if (i != data.length - 1)
-                builder.append(",");
-        }
+        StringBuilder builder = new StringBuilder(160);
+        builder.append(stx).append(',').append(msgId).append(',').append(dlc).append(',')
+                .append(firmwareId).append(',').append(firmwareVersion).append(',')
+                .append(hardWareId).append(',').append(hardwareVersion).append(',')
+                .append(batteryIndicator).append(',').append(heartRate).append(',')
+                .append(heartBeatNumber).append(',')
+                .append(hbTime1).append(',').append(hbTime2).append(',').append(hbTime3).append(',')
+                .append(hbTime4).append(',').append(hbTime5).append(',').append(hbTime6).append(',')
+                .append(hbTime7).append(',').append(hbTime8).append(',').append(hbTime9).append(',')
+                .append(hbTime10).append(',').append(hbTime11).append(',').append(hbTime12).append(',')
+                .append(hbTime13).append(',').append(hbTime14).append(',').append(hbTime15).append(',')
+                .append(reserved1).append(',').append(reserved2).append(',').append(reserved3).append(',')
+                .append(distance).append(',').append(speed).append(',').append(strides).append(',')
+                .append(reserved4).append(',').append(reserved5).append(',').append(crc).append(',')
+                .append(etx).append(',').append(reserved5).append(',').append(crc).append(',')
+                .append(etx);
         return builder.toString();
     }
 
@@ -0,0 +1,83 @@
+package org.mcxa.zephyrlogger.benchmark;
+
+import org.mcxa.zephyrlogger.hxm.HrmReading;
+import org.mcxa.zephyrlogger.session.BinarySessionEncoder;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * CsvFormattingBenchmark
+ *
+ * Turning a message into a line of the session file.  exportDataLine is the line the old
+ * MainActivity.exportData built, the receive time and HrmReading.toString() glued together
+ * and encoded by the writer, csvEncoder is the CsvSessionEncoder that replaced it and
+ * binaryEncoder is the raw format for comparison.  The encoders write to a stream that only
+ * counts the bytes, so no disk is involved.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CsvFormattingBenchmark {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TIME_MS = 1480000000000L;
+
+    private final CsvSessionEncoder mCsv = new CsvSessionEncoder();
+    private final BinarySessionEncoder mBinary = new BinarySessionEncoder();
+    private final CountingOutputStream mOut = new CountingOutputStream();
+    private long mTimeMs = TIME_MS;
+
+    @Benchmark
+    public String hrmReadingToString(SyntheticFrames frames) {
+        return new HrmReading(frames.nextBytes()).toString();
+    }
+
+    @Benchmark
+    public byte[] exportDataLine(SyntheticFrames frames) {
+        HrmReading m = new HrmReading(frames.nextBytes());
+        return (nextTime() + "," + m.toString() + "\n").getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public long csvEncoder(SyntheticFrames frames) throws IOException {
+        mCsv.writeFrame(mOut, nextTime(), frames.nextFrame());
+        return mOut.mCount;
+    }
+
+    @Benchmark
+    public long binaryEncoder(SyntheticFrames frames) throws IOException {
+        mBinary.writeFrame(mOut, nextTime(), frames.nextFrame());
+        return mOut.mCount;
+    }
+
+    private long nextTime() {
+        return mTimeMs += 1000;
+    }
+
+    /*
+     * Throws the bytes away, only counting them
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.mcxa.zephyrlogger.benchmark;
+
+import org.mcxa.zephyrlogger.hxm.HrmReading;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * FrameParsingBenchmark
+ *
+ * Decoding a message: building an HrmReading from the bytes, which allocates the reading and
+ * a flyweight for every message, against reading the same fields through an HxmFrame, which
+ * allocates nothing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameParsingBenchmark {
+
+    @Benchmark
+    public HrmReading hrmReading(SyntheticFrames frames) {
+        return new HrmReading(frames.nextBytes());
+    }
+
+    @Benchmark
+    public HrmReading hrmReadingFromFrame(SyntheticFrames frames) {
+        return new HrmReading(frames.nextFrame());
+    }
+
+    @Benchmark
+    public long hxmFrame(SyntheticFrames frames) {
+        HxmFrame frame = frames.nextFrame();
+        // the fields the display and the analysis use
+        return frame.heartRate() + frame.batteryIndicator() + frame.heartBeatNumber()
+                + frame.hbTime(1) + frame.speed() + frame.distance();
+    }
+}
@@ -0,0 +1,82 @@
+package org.mcxa.zephyrlogger.benchmark;
+
+import org.mcxa.zephyrlogger.hxm.HrmReading;
+import org.mcxa.zephyrlogger.hxm.HrvMetrics;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * RrIntervalBenchmark
+ *
+ * The R-R interval work done for every message.  rrMean is what the app does now, pulling the
+ * new intervals out of the message into the RrBuffer and taking the mean of the last 14, and
+ * hrv adds the HRV window on top.  calcRRi is the old MainActivity.calcRRi, kept here as the
+ * baseline: the mean of the 14 intervals in a decoded HrmReading, with all its boxing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class RrIntervalBenchmark {
+    private RrBuffer mBuffer;
+    private RrIntervalExtractor mExtractor;
+    private HrvMetrics mHrv;
+
+    @Setup
+    public void setUp() {
+        mBuffer = new RrBuffer(256);
+        mExtractor = new RrIntervalExtractor(mBuffer);
+        mHrv = new HrvMetrics(60000, 256);
+    }
+
+    @Benchmark
+    public int rrMean(SyntheticFrames frames) {
+        mExtractor.extract(frames.nextFrame());
+        return mBuffer.mean(14);
+    }
+
+    @Benchmark
+    public double hrv(SyntheticFrames frames) {
+        mExtractor.extract(frames.nextFrame());
+        mHrv.addFrom(mBuffer);
+        return mHrv.rmssd() + mHrv.sdnn() + mHrv.pnn50();
+    }
+
+    @Benchmark
+    public Long calcRRi(SyntheticFrames frames) {
+        return calcRRi(new HrmReading(frames.nextBytes()));
+    }
+
+    private static Long calcRRi(HrmReading h) {
+        Long interval = 0L;
+        interval += rollover(h.hbTime15 - h.hbTime14);
+        interval += rollover(h.hbTime14 - h.hbTime13);
+        interval += rollover(h.hbTime13 - h.hbTime12);
+        interval += rollover(h.hbTime12 - h.hbTime11);
+        interval += rollover(h.hbTime11 - h.hbTime10);
+        interval += rollover(h.hbTime10 - h.hbTime9);
+        interval += rollover(h.hbTime9 - h.hbTime8);
+        interval += rollover(h.hbTime8 - h.hbTime7);
+        interval += rollover(h.hbTime7 - h.hbTime6);
+        interval += rollover(h.hbTime6 - h.hbTime5);
+        interval += rollover(h.hbTime5 - h.hbTime4);
+        interval += rollover(h.hbTime4 - h.hbTime3);
+        interval += rollover(h.hbTime3 - h.hbTime2);
+        interval += rollover(h.hbTime2 - h.hbTime1);
+        return interval / 14;
+    }
+
+    private static Long rollover(long difference) {
+        Long tmp = Math.abs(difference);
+        return (tmp > 10000L) ? Math.abs(tmp - 65535) : tmp;
+    }
+}
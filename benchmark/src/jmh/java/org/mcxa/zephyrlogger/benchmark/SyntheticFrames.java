@@ -0,0 +1,59 @@
+package org.mcxa.zephyrlogger.benchmark;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.sim.HxmSimulator;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/*
+ * SyntheticFrames
+ *
+ * A run of messages from the simulated strap, framed by HxmFrameReader the way the app gets
+ * them, handed out one after the other and round again.  Each benchmark thread gets its own.
+ * The seed is fixed so every run sees the same bytes.
+ */
+@State(Scope.Thread)
+public class SyntheticFrames {
+    // enough messages that the branches don't just learn the sequence
+    private static final int FRAME_COUNT = 4096;
+    // the first messages after switching on have empty beat slots, skip past them
+    private static final int SKIP = 16;
+
+    private final byte[][] mFrames = new byte[FRAME_COUNT][];
+    private final HxmFrame mFrame = new HxmFrame();
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        HxmFrameReader reader = new HxmFrameReader(new HxmSimulator(42).setMaxFrames(SKIP + FRAME_COUNT));
+        byte[] skipped = new byte[HxmFrameReader.FRAME_LENGTH];
+        for (int i = 0; i < SKIP; i++)
+            reader.readFrame(skipped, 0);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mFrames[i] = new byte[HxmFrameReader.FRAME_LENGTH];
+            if (reader.readFrame(mFrames[i], 0) < 0)
+                throw new IOException("simulator ended after " + i + " frames");
+        }
+    }
+
+    /*
+     * The bytes of the next message
+     */
+    public byte[] nextBytes() {
+        byte[] frame = mFrames[mNext];
+        mNext = (mNext + 1) & (FRAME_COUNT - 1);
+        return frame;
+    }
+
+    /*
+     * The next message through a shared flyweight, only good until the next call
+     */
+    public HxmFrame nextFrame() {
+        return mFrame.wrap(nextBytes(), 0);
+    }
+}
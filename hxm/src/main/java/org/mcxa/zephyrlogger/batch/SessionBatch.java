@@ -0,0 +1,444 @@
+package org.mcxa.zephyrlogger.batch;
+
+import org.mcxa.zephyrlogger.session.BinarySessionEncoder;
+import org.mcxa.zephyrlogger.session.BinarySessionFormat;
+import org.mcxa.zephyrlogger.session.ColumnarSessionFormat;
+import org.mcxa.zephyrlogger.session.ColumnarSessionWriter;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
+import org.mcxa.zephyrlogger.session.MappedSessionReader;
+import org.mcxa.zephyrlogger.session.SegmentCompactor;
+import org.mcxa.zephyrlogger.session.SessionEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * SessionBatch
+ *
+ * Desktop batch tool for whole ZephyrLogs folders, months of recordings at a time.  It finds
+ * every data file under the folders given, CSV or binary, compressed or not, and works on
+ * them in parallel on a fork-join pool:
+ *
+ *      java -cp hxm.jar org.mcxa.zephyrlogger.batch.SessionBatch summarize|validate|convert|export
+ *              [-threads n] [-out dir] folder-or-file...
+ *
+ * summarize  writes a CSV line per session (see SessionSummary) to stdout, or to
+ *            summary.csv in -out
+ * validate   lists the sessions with frames that fail the checks, and exits with 1 if
+ *            there are any
+ * convert    writes every segment again in the other format, CSV as binary and binary as
+ *            CSV, next to it or in -out
+ * export     writes every session, all its segments, as one columnar file for analytics
+ *            (see ColumnarSessionFormat), <name>_data.zcol next to it or in -out
+ *
+ * The segments of a session (<name>_data_0001.txt, <name>_data_0002.txt...) are read in
+ * order by one task so the summary runs across them, different sessions go in parallel.
+ * The files are memory mapped (see MappedSessionReader), compressed segments are
+ * decompressed into memory first, they are never bigger than a segment.
+ */
+public class SessionBatch {
+    private static final String SUMMARY_FILE = "summary.csv";
+
+    // <name>_data_<segment>, or <name>_data for files from before there were segments
+    private static final Pattern DATA_FILE = Pattern.compile("(Zephyr_.*_data)(_\\d+)?");
+
+    public static void main(String[] args) {
+        String command = args.length > 0 ? args[0] : "";
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out = null;
+        List<File> inputs = new ArrayList<>();
+
+        try {
+            if (!command.equals("summarize") && !command.equals("validate") && !command.equals("convert")
+                    && !command.equals("export"))
+                throw new IllegalArgumentException(command);
+            for (int i = 1; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-"))
+                    inputs.add(new File(arg));
+                else if (i + 1 == args.length)
+                    throw new IllegalArgumentException(arg);
+                else if (arg.equals("-threads"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (arg.equals("-out"))
+                    out = new File(args[++i]);
+                else
+                    throw new IllegalArgumentException(arg);
+            }
+            if (inputs.isEmpty() || threads < 1)
+                throw new IllegalArgumentException();
+        } catch (IllegalArgumentException e) {
+            System.err.println("usage: SessionBatch summarize|validate|convert|export [-threads n] [-out dir] folder-or-file...");
+            System.exit(2);
+        }
+
+        if (out != null && !out.isDirectory() && !out.mkdirs()) {
+            System.err.println(out + ": can't create the folder");
+            System.exit(1);
+        }
+
+        Map<String, List<File>> sessions = findSessions(inputs);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        int status;
+        try {
+            if (command.equals("convert"))
+                status = convert(pool, sessions, out);
+            else if (command.equals("export"))
+                status = export(pool, sessions, out);
+            else
+                status = summarize(pool, sessions, out, command.equals("validate"));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        } finally {
+            pool.shutdown();
+        }
+        System.exit(status);
+    }
+
+    /*
+     * The data files under the inputs, by session name, the segments of each in order.  A
+     * segment that is there in both formats, after a convert, is only taken once, binary
+     * for preference since it is quicker to read.
+     */
+    static Map<String, List<File>> findSessions(List<File> inputs) {
+        Map<String, Map<String, File>> segments = new TreeMap<>();
+        for (File input : inputs)
+            findSegments(input, true, segments);
+
+        Map<String, List<File>> sessions = new TreeMap<>();
+        for (Map.Entry<String, Map<String, File>> session : segments.entrySet())
+            sessions.put(session.getKey(), new ArrayList<>(session.getValue().values()));
+        return sessions;
+    }
+
+    private static void findSegments(File file, boolean named, Map<String, Map<String, File>> segments) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    findSegments(f, false, segments);
+            }
+            return;
+        }
+
+        String base = baseName(file.getName());
+        if (base == null)
+            return;
+        Matcher matcher = DATA_FILE.matcher(base);
+        // only data files from the folders, any session file that was named
+        if (!matcher.matches() && !named)
+            return;
+        String session = new File(file.getParentFile(), matcher.matches() ? matcher.group(1) : base).getPath();
+
+        Map<String, File> bySegment = segments.get(session);
+        if (bySegment == null) {
+            bySegment = new TreeMap<>();
+            segments.put(session, bySegment);
+        }
+        File other = bySegment.get(base);
+        if (other == null || !isBinary(other.getName()))
+            bySegment.put(base, file);
+    }
+
+    /*
+     * The name without the extension of a session file, null for other files
+     */
+    private static String baseName(String name) {
+        if (name.endsWith(SegmentCompactor.EXTENSION))
+            name = name.substring(0, name.length() - SegmentCompactor.EXTENSION.length());
+        if (name.endsWith(BinarySessionFormat.EXTENSION))
+            return name.substring(0, name.length() - BinarySessionFormat.EXTENSION.length());
+        if (name.endsWith(CsvSessionEncoder.EXTENSION))
+            return name.substring(0, name.length() - CsvSessionEncoder.EXTENSION.length());
+        return null;
+    }
+
+    private static boolean isBinary(String name) {
+        if (name.endsWith(SegmentCompactor.EXTENSION))
+            name = name.substring(0, name.length() - SegmentCompactor.EXTENSION.length());
+        return name.endsWith(BinarySessionFormat.EXTENSION);
+    }
+
+    private static int summarize(ForkJoinPool pool, Map<String, List<File>> sessions, File out,
+                                 boolean validate) throws IOException {
+        List<String> names = new ArrayList<>(sessions.keySet());
+        final SessionSummary[] summaries = new SessionSummary[names.size()];
+        final List<List<File>> files = new ArrayList<>(sessions.values());
+        for (int i = 0; i < summaries.length; i++)
+            summaries[i] = new SessionSummary(names.get(i));
+
+        pool.invoke(new Split(new Job() {
+            @Override
+            public void process(int i) {
+                summarize(files.get(i), summaries[i]);
+            }
+        }, 0, summaries.length));
+
+        int invalid = 0;
+        long frames = 0;
+        for (SessionSummary summary : summaries) {
+            frames += summary.getFrames();
+            if (!summary.isValid()) {
+                invalid++;
+                if (validate)
+                    System.out.println(summary.getName() + ": " + summary.describeProblems());
+            }
+        }
+
+        if (validate) {
+            System.out.println(summaries.length + " sessions, " + frames + " frames, " + invalid + " with problems");
+            return invalid > 0 ? 1 : 0;
+        }
+
+        int status = 0;
+        StringBuilder sb = new StringBuilder(SessionSummary.HEADER).append('\n');
+        for (SessionSummary summary : summaries) {
+            if (summary.getError() != null) {
+                System.err.println(summary.getError());
+                status = 1;
+            } else {
+                summary.appendCsv(sb).append('\n');
+            }
+        }
+        OutputStream os = out == null ? System.out : new FileOutputStream(new File(out, SUMMARY_FILE));
+        try {
+            os.write(sb.toString().getBytes("US-ASCII"));
+        } finally {
+            if (out != null)
+                os.close();
+            else
+                os.flush();
+        }
+        return status;
+    }
+
+    /*
+     * Run the segments of a session through its summary, in order
+     */
+    static void summarize(List<File> segments, SessionSummary summary) {
+        for (File segment : segments) {
+            summary.startSegment();
+            try {
+                MappedSessionReader reader = open(segment);
+                try {
+                    int type;
+                    while ((type = reader.nextRecord()) >= 0) {
+                        if (type == BinarySessionFormat.TYPE_GAP)
+                            summary.addGap(reader.timeMs(), reader.gapEndMs());
+                        else
+                            summary.add(reader.timeMs(), reader.frame());
+                    }
+                    summary.addSkippedLines(reader.getSkippedLines());
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                summary.setError(segment + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private static int convert(ForkJoinPool pool, Map<String, List<File>> sessions, final File out) {
+        final List<File> segments = new ArrayList<>();
+        for (List<File> files : sessions.values())
+            segments.addAll(files);
+        Collections.sort(segments);
+        final String[] results = new String[segments.size()];
+        final boolean[] failed = new boolean[segments.size()];
+
+        pool.invoke(new Split(new Job() {
+            @Override
+            public void process(int i) {
+                File in = segments.get(i);
+                boolean binary = isBinary(in.getName());
+                SessionEncoder encoder = binary ? new CsvSessionEncoder() : new BinarySessionEncoder();
+                File folder = out != null ? out : in.getParentFile();
+                File converted = new File(folder, baseName(in.getName()) + encoder.extension());
+                try {
+                    long frames = convert(in, converted, encoder);
+                    results[i] = in + " -> " + converted + ": " + frames + " frames";
+                } catch (IOException e) {
+                    results[i] = in + ": " + e.getMessage();
+                    failed[i] = true;
+                }
+            }
+        }, 0, segments.size()));
+
+        return report(results, failed);
+    }
+
+    /*
+     * Print a line per file, the failures to stderr
+     * @return the exit status
+     */
+    private static int report(String[] results, boolean[] failed) {
+        int status = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (failed[i]) {
+                System.err.println(results[i]);
+                status = 1;
+            } else {
+                System.out.println(results[i]);
+            }
+        }
+        return status;
+    }
+
+    private static int export(ForkJoinPool pool, Map<String, List<File>> sessions, final File out) {
+        final List<String> names = new ArrayList<>(sessions.keySet());
+        final List<List<File>> files = new ArrayList<>(sessions.values());
+        final String[] results = new String[names.size()];
+        final boolean[] failed = new boolean[names.size()];
+
+        pool.invoke(new Split(new Job() {
+            @Override
+            public void process(int i) {
+                File session = new File(names.get(i));
+                File folder = out != null ? out : session.getParentFile();
+                File exported = new File(folder, session.getName() + ColumnarSessionFormat.EXTENSION);
+                try {
+                    long frames = export(files.get(i), exported);
+                    results[i] = session + " -> " + exported + ": " + frames + " frames";
+                } catch (IOException e) {
+                    results[i] = session + ": " + e.getMessage();
+                    failed[i] = true;
+                }
+            }
+        }, 0, names.size()));
+
+        return report(results, failed);
+    }
+
+    /*
+     * Write the segments of a session, in order, to one columnar file
+     * @return the number of frames
+     */
+    static long export(List<File> segments, File out) throws IOException {
+        ColumnarSessionWriter writer = new ColumnarSessionWriter(out);
+        try {
+            long frames = 0;
+            for (File segment : segments) {
+                MappedSessionReader reader = open(segment);
+                try {
+                    int type;
+                    while ((type = reader.nextRecord()) >= 0) {
+                        if (type == BinarySessionFormat.TYPE_GAP) {
+                            writer.writeGap(reader.timeMs(), reader.gapEndMs());
+                        } else {
+                            writer.writeFrame(reader.timeMs(), reader.frame());
+                            frames++;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            return frames;
+        } finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * Write a session file again with the given encoder, gaps and all
+     * @return the number of frames
+     */
+    static long convert(File in, File out, SessionEncoder encoder) throws IOException {
+        MappedSessionReader reader = open(in);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 65536);
+            try {
+                encoder.writeHeader(os);
+                long frames = 0;
+                int type;
+                while ((type = reader.nextRecord()) >= 0) {
+                    if (type == BinarySessionFormat.TYPE_GAP) {
+                        encoder.writeGap(os, reader.timeMs(), reader.gapEndMs());
+                    } else {
+                        encoder.writeFrame(os, reader.timeMs(), reader.frame());
+                        frames++;
+                    }
+                }
+                return frames;
+            } finally {
+                os.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Compressed segments can't be mapped, they are read from memory
+     */
+    static MappedSessionReader open(File file) throws IOException {
+        if (!file.getName().endsWith(SegmentCompactor.EXTENSION))
+            return new MappedSessionReader(file);
+        byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE - 8, 4 * file.length() + 65536)];
+        int length = 0;
+        InputStream is = new GZIPInputStream(new FileInputStream(file), 65536);
+        try {
+            int n;
+            while ((n = is.read(bytes, length, bytes.length - length)) >= 0) {
+                length += n;
+                if (length == bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        } finally {
+            is.close();
+        }
+        return new MappedSessionReader(ByteBuffer.wrap(bytes, 0, length));
+    }
+
+    private interface Job {
+        void process(int i);
+    }
+
+    /*
+     * Runs a job on the items [from, to) by splitting the range in halves down to single
+     * items, idle workers steal the halves still waiting
+     */
+    private static class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Job mJob;
+        private final int mFrom;
+        private final int mTo;
+
+        Split(Job job, int from, int to) {
+            mJob = job;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= 1) {
+                if (mTo > mFrom)
+                    mJob.process(mFrom);
+                return;
+            }
+            int middle = (mFrom + mTo) >>> 1;
+            invokeAll(new Split(mJob, mFrom, middle), new Split(mJob, middle, mTo));
+        }
+    }
+}
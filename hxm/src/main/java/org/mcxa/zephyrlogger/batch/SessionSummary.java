@@ -0,0 +1,282 @@
+package org.mcxa.zephyrlogger.batch;
+
+import org.mcxa.zephyrlogger.hxm.HxmCrc;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+
+import java.util.Locale;
+
+/*
+ * SessionSummary
+ *
+ * Checks the frames of one recorded session and sums them up, a frame at a time in the order
+ * they were recorded, across all the segments of the session.
+ *
+ * The checks are the ones the frame reader makes on a live connection, which files written
+ * by older versions of the app or damaged since may fail: the STX, message id and DLC of
+ * the header, the ETX at the end, the CRC over the payload, and receive times that never go
+ * backwards.  Frames that fail any of the first three are counted and left out of the
+ * summary.
+ *
+ * The summary has the heart rate, HRV over every R-R interval of the session (SDNN, RMSSD
+ * and pNN50, like HrvMetrics but over the whole session instead of a window), the distance
+ * covered, and the dropouts: gaps marked in the file, and for files from before there were
+ * gap markers, frames more than DROPOUT_MS apart.  The strap keeps counting beats and
+ * distance while it is gone, so a dropout costs only the beats that had left the message by
+ * the time it came back (missedBeats), but no successive difference is taken across one.
+ *
+ * Not thread safe, a batch job has one per session.
+ */
+public class SessionSummary {
+    public static final String HEADER = "session,segments,firstTimeMs,lastTimeMs,durationS,frames," +
+            "avgHeartRate,minHeartRate,maxHeartRate,beats,meanRr,sdnn,rmssd,pnn50,distanceM," +
+            "dropouts,dropoutS,missedBeats,badHeaders,badEtx,badCrc,timeReversals,skippedLines";
+
+    // frames come once a second, three seconds without one is a dropout
+    public static final long DROPOUT_MS = 3000;
+
+    private static final int NN50_MS = 50;
+    // distance() is in 1/16 m and rolls over at 256 m
+    private static final int DISTANCE_MASK = 0xFFF;
+
+    private final String mName;
+    private int mSegments;
+
+    private final byte[] mBytes = new byte[HxmFrameReader.FRAME_LENGTH];
+    private final RrBuffer mRrBuffer = new RrBuffer(HxmFrame.HB_TIME_COUNT + 1);
+    private final RrIntervalExtractor mRrExtractor = new RrIntervalExtractor(mRrBuffer);
+
+    private long mFrames;
+    // the first frame's time and the latest time so far
+    private long mFirstTimeMs = -1;
+    private long mLastTimeMs = -1;
+
+    private long mHeartRateFrames;
+    private long mHeartRateSum;
+    private int mMinHeartRate = Integer.MAX_VALUE;
+    private int mMaxHeartRate;
+
+    // R-R sums in integer ms, the previous interval is -1 after a dropout or a break
+    private long mBeats;
+    private long mRrSum;
+    private long mRrSumSquares;
+    private long mDiffs;
+    private long mDiffSumSquares;
+    private long mNn50;
+    private int mLastRr = -1;
+
+    private long mDistance;
+    private int mLastDistance = -1;
+
+    private long mDropouts;
+    private long mDropoutMs;
+    private boolean mGapPending;
+
+    private long mBadHeaders;
+    private long mBadEtx;
+    private long mBadCrc;
+    private long mTimeReversals;
+    private long mSkippedLines;
+
+    // set instead of a summary when a segment can't be read at all
+    private String mError;
+
+    public SessionSummary(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /*
+     * The next segment of the session is about to be read
+     */
+    public void startSegment() {
+        mSegments++;
+    }
+
+    public void add(long timeMs, HxmFrame frame) {
+        if (frame.stx() != HxmFrameReader.STX || frame.msgId() != HxmFrameReader.MSGID
+                || frame.dlc() != HxmFrameReader.DLC) {
+            mBadHeaders++;
+            return;
+        }
+        if (frame.etx() != HxmFrameReader.ETX) {
+            mBadEtx++;
+            return;
+        }
+        frame.copyTo(mBytes, 0);
+        if (HxmCrc.ofFrame(mBytes, 0) != frame.crc()) {
+            mBadCrc++;
+            return;
+        }
+
+        if (mFirstTimeMs < 0) {
+            mFirstTimeMs = mLastTimeMs = timeMs;
+        } else if (timeMs < mLastTimeMs) {
+            // the times go on from the latest one, one frame out of place isn't a dropout
+            mTimeReversals++;
+        } else {
+            if (mGapPending || timeMs - mLastTimeMs > DROPOUT_MS)
+                dropout(mLastTimeMs, timeMs);
+            mLastTimeMs = timeMs;
+        }
+        mGapPending = false;
+        mFrames++;
+
+        int heartRate = frame.heartRate();
+        if (heartRate > 0) {
+            mHeartRateFrames++;
+            mHeartRateSum += heartRate;
+            mMinHeartRate = Math.min(mMinHeartRate, heartRate);
+            mMaxHeartRate = Math.max(mMaxHeartRate, heartRate);
+        }
+
+        long restarts = mRrExtractor.getRestarts();
+        int newIntervals = mRrExtractor.extract(frame, timeMs);
+        for (int i = newIntervals - 1; i >= 0; i--) {
+            long sequence = mRrBuffer.count() - 1 - i;
+            if (mRrBuffer.followsBreak(sequence))
+                mLastRr = -1;
+            addRr(mRrBuffer.get(sequence));
+        }
+
+        int distance = frame.distance();
+        // the strap was switched off and on, its distance started over
+        if (mRrExtractor.getRestarts() != restarts)
+            mLastDistance = -1;
+        if (mLastDistance >= 0)
+            mDistance += (distance - mLastDistance) & DISTANCE_MASK;
+        mLastDistance = distance;
+    }
+
+    /*
+     * A gap marked in the file, it is counted with the frame after it
+     */
+    public void addGap(long startMs, long endMs) {
+        mGapPending = true;
+    }
+
+    public void addSkippedLines(long lines) {
+        mSkippedLines += lines;
+    }
+
+    public void setError(String error) {
+        mError = error;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    /*
+     * Did every frame pass every check?
+     */
+    public boolean isValid() {
+        return mError == null && mBadHeaders == 0 && mBadEtx == 0 && mBadCrc == 0
+                && mTimeReversals == 0 && mSkippedLines == 0;
+    }
+
+    /*
+     * What failed, for a session that isn't valid
+     */
+    public String describeProblems() {
+        if (mError != null)
+            return mError;
+        StringBuilder sb = new StringBuilder();
+        appendProblem(sb, mBadHeaders, "bad headers");
+        appendProblem(sb, mBadEtx, "bad ETX");
+        appendProblem(sb, mBadCrc, "bad CRC");
+        appendProblem(sb, mTimeReversals, "time reversals");
+        appendProblem(sb, mSkippedLines, "unreadable lines");
+        return sb.toString();
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /*
+     * The summary as a line under HEADER, without the newline
+     */
+    public StringBuilder appendCsv(StringBuilder sb) {
+        long duration = mFrames > 0 ? mLastTimeMs - mFirstTimeMs : 0;
+        sb.append(mName).append(',')
+                .append(mSegments).append(',')
+                .append(mFirstTimeMs).append(',')
+                .append(mLastTimeMs).append(',')
+                .append(duration / 1000).append(',')
+                .append(mFrames).append(',');
+        if (mHeartRateFrames > 0) {
+            sb.append(format1((double) mHeartRateSum / mHeartRateFrames)).append(',')
+                    .append(mMinHeartRate).append(',')
+                    .append(mMaxHeartRate).append(',');
+        } else {
+            sb.append(",,,");
+        }
+        sb.append(mBeats).append(',');
+        if (mBeats > 0) {
+            double mean = (double) mRrSum / mBeats;
+            double variance = Math.max(0, (double) mRrSumSquares / mBeats - mean * mean);
+            sb.append(format1(mean)).append(',')
+                    .append(format1(Math.sqrt(variance))).append(',');
+        } else {
+            sb.append(",,");
+        }
+        if (mDiffs > 0) {
+            sb.append(format1(Math.sqrt((double) mDiffSumSquares / mDiffs))).append(',')
+                    .append(format1(100.0 * mNn50 / mDiffs)).append(',');
+        } else {
+            sb.append(",,");
+        }
+        sb.append(format1(mDistance / 16.0)).append(',')
+                .append(mDropouts).append(',')
+                .append(mDropoutMs / 1000).append(',')
+                .append(mRrExtractor.getMissedBeats()).append(',')
+                .append(mBadHeaders).append(',')
+                .append(mBadEtx).append(',')
+                .append(mBadCrc).append(',')
+                .append(mTimeReversals).append(',')
+                .append(mSkippedLines);
+        return sb;
+    }
+
+    private void addRr(int rr) {
+        mBeats++;
+        mRrSum += rr;
+        mRrSumSquares += (long) rr * rr;
+        if (mLastRr >= 0) {
+            int diff = rr - mLastRr;
+            mDiffs++;
+            mDiffSumSquares += (long) diff * diff;
+            if (Math.abs(diff) > NN50_MS)
+                mNn50++;
+        }
+        mLastRr = rr;
+    }
+
+    /*
+     * The strap was gone between two frames.  Its beat numbers carry on, the extractor
+     * bridges the gap, but the intervals either side of it aren't successive.
+     */
+    private void dropout(long startMs, long endMs) {
+        mDropouts++;
+        mDropoutMs += endMs - startMs;
+        mLastRr = -1;
+    }
+
+    private static void appendProblem(StringBuilder sb, long count, String what) {
+        if (count == 0)
+            return;
+        if (sb.length() > 0)
+            sb.append(", ");
+        sb.append(count).append(' ').append(what);
+    }
+
+    private static String format1(double value) {
+        return String.format(Locale.US, "%.1f", value);
+    }
+}
@@ -0,0 +1,160 @@
+package org.mcxa.zephyrlogger.chart;
+
+/*
+ * MinMaxDecimator
+ *
+ * Brings the samples of a SampleBuffer down to what a chart can show: the time window of the
+ * chart is cut into columns, one per pixel, and each column keeps only the smallest and the
+ * largest sample that fell into it.  Drawing the column ranges shows every peak and dip
+ * there is, and costs the same whether the buffer holds a minute or hours.
+ *
+ * The columns are a ring that follows the clock.  update() folds in only the samples that
+ * came since the last call, advanceTo() moves the window on, dropping the columns that fall
+ * off the old end.  Only a new resolution goes through the whole buffer again.  Nothing is
+ * allocated after setResolution().
+ *
+ * Not thread safe, it belongs to the thread that draws.
+ */
+public class MinMaxDecimator {
+    private static final int EMPTY_MIN = Integer.MAX_VALUE;
+    private static final int EMPTY_MAX = Integer.MIN_VALUE;
+
+    private final SampleBuffer mBuffer;
+
+    private int mColumns;
+    private long mColumnMs;
+    private int[] mMin = new int[0];
+    private int[] mMax = new int[0];
+
+    // absolute index (time / mColumnMs) of the newest column, the others are behind it
+    private long mLastColumn;
+    // the next sample of the buffer to fold in
+    private long mNext;
+
+    public MinMaxDecimator(SampleBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    public SampleBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /*
+     * Show windowMs in this many columns, the window is rounded to a whole number of ms per
+     * column.  Folds the whole buffer in again if anything changed.
+     */
+    public void setResolution(int columns, long windowMs) {
+        long columnMs = Math.max(1, windowMs / Math.max(columns, 1));
+        if (columns == mColumns && columnMs == mColumnMs)
+            return;
+        mColumns = columns;
+        mColumnMs = columnMs;
+        if (mMin.length < columns) {
+            mMin = new int[columns];
+            mMax = new int[columns];
+        }
+        rebuild();
+    }
+
+    public int getColumns() {
+        return mColumns;
+    }
+
+    public long getColumnMs() {
+        return mColumnMs;
+    }
+
+    /*
+     * Time at which the oldest column starts, column i starts i * getColumnMs() later
+     */
+    public long getFirstColumnTime() {
+        return (mLastColumn - mColumns + 1) * mColumnMs;
+    }
+
+    /*
+     * Does column i (0 is the oldest) have any samples?
+     */
+    public boolean hasData(int i) {
+        return mMin[slot(i)] != EMPTY_MIN;
+    }
+
+    public int getMin(int i) {
+        return mMin[slot(i)];
+    }
+
+    public int getMax(int i) {
+        return mMax[slot(i)];
+    }
+
+    /*
+     * Move the window on so its newest column is the one timeMs is in
+     */
+    public void advanceTo(long timeMs) {
+        if (mColumns == 0)
+            return;
+        long column = timeMs / mColumnMs;
+        if (column <= mLastColumn)
+            return;
+        // clear the columns that come around again, all of them if we jump a whole window
+        long from = Math.max(mLastColumn + 1, column - mColumns + 1);
+        for (long c = from; c <= column; c++) {
+            int s = floorMod(c);
+            mMin[s] = EMPTY_MIN;
+            mMax[s] = EMPTY_MAX;
+        }
+        mLastColumn = column;
+    }
+
+    /*
+     * Fold in the samples added to the buffer since the last call
+     */
+    public void update() {
+        if (mColumns == 0)
+            return;
+        synchronized (mBuffer) {
+            long end = mBuffer.end();
+            // if we fell more than a buffer behind, the oldest ones are gone
+            for (long seq = Math.max(mNext, mBuffer.start()); seq < end; seq++)
+                fold(mBuffer.getTime(seq), mBuffer.getValue(seq));
+            mNext = end;
+        }
+    }
+
+    private void rebuild() {
+        for (int s = 0; s < mColumns; s++) {
+            mMin[s] = EMPTY_MIN;
+            mMax[s] = EMPTY_MAX;
+        }
+        synchronized (mBuffer) {
+            long end = mBuffer.end();
+            mLastColumn = end > 0 ? mBuffer.getTime(end - 1) / mColumnMs : 0;
+            mNext = mBuffer.start();
+            update();
+        }
+    }
+
+    private void fold(long timeMs, int value) {
+        long column = timeMs / mColumnMs;
+        if (column > mLastColumn)
+            advanceTo(timeMs);
+        else if (column <= mLastColumn - mColumns)
+            return;
+        int s = floorMod(column);
+        if (value < mMin[s])
+            mMin[s] = value;
+        if (value > mMax[s])
+            mMax[s] = value;
+    }
+
+    private int slot(int i) {
+        return floorMod(mLastColumn - mColumns + 1 + i);
+    }
+
+    /*
+     * Ring slot of an absolute column, which is negative before the epoch
+     */
+    private int floorMod(long column) {
+        int s = (int) (column % mColumns);
+        return s < 0 ? s + mColumns : s;
+    }
+}
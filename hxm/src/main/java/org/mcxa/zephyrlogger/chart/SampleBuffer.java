@@ -0,0 +1,61 @@
+package org.mcxa.zephyrlogger.chart;
+
+/*
+ * SampleBuffer
+ *
+ * A ring of the most recent samples of one value for a chart, each a time in ms and an int,
+ * kept in two plain arrays so hours of them cost no more than the arrays.  Like RrBuffer,
+ * every sample gets a sequence number (0 for the first one) so a reader can pick up only the
+ * samples it hasn't seen.
+ *
+ * One thread adds, others read.  Every method is synchronized on the buffer, a reader that
+ * goes through a lot of samples at once holds the lock for all of them, see MinMaxDecimator.
+ */
+public class SampleBuffer {
+    private final long[] mTimes;
+    private final int[] mValues;
+    private final int mMask;
+    private long mCount;
+
+    /*
+     * @param capacity  number of samples kept, rounded up to a power of two
+     */
+    public SampleBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mTimes = new long[size];
+        mValues = new int[size];
+        mMask = size - 1;
+    }
+
+    public synchronized void add(long timeMs, int value) {
+        int i = (int) (mCount & mMask);
+        mTimes[i] = timeMs;
+        mValues[i] = value;
+        mCount++;
+    }
+
+    /*
+     * Sequence number the next sample will get
+     */
+    public synchronized long end() {
+        return mCount;
+    }
+
+    /*
+     * Sequence number of the oldest sample still in the buffer
+     */
+    public synchronized long start() {
+        return Math.max(0, mCount - mTimes.length);
+    }
+
+    /*
+     * @param sequence  the sample, from start() up to end()
+     */
+    public synchronized long getTime(long sequence) {
+        return mTimes[(int) (sequence & mMask)];
+    }
+
+    public synchronized int getValue(long sequence) {
+        return mValues[(int) (sequence & mMask)];
+    }
+}
@@ -0,0 +1,231 @@
+package org.mcxa.zephyrlogger.history;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.mcxa.zephyrlogger.history.HistoryStore.METRICS;
+
+/*
+ * ColumnChunk
+ *
+ * The frames of one strap in one partition of time (an hour, see HistoryStore), kept column
+ * by column: the receive times, then a column for each metric.  A chart of one metric reads
+ * the times and that column and nothing else.
+ *
+ * Stored as a file, big endian:
+ *
+ *      magic "ZTSC" | version (u16) | metrics (u16) | start in ms since the epoch (i64) |
+ *      rows (i32) | time column | a column per metric
+ *
+ * The time column has each frame's time as ms after the start (i32).  The metric columns
+ * are heart rate (u8), R-R (u16), speed (u16), distance (u16) and battery (u8), in the order
+ * and with the meaning of the metrics of HistoryStore.  Every column has a fixed width, so
+ * where each one starts follows from the number of rows.
+ */
+public class ColumnChunk {
+    public static final byte[] MAGIC = {'Z', 'T', 'S', 'C'};
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 20;
+
+    // bytes per value of each metric column
+    private static final int[] WIDTH = {1, 2, 2, 2, 1};
+    private static final int TIME_WIDTH = 4;
+    private static final String PART_EXTENSION = ".part";
+
+    private final long mStart;
+    private int mRows;
+    private int[] mTime;
+    private final int[][] mValues = new int[METRICS][];
+
+    public ColumnChunk(long start) {
+        this(start, 256);
+    }
+
+    private ColumnChunk(long start, int capacity) {
+        mStart = start;
+        mTime = new int[capacity];
+        for (int m = 0; m < METRICS; m++)
+            mValues[m] = new int[capacity];
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public int size() {
+        return mRows;
+    }
+
+    /*
+     * Receive time of a row, in ms since the epoch
+     */
+    public long getTime(int row) {
+        return mStart + mTime[row];
+    }
+
+    public int get(int metric, int row) {
+        return mValues[metric][row];
+    }
+
+    /*
+     * Add a row
+     * @param values  a value for every metric, see HistoryStore
+     */
+    public void add(long timeMs, int[] values) {
+        if (mRows == mTime.length) {
+            int capacity = mRows * 2;
+            mTime = Arrays.copyOf(mTime, capacity);
+            for (int m = 0; m < METRICS; m++)
+                mValues[m] = Arrays.copyOf(mValues[m], capacity);
+        }
+        mTime[mRows] = (int) (timeMs - mStart);
+        for (int m = 0; m < METRICS; m++)
+            mValues[m][mRows] = values[m];
+        mRows++;
+    }
+
+    /*
+     * Write the chunk to a file, replacing it as a whole: the new contents go to <file>.part,
+     * are synced and then renamed over the file, so a reader sees the old chunk or the new one
+     */
+    public void write(File file) throws IOException {
+        File part = new File(file.getPath() + PART_EXTENSION);
+        FileOutputStream stream = new FileOutputStream(part);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 16384));
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(METRICS);
+            out.writeLong(mStart);
+            out.writeInt(mRows);
+            for (int i = 0; i < mRows; i++)
+                out.writeInt(mTime[i]);
+            for (int m = 0; m < METRICS; m++) {
+                int[] column = mValues[m];
+                for (int i = 0; i < mRows; i++) {
+                    if (WIDTH[m] == 1)
+                        out.writeByte(column[i]);
+                    else
+                        out.writeShort(column[i]);
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            stream.close();
+            part.delete();
+            throw e;
+        }
+        stream.close();
+        if (!part.renameTo(file) && !(file.delete() && part.renameTo(file))) {
+            part.delete();
+            throw new IOException("could not rename " + part + " to " + file);
+        }
+    }
+
+    /*
+     * Read a whole chunk back
+     */
+    public static ColumnChunk read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            Header header = readHeader(in, file);
+            ColumnChunk chunk = new ColumnChunk(header.start, Math.max(header.rows, 1));
+            chunk.mRows = header.rows;
+            byte[] bytes = new byte[(int) (in.length() - HEADER_LENGTH)];
+            in.readFully(bytes);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+            for (int i = 0; i < chunk.mRows; i++)
+                chunk.mTime[i] = data.readInt();
+            for (int m = 0; m < METRICS; m++) {
+                for (int i = 0; i < chunk.mRows; i++)
+                    chunk.mValues[m][i] = WIDTH[m] == 1 ? data.readUnsignedByte() : data.readUnsignedShort();
+            }
+            return chunk;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Read the receive times of a chunk without the rest of it, in ms since the epoch
+     */
+    public static long[] readTimes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            Header header = readHeader(in, file);
+            byte[] bytes = new byte[header.rows * TIME_WIDTH];
+            in.readFully(bytes);
+            long[] times = new long[header.rows];
+            for (int i = 0, p = 0; i < times.length; i++, p += TIME_WIDTH) {
+                int offset = (bytes[p] & 0xFF) << 24 | (bytes[p + 1] & 0xFF) << 16
+                        | (bytes[p + 2] & 0xFF) << 8 | (bytes[p + 3] & 0xFF);
+                times[i] = header.start + offset;
+            }
+            return times;
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Read the column of one metric without the rest of the chunk
+     */
+    public static int[] readColumn(File file, int metric) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            Header header = readHeader(in, file);
+            int rows = header.rows;
+            long offset = HEADER_LENGTH + (long) rows * TIME_WIDTH;
+            for (int m = 0; m < metric; m++)
+                offset += (long) rows * WIDTH[m];
+            in.seek(offset);
+            int width = WIDTH[metric];
+            byte[] bytes = new byte[rows * width];
+            in.readFully(bytes);
+            int[] values = new int[rows];
+            for (int i = 0, p = 0; i < rows; i++, p += width)
+                values[i] = width == 1 ? bytes[p] & 0xFF : (bytes[p] & 0xFF) << 8 | (bytes[p + 1] & 0xFF);
+            return values;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Header {
+        long start;
+        int rows;
+    }
+
+    /*
+     * Check the header, and that the file is long enough for the rows it announces
+     */
+    private static Header readHeader(RandomAccessFile in, File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException(file + " is not a history chunk");
+        int version = in.readUnsignedShort();
+        int metrics = in.readUnsignedShort();
+        if (version > VERSION || metrics != METRICS)
+            throw new IOException(file + " is a version " + version + " chunk with " + metrics + " metrics");
+        long start = in.readLong();
+        int rows = in.readInt();
+        long length = HEADER_LENGTH + (long) rows * TIME_WIDTH;
+        for (int m = 0; m < METRICS; m++)
+            length += (long) rows * WIDTH[m];
+        if (rows < 0 || in.length() < length)
+            throw new IOException(file + " is cut short");
+        Header header = new Header();
+        header.start = start;
+        header.rows = rows;
+        return header;
+    }
+}
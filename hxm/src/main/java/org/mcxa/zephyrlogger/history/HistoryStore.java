@@ -0,0 +1,269 @@
+package org.mcxa.zephyrlogger.history;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/*
+ * HistoryStore
+ *
+ * Long term history of every strap, kept on the phone so weeks of it can be charted without
+ * going through the session files.  Each strap (by device name) has a folder of its own with
+ *
+ *  - the frames themselves, in ColumnChunks of an hour each: raw_<hour>.chunk
+ *  - rollups of the frames at three levels, seconds, minutes and hours: for every bucket of
+ *    that length with any frames in it, the count, minimum, maximum and sum of every metric
+ *    (see RollupBucket): <level>_<partition>.roll
+ *
+ * The metrics are the heart rate (bpm), R-R (ms: in the rollups every interval, in the chunks
+ * the mean of the intervals that were new in the frame, 0 if there were none), speed (1/256
+ * m/s), distance (1/16 m covered since the frame before) and battery (%).
+ *
+ * A rollup file holds the records of up to 65536 buckets of its level in time order, about
+ * 18 hours of seconds, 45 days of minutes or 7 years of hours.  A query finds its first
+ * record with a binary search, so a month of minutes is read straight off the disk with
+ * nothing else around it.  The HistoryWriter of each strap keeps the rollups up to date
+ * as the frames come in, prune() deletes whatever is older than its level is kept for.
+ */
+public class HistoryStore {
+    public static final int HEART_RATE = 0;
+    public static final int RR = 1;
+    public static final int SPEED = 2;
+    public static final int DISTANCE = 3;
+    public static final int BATTERY = 4;
+    public static final int METRICS = 5;
+
+    public static final int LEVEL_SECOND = 0;
+    public static final int LEVEL_MINUTE = 1;
+    public static final int LEVEL_HOUR = 2;
+    public static final int LEVELS = 3;
+
+    public static final long[] BUCKET_MS = {1000, 60 * 1000, 60 * 60 * 1000};
+
+    static final long CHUNK_MS = 60 * 60 * 1000;
+    static final long PARTITION_BUCKETS = 65536;
+
+    private static final String[] LEVEL_NAMES = {"1s", "1m", "1h"};
+    private static final String ROLLUP_EXTENSION = ".roll";
+    private static final String CHUNK_PREFIX = "raw_";
+    private static final String CHUNK_EXTENSION = ".chunk";
+    private static final int READ_RECORDS = 256;
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    private final File mFolder;
+
+    // how long the chunks and each level of rollups are kept
+    private long mChunkRetentionMs = 14 * DAY_MS;
+    private final long[] mRetentionMs = {2 * DAY_MS, 400 * DAY_MS, Long.MAX_VALUE};
+
+    public HistoryStore(File folder) {
+        mFolder = folder;
+    }
+
+    /*
+     * How long to keep the chunks and the rollups of each level, Long.MAX_VALUE for ever.
+     * By default chunks are kept two weeks, seconds two days, minutes a bit over a year and
+     * hours for ever.
+     */
+    public HistoryStore setRetention(long chunkMs, long secondsMs, long minutesMs, long hoursMs) {
+        mChunkRetentionMs = chunkMs;
+        mRetentionMs[LEVEL_SECOND] = secondsMs;
+        mRetentionMs[LEVEL_MINUTE] = minutesMs;
+        mRetentionMs[LEVEL_HOUR] = hoursMs;
+        return this;
+    }
+
+    /*
+     * The straps there is history of
+     */
+    public String[] getDevices() {
+        File[] folders = mFolder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        if (folders == null)
+            return new String[0];
+        String[] devices = new String[folders.length];
+        for (int i = 0; i < folders.length; i++)
+            devices[i] = folders[i].getName();
+        return devices;
+    }
+
+    /*
+     * Start adding to the history of a strap, only one writer should be open for it at a time
+     * @param device  the device name, it has to be usable as a file name
+     */
+    public HistoryWriter openWriter(String device) throws IOException {
+        File folder = new File(mFolder, device);
+        if (!folder.exists() && !folder.mkdirs())
+            throw new IOException("Could not create directory " + folder);
+        return new HistoryWriter(this, folder);
+    }
+
+    /*
+     * The level with the fewest buckets that still has no more than maxPoints of them over a
+     * span of time, for picking what to chart
+     */
+    public static int levelFor(long spanMs, int maxPoints) {
+        for (int level = LEVEL_SECOND; level < LEVEL_HOUR; level++) {
+            if (spanMs / BUCKET_MS[level] <= maxPoints)
+                return level;
+        }
+        return LEVEL_HOUR;
+    }
+
+    /*
+     * The rollups of a strap at one level, for every bucket that overlaps fromMs to toMs.  The
+     * writer adds buckets as they are finished, so the one that is still filling isn't there
+     * yet.
+     */
+    public Series query(String device, int level, long fromMs, long toMs) throws IOException {
+        Series series = new Series();
+        File folder = new File(mFolder, device);
+        long bucketMs = BUCKET_MS[level];
+        long partitionMs = bucketMs * PARTITION_BUCKETS;
+        long first = Math.max(0, fromMs - bucketMs + 1);
+
+        RollupBucket bucket = new RollupBucket();
+        RollupBucket pending = new RollupBucket();
+        boolean hasPending = false;
+        byte[] bytes = new byte[READ_RECORDS * RollupBucket.RECORD_LENGTH];
+        for (long partition = first / partitionMs; partition <= toMs / partitionMs; partition++) {
+            File file = rollupFile(folder, level, partition);
+            if (!file.exists())
+                continue;
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                long records = in.length() / RollupBucket.RECORD_LENGTH;
+                long i = search(in, records, first);
+                while (i < records) {
+                    int n = (int) Math.min(READ_RECORDS, records - i);
+                    in.seek(i * RollupBucket.RECORD_LENGTH);
+                    in.readFully(bytes, 0, n * RollupBucket.RECORD_LENGTH);
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    for (int r = 0; r < n; r++) {
+                        bucket.decode(buffer);
+                        if (bucket.getStart() > toMs) {
+                            i = records;
+                            break;
+                        }
+                        // a bucket can be written more than once when the writer was closed in the middle of it
+                        if (hasPending && bucket.getStart() == pending.getStart()) {
+                            pending.merge(bucket);
+                        } else {
+                            if (hasPending)
+                                series.add(pending);
+                            RollupBucket swap = pending;
+                            pending = bucket;
+                            bucket = swap;
+                            hasPending = true;
+                        }
+                    }
+                    i += n;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (hasPending)
+            series.add(pending);
+        return series;
+    }
+
+    /*
+     * The chunk of frames of a strap from the hour that timeMs is in
+     * @return null if there were no frames in that hour
+     */
+    public ColumnChunk readChunk(String device, long timeMs) throws IOException {
+        File file = chunkFile(new File(mFolder, device), timeMs - timeMs % CHUNK_MS);
+        return file.exists() ? ColumnChunk.read(file) : null;
+    }
+
+    /*
+     * Delete the chunks and rollups that are past their retention
+     * @return the number of files deleted
+     */
+    public int prune(long nowMs) {
+        int deleted = 0;
+        for (String device : getDevices()) {
+            File[] files = new File(mFolder, device).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                long end = partitionEnd(file.getName());
+                if (end < 0)
+                    continue;
+                long retention = retentionOf(file.getName());
+                if (retention != Long.MAX_VALUE && end < nowMs - retention && file.delete())
+                    deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    File rollupFile(File folder, int level, long partition) {
+        return new File(folder, LEVEL_NAMES[level] + "_" + partition + ROLLUP_EXTENSION);
+    }
+
+    File chunkFile(File folder, long start) {
+        return new File(folder, CHUNK_PREFIX + start / CHUNK_MS + CHUNK_EXTENSION);
+    }
+
+    /*
+     * Index of the first record that starts at or after a time
+     */
+    private static long search(RandomAccessFile in, long records, long timeMs) throws IOException {
+        long lo = 0, hi = records;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            in.seek(mid * RollupBucket.RECORD_LENGTH);
+            if (in.readLong() < timeMs)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * When the time a file covers ends, from its name
+     * @return -1 if it isn't one of ours
+     */
+    private static long partitionEnd(String name) {
+        try {
+            if (name.startsWith(CHUNK_PREFIX) && name.endsWith(CHUNK_EXTENSION)) {
+                long hour = Long.parseLong(name.substring(CHUNK_PREFIX.length(), name.length() - CHUNK_EXTENSION.length()));
+                return (hour + 1) * CHUNK_MS;
+            }
+            int level = levelOf(name);
+            if (level >= 0) {
+                long partition = Long.parseLong(name.substring(LEVEL_NAMES[level].length() + 1,
+                        name.length() - ROLLUP_EXTENSION.length()));
+                return (partition + 1) * BUCKET_MS[level] * PARTITION_BUCKETS;
+            }
+        } catch (NumberFormatException e) {
+            // not one of ours
+        }
+        return -1;
+    }
+
+    private long retentionOf(String name) {
+        int level = levelOf(name);
+        return level >= 0 ? mRetentionMs[level] : mChunkRetentionMs;
+    }
+
+    private static int levelOf(String name) {
+        if (!name.endsWith(ROLLUP_EXTENSION))
+            return -1;
+        for (int level = 0; level < LEVELS; level++) {
+            if (name.startsWith(LEVEL_NAMES[level] + "_"))
+                return level;
+        }
+        return -1;
+    }
+}
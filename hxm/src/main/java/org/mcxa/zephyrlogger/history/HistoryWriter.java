@@ -0,0 +1,201 @@
+package org.mcxa.zephyrlogger.history;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.mcxa.zephyrlogger.history.HistoryStore.*;
+
+/*
+ * HistoryWriter
+ *
+ * Adds the frames of one strap to its history in a HistoryStore.  Every frame goes into the
+ * chunk of its hour and into the current bucket of each rollup level, a bucket is written to
+ * its rollup file once a frame from a later bucket comes along.  So the rollups are always
+ * complete up to the last bucket and no query ever has to go back to the frames.
+ *
+ * Chunks and rollups are written at checkpoints, once a minute and on close(), so a process
+ * that dies loses the last minute at most.  A frame whose time is before the current bucket
+ * (the phone's clock was set back) is counted in the current bucket.
+ *
+ * Not thread safe, one thread adds all the frames.
+ */
+public class HistoryWriter implements Closeable {
+    private static final long CHECKPOINT_INTERVAL_MS = 60000;
+
+    // distance is counted in 1/16 m and rolls over at 256 m
+    private static final int DISTANCE_MASK = 0xFFF;
+
+    private final HistoryStore mStore;
+    private final File mFolder;
+
+    private final RrIntervalExtractor mRrExtractor = new RrIntervalExtractor(new RrBuffer(64));
+    private final int[] mValues = new int[METRICS];
+    private int mLastDistance = -1;
+
+    private final RollupBucket[] mBuckets = new RollupBucket[LEVELS];
+    private final OutputStream[] mOut = new OutputStream[LEVELS];
+    private final long[] mPartition = new long[LEVELS];
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RollupBucket.RECORD_LENGTH);
+
+    private ColumnChunk mChunk;
+    private boolean mChunkDirty;
+    private long mLastCheckpoint;
+
+    HistoryWriter(HistoryStore store, File folder) {
+        mStore = store;
+        mFolder = folder;
+        for (int level = 0; level < LEVELS; level++) {
+            mBuckets[level] = new RollupBucket();
+            mBuckets[level].clear(Long.MIN_VALUE);
+        }
+        mLastCheckpoint = System.currentTimeMillis();
+    }
+
+    public void add(long timeMs, HxmFrame frame) throws IOException {
+        RrBuffer rr = mRrExtractor.getBuffer();
+        long restarts = mRrExtractor.getRestarts();
+        int newIntervals = mRrExtractor.extract(frame, timeMs);
+        int distance = frame.distance();
+        // the distance carries on across a lost connection, only a strap switched off and on starts it again
+        if (mRrExtractor.getRestarts() != restarts)
+            mLastDistance = -1;
+
+        mValues[HEART_RATE] = frame.heartRate();
+        mValues[RR] = rr.mean(newIntervals);
+        mValues[SPEED] = frame.speed();
+        mValues[DISTANCE] = mLastDistance < 0 ? 0 : (distance - mLastDistance) & DISTANCE_MASK;
+        mValues[BATTERY] = frame.batteryIndicator();
+
+        for (int level = 0; level < LEVELS; level++) {
+            RollupBucket bucket = mBuckets[level];
+            long start = timeMs - timeMs % BUCKET_MS[level];
+            if (start > bucket.getStart()) {
+                if (!bucket.isEmpty())
+                    writeBucket(level);
+                bucket.clear(start);
+            }
+            bucket.add(HEART_RATE, mValues[HEART_RATE]);
+            bucket.add(SPEED, mValues[SPEED]);
+            bucket.add(BATTERY, mValues[BATTERY]);
+            if (mLastDistance >= 0)
+                bucket.add(DISTANCE, mValues[DISTANCE]);
+            for (int i = newIntervals - 1; i >= 0; i--)
+                bucket.add(RR, rr.latest(i));
+        }
+        mLastDistance = distance;
+
+        long chunkStart = timeMs - timeMs % CHUNK_MS;
+        if (mChunk == null || chunkStart > mChunk.getStart()) {
+            if (mChunkDirty)
+                mChunk.write(mStore.chunkFile(mFolder, mChunk.getStart()));
+            mChunk = openChunk(chunkStart);
+            mChunkDirty = false;
+        }
+        mChunk.add(timeMs, mValues);
+        mChunkDirty = true;
+
+        flushIfDue();
+    }
+
+    /*
+     * Checkpoint if it has been a while, to be called when no frames are coming in
+     */
+    public void flushIfDue() throws IOException {
+        if (System.currentTimeMillis() - mLastCheckpoint >= CHECKPOINT_INTERVAL_MS)
+            flush();
+    }
+
+    /*
+     * Write out the finished buckets and the chunk as it is
+     */
+    public void flush() throws IOException {
+        for (OutputStream out : mOut) {
+            if (out != null)
+                out.flush();
+        }
+        if (mChunkDirty) {
+            mChunk.write(mStore.chunkFile(mFolder, mChunk.getStart()));
+            mChunkDirty = false;
+        }
+        mLastCheckpoint = System.currentTimeMillis();
+    }
+
+    /*
+     * Write out everything, the buckets that aren't finished too.  A writer opened later in
+     * the same bucket writes it again, queries merge the two.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            for (int level = 0; level < LEVELS; level++) {
+                if (!mBuckets[level].isEmpty())
+                    writeBucket(level);
+                mBuckets[level].clear(Long.MIN_VALUE);
+            }
+            flush();
+        } finally {
+            for (int level = 0; level < LEVELS; level++) {
+                if (mOut[level] != null) {
+                    mOut[level].close();
+                    mOut[level] = null;
+                }
+            }
+        }
+    }
+
+    private void writeBucket(int level) throws IOException {
+        RollupBucket bucket = mBuckets[level];
+        long partition = bucket.getStart() / (BUCKET_MS[level] * PARTITION_BUCKETS);
+        if (mOut[level] == null || mPartition[level] != partition) {
+            if (mOut[level] != null)
+                mOut[level].close();
+            mOut[level] = openRollup(mStore.rollupFile(mFolder, level, partition));
+            mPartition[level] = partition;
+        }
+        mRecord.clear();
+        bucket.encode(mRecord);
+        mOut[level].write(mRecord.array(), 0, RollupBucket.RECORD_LENGTH);
+    }
+
+    /*
+     * Open a rollup file to append to, cutting off a record left half written by a process
+     * that died, the records after it would be out of step otherwise
+     */
+    private static OutputStream openRollup(File file) throws IOException {
+        if (file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                long length = raf.length();
+                raf.setLength(length - length % RollupBucket.RECORD_LENGTH);
+            } finally {
+                raf.close();
+            }
+        }
+        return new BufferedOutputStream(new FileOutputStream(file, true), 8192);
+    }
+
+    /*
+     * Carry on with the chunk of an hour there are frames of already, or start it
+     */
+    private ColumnChunk openChunk(long start) {
+        File file = mStore.chunkFile(mFolder, start);
+        if (file.exists()) {
+            try {
+                return ColumnChunk.read(file);
+            } catch (IOException e) {
+                // cut short or not ours, it gets written over
+            }
+        }
+        return new ColumnChunk(start);
+    }
+}
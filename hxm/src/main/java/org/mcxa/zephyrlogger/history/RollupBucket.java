@@ -0,0 +1,132 @@
+package org.mcxa.zephyrlogger.history;
+
+import java.nio.ByteBuffer;
+
+import static org.mcxa.zephyrlogger.history.HistoryStore.METRICS;
+
+/*
+ * RollupBucket
+ *
+ * The frames of one strap that fell into one bucket of a rollup level (a second, a minute or
+ * an hour, see HistoryStore): for every metric the number of values, their minimum, maximum
+ * and sum.  Values are added one at a time as frames come in, so a bucket is always up to
+ * date, and two buckets for the same time can be merged without losing anything.
+ *
+ * Stored as a fixed size record, big endian:
+ *
+ *      start (i64) | for every metric: count (i32) | min (u16) | max (u16) | sum (i64)
+ */
+public class RollupBucket {
+    public static final int RECORD_LENGTH = 8 + METRICS * 16;
+
+    private long mStart;
+    private final int[] mCount = new int[METRICS];
+    private final int[] mMin = new int[METRICS];
+    private final int[] mMax = new int[METRICS];
+    private final long[] mSum = new long[METRICS];
+
+    /*
+     * Empty the bucket and move it to a new start time
+     */
+    public void clear(long start) {
+        mStart = start;
+        for (int m = 0; m < METRICS; m++) {
+            mCount[m] = 0;
+            mMin[m] = 0;
+            mMax[m] = 0;
+            mSum[m] = 0;
+        }
+    }
+
+    /*
+     * @param value  0 up to 65535
+     */
+    public void add(int metric, int value) {
+        if (mCount[metric] == 0) {
+            mMin[metric] = value;
+            mMax[metric] = value;
+        } else {
+            mMin[metric] = Math.min(mMin[metric], value);
+            mMax[metric] = Math.max(mMax[metric], value);
+        }
+        mCount[metric]++;
+        mSum[metric] += value;
+    }
+
+    /*
+     * Fold another bucket into this one
+     */
+    public void merge(RollupBucket other) {
+        for (int m = 0; m < METRICS; m++) {
+            if (other.mCount[m] == 0)
+                continue;
+            if (mCount[m] == 0) {
+                mMin[m] = other.mMin[m];
+                mMax[m] = other.mMax[m];
+            } else {
+                mMin[m] = Math.min(mMin[m], other.mMin[m]);
+                mMax[m] = Math.max(mMax[m], other.mMax[m]);
+            }
+            mCount[m] += other.mCount[m];
+            mSum[m] += other.mSum[m];
+        }
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    /*
+     * Has any value been added, for any metric?
+     */
+    public boolean isEmpty() {
+        for (int m = 0; m < METRICS; m++) {
+            if (mCount[m] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    public int getCount(int metric) {
+        return mCount[metric];
+    }
+
+    public int getMin(int metric) {
+        return mMin[metric];
+    }
+
+    public int getMax(int metric) {
+        return mMax[metric];
+    }
+
+    public long getSum(int metric) {
+        return mSum[metric];
+    }
+
+    /*
+     * @return the mean, 0 if there are no values
+     */
+    public double getAverage(int metric) {
+        return mCount[metric] == 0 ? 0 : (double) mSum[metric] / mCount[metric];
+    }
+
+    public void encode(ByteBuffer out) {
+        out.putLong(mStart);
+        for (int m = 0; m < METRICS; m++) {
+            out.putInt(mCount[m]);
+            out.putShort((short) mMin[m]);
+            out.putShort((short) mMax[m]);
+            out.putLong(mSum[m]);
+        }
+    }
+
+    public void decode(ByteBuffer in) {
+        mStart = in.getLong();
+        for (int m = 0; m < METRICS; m++) {
+            mCount[m] = in.getInt();
+            mMin[m] = in.getShort() & 0xFFFF;
+            mMax[m] = in.getShort() & 0xFFFF;
+            mSum[m] = in.getLong();
+        }
+    }
+}
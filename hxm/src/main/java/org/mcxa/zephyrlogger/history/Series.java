@@ -0,0 +1,79 @@
+package org.mcxa.zephyrlogger.history;
+
+import java.util.Arrays;
+
+import static org.mcxa.zephyrlogger.history.HistoryStore.METRICS;
+
+/*
+ * Series
+ *
+ * The rollup buckets a HistoryStore query found, in time order, kept column by column so a
+ * chart can go straight through one metric.
+ */
+public class Series {
+    private int mSize;
+    private long[] mStart = new long[64];
+    private final int[][] mCount = new int[METRICS][64];
+    private final int[][] mMin = new int[METRICS][64];
+    private final int[][] mMax = new int[METRICS][64];
+    private final long[][] mSum = new long[METRICS][64];
+
+    void add(RollupBucket bucket) {
+        if (mSize == mStart.length) {
+            int capacity = mSize * 2;
+            mStart = Arrays.copyOf(mStart, capacity);
+            for (int m = 0; m < METRICS; m++) {
+                mCount[m] = Arrays.copyOf(mCount[m], capacity);
+                mMin[m] = Arrays.copyOf(mMin[m], capacity);
+                mMax[m] = Arrays.copyOf(mMax[m], capacity);
+                mSum[m] = Arrays.copyOf(mSum[m], capacity);
+            }
+        }
+        mStart[mSize] = bucket.getStart();
+        for (int m = 0; m < METRICS; m++) {
+            mCount[m][mSize] = bucket.getCount(m);
+            mMin[m][mSize] = bucket.getMin(m);
+            mMax[m][mSize] = bucket.getMax(m);
+            mSum[m][mSize] = bucket.getSum(m);
+        }
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /*
+     * Start of a bucket, in ms since the epoch
+     */
+    public long getStart(int i) {
+        return mStart[i];
+    }
+
+    /*
+     * Number of values of a metric in a bucket, 0 if it had none
+     */
+    public int getCount(int metric, int i) {
+        return mCount[metric][i];
+    }
+
+    public int getMin(int metric, int i) {
+        return mMin[metric][i];
+    }
+
+    public int getMax(int metric, int i) {
+        return mMax[metric][i];
+    }
+
+    public long getSum(int metric, int i) {
+        return mSum[metric][i];
+    }
+
+    /*
+     * @return the mean, 0 if there were no values
+     */
+    public double getAverage(int metric, int i) {
+        int count = mCount[metric][i];
+        return count == 0 ? 0 : (double) mSum[metric][i] / count;
+    }
+}
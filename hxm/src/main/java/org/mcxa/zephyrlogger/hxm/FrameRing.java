@@ -0,0 +1,143 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * FrameRing
+ *
+ * Hands frames from the thread reading a strap to the thread that deals with them, without
+ * locks and without allocating anything once it is built.  The frames go into a ring of
+ * preallocated slots in one byte array, each slot with a timestamp (the time the frame was
+ * read, say), and the consumer takes whatever has piled up in one go with drain().
+ *
+ * There must be exactly one producer thread and one consumer thread at any time, nothing
+ * else is safe.  The producer either reads straight into the slot it gets from claim() and
+ * then calls publish(), or copies a frame in with offer().  When the ring is full the newest
+ * frame is the one dropped, and counted in getOverruns(): a producer blocked on a full ring
+ * would only move the backlog into the socket.
+ *
+ * Each side only ever writes its own position, the producer the tail and the consumer the
+ * head.  The producer keeps the last head it saw and only looks at the real one again when
+ * the ring seems full, so the two hardly touch each other's cache lines.
+ */
+public class FrameRing {
+    /*
+     * Gets the frames drained from the ring, on the consumer's thread
+     */
+    public interface Consumer {
+        /*
+         * @param buffer  the ring's array, the frame is at offset, only valid until the call returns
+         */
+        void onFrame(byte[] buffer, int offset, long timestamp);
+    }
+
+    private final int mFrameLength;
+    private final int mCapacity;
+    private final int mMask;
+    private final byte[] mFrames;
+    private final long[] mTimestamps;
+
+    // the next slot to be published, written by the producer only
+    private final AtomicLong mTail = new AtomicLong();
+    // the next slot to be drained, written by the consumer only
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+
+    // only touched by the producer
+    private long mProducerTail;
+    private long mCachedHead;
+
+    /*
+     * @param capacity     frames the ring holds, rounded up to a power of two
+     * @param frameLength  bytes in a frame
+     */
+    public FrameRing(int capacity, int frameLength) {
+        mCapacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mMask = mCapacity - 1;
+        mFrameLength = frameLength;
+        mFrames = new byte[mCapacity * frameLength];
+        mTimestamps = new long[mCapacity];
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /*
+     * The array the slots are in, for reading a frame straight into the slot from claim()
+     */
+    public byte[] buffer() {
+        return mFrames;
+    }
+
+    /*
+     * Producer: the next free slot, to be filled and then published
+     * @return the offset of the slot in buffer(), -1 if the ring is full
+     */
+    public int claim() {
+        if (mProducerTail - mCachedHead == mCapacity) {
+            mCachedHead = mHead.get();
+            if (mProducerTail - mCachedHead == mCapacity)
+                return -1;
+        }
+        return (int) (mProducerTail & mMask) * mFrameLength;
+    }
+
+    /*
+     * Producer: hand the slot from the last claim() over to the consumer
+     */
+    public void publish(long timestamp) {
+        mTimestamps[(int) (mProducerTail & mMask)] = timestamp;
+        mProducerTail++;
+        // a volatile write, the slot and its timestamp are visible before the new tail is
+        mTail.set(mProducerTail);
+    }
+
+    /*
+     * Producer: copy a frame into the ring
+     * @return false if the ring was full and the frame was dropped
+     */
+    public boolean offer(byte[] frame, int offset, long timestamp) {
+        int slot = claim();
+        if (slot < 0) {
+            mOverruns.incrementAndGet();
+            return false;
+        }
+        System.arraycopy(frame, offset, mFrames, slot, mFrameLength);
+        publish(timestamp);
+        return true;
+    }
+
+    /*
+     * Consumer: pass every frame published so far to the consumer, oldest first.  The slots
+     * are free again once this returns.
+     * @return the number of frames drained
+     */
+    public int drain(Consumer consumer) {
+        long head = mHead.get();
+        long tail = mTail.get();
+        for (long i = head; i < tail; i++) {
+            int slot = (int) (i & mMask);
+            consumer.onFrame(mFrames, slot * mFrameLength, mTimestamps[slot]);
+        }
+        if (tail != head)
+            mHead.lazySet(tail);
+        return (int) (tail - head);
+    }
+
+    /*
+     * Frames waiting to be drained, from any thread
+     */
+    public int size() {
+        // the head first, it can only be behind the tail read after it
+        long head = mHead.get();
+        return (int) (mTail.get() - head);
+    }
+
+    /*
+     * Frames dropped by offer() because the ring was full, from any thread
+     */
+    public long getOverruns() {
+        return mOverruns.get();
+    }
+}
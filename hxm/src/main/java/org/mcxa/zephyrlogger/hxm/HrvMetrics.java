@@ -0,0 +1,208 @@
+package org.mcxa.zephyrlogger.hxm;
+
+/*
+ * HrvMetrics
+ *
+ * Heart rate variability statistics over a sliding window of R-R intervals, kept up to
+ * date one beat at a time:
+ *
+ *  - SDNN, the standard deviation of the intervals
+ *  - RMSSD, the root mean square of the differences between successive intervals
+ *  - pNN50, the percentage of successive differences larger than 50 ms
+ *  - the shortest and longest interval
+ *
+ * The window covers the most recent windowMs worth of beats (and never more than maxBeats
+ * of them).  Adding a beat and dropping the ones that fall out of the window only adjusts
+ * running sums, and min/max come from monotonic queues, so each beat costs O(1) amortized
+ * no matter how long the window is.  The sums are kept in integer milliseconds, they never
+ * drift no matter how long the engine runs.
+ *
+ * Two intervals with a break between them (beats that went missing, see RrBuffer) aren't
+ * successive, RMSSD and pNN50 only go over the pairs of intervals that are.
+ *
+ * Not thread safe.
+ */
+public class HrvMetrics {
+    private static final int NN50_MS = 50;
+
+    private final long mWindowMs;
+
+    // intervals in the window, by sequence number, mFirst <= s < mNext
+    private final int[] mRr;
+    // whether each interval follows on from the one before it
+    private final boolean[] mPaired;
+    private final int mMask;
+    private long mFirst;
+    private long mNext;
+
+    private long mSum;
+    private long mSumSquares;
+    private long mDiffSumSquares;
+    private int mNn50;
+    private int mPairs;
+
+    // sequence numbers of candidates for the min and max, as monotonic queues, twice the
+    // size of the window so a full queue can be told from an empty one
+    private final int mQueueMask;
+    private final long[] mMinQueue;
+    private int mMinHead, mMinTail;
+    private final long[] mMaxQueue;
+    private int mMaxHead, mMaxTail;
+
+    // where addFrom() left off in the RrBuffer it reads
+    private long mCursor;
+
+    /*
+     * @param windowMs  length of the window in milliseconds of beats
+     * @param maxBeats  most beats ever kept in the window, the window is cut short beyond that
+     */
+    public HrvMetrics(long windowMs, int maxBeats) {
+        int size = Integer.highestOneBit(Math.max(maxBeats, 2) - 1) << 1;
+        mWindowMs = windowMs;
+        mRr = new int[size];
+        mPaired = new boolean[size];
+        mMask = size - 1;
+        mQueueMask = 2 * size - 1;
+        mMinQueue = new long[2 * size];
+        mMaxQueue = new long[2 * size];
+    }
+
+    public void clear() {
+        mFirst = mNext = 0;
+        mSum = mSumSquares = mDiffSumSquares = 0;
+        mNn50 = 0;
+        mPairs = 0;
+        mMinHead = mMinTail = mMaxHead = mMaxTail = 0;
+    }
+
+    /*
+     * Add the intervals that arrived in the buffer since the last call
+     * @return the number of intervals added
+     */
+    public int addFrom(RrBuffer buffer) {
+        long count = buffer.count();
+        if (mCursor > count) {
+            // the buffer was cleared, start over with it
+            mCursor = 0;
+        }
+        // if we fell behind, skip what the buffer no longer has
+        mCursor = Math.max(mCursor, count - buffer.size());
+        int added = 0;
+        for (; mCursor < count; mCursor++, added++)
+            add(buffer.get(mCursor), buffer.followsBreak(mCursor));
+        return added;
+    }
+
+    public void add(int rrMs) {
+        add(rrMs, false);
+    }
+
+    /*
+     * @param afterBreak  beats went missing since the last interval added, the two aren't successive
+     */
+    public void add(int rrMs, boolean afterBreak) {
+        if (mNext - mFirst == mRr.length)
+            removeFirst();
+
+        long seq = mNext++;
+        boolean paired = seq > mFirst && !afterBreak;
+        mRr[(int) (seq & mMask)] = rrMs;
+        mPaired[(int) (seq & mMask)] = paired;
+        mSum += rrMs;
+        mSumSquares += (long) rrMs * rrMs;
+        if (paired) {
+            int diff = rrMs - rr(seq - 1);
+            mDiffSumSquares += (long) diff * diff;
+            if (Math.abs(diff) > NN50_MS)
+                mNn50++;
+            mPairs++;
+        }
+
+        // everything at the back that is no smaller (larger) than the new beat can't be the min (max) any more
+        while (mMinTail != mMinHead && rr(mMinQueue[(mMinTail - 1) & mQueueMask]) >= rrMs)
+            mMinTail = (mMinTail - 1) & mQueueMask;
+        mMinQueue[mMinTail] = seq;
+        mMinTail = (mMinTail + 1) & mQueueMask;
+        while (mMaxTail != mMaxHead && rr(mMaxQueue[(mMaxTail - 1) & mQueueMask]) <= rrMs)
+            mMaxTail = (mMaxTail - 1) & mQueueMask;
+        mMaxQueue[mMaxTail] = seq;
+        mMaxTail = (mMaxTail + 1) & mQueueMask;
+
+        while (mSum - rr(mFirst) >= mWindowMs && mNext - mFirst > 1)
+            removeFirst();
+    }
+
+    /*
+     * Number of intervals in the window
+     */
+    public int count() {
+        return (int) (mNext - mFirst);
+    }
+
+    /*
+     * Time covered by the intervals in the window, in ms
+     */
+    public long spanMs() {
+        return mSum;
+    }
+
+    public double meanRr() {
+        int n = count();
+        return n == 0 ? 0 : (double) mSum / n;
+    }
+
+    /*
+     * Sample standard deviation of the intervals in ms, 0 with fewer than two intervals
+     */
+    public double sdnn() {
+        int n = count();
+        if (n < 2)
+            return 0;
+        double variance = (mSumSquares - (double) mSum * mSum / n) / (n - 1);
+        return Math.sqrt(Math.max(variance, 0));
+    }
+
+    /*
+     * In ms, 0 without two successive intervals
+     */
+    public double rmssd() {
+        return mPairs == 0 ? 0 : Math.sqrt((double) mDiffSumSquares / mPairs);
+    }
+
+    /*
+     * In percent, 0 without two successive intervals
+     */
+    public double pnn50() {
+        return mPairs == 0 ? 0 : 100.0 * mNn50 / mPairs;
+    }
+
+    public int minRr() {
+        return mMinHead == mMinTail ? 0 : rr(mMinQueue[mMinHead]);
+    }
+
+    public int maxRr() {
+        return mMaxHead == mMaxTail ? 0 : rr(mMaxQueue[mMaxHead]);
+    }
+
+    private int rr(long seq) {
+        return mRr[(int) (seq & mMask)];
+    }
+
+    private void removeFirst() {
+        long seq = mFirst++;
+        int rrMs = rr(seq);
+        mSum -= rrMs;
+        mSumSquares -= (long) rrMs * rrMs;
+        if (mFirst < mNext && mPaired[(int) (mFirst & mMask)]) {
+            int diff = rr(mFirst) - rrMs;
+            mDiffSumSquares -= (long) diff * diff;
+            if (Math.abs(diff) > NN50_MS)
+                mNn50--;
+            mPairs--;
+        }
+        if (mMinHead != mMinTail && mMinQueue[mMinHead] == seq)
+            mMinHead = (mMinHead + 1) & mQueueMask;
+        if (mMaxHead != mMaxTail && mMaxQueue[mMaxHead] == seq)
+            mMaxHead = (mMaxHead + 1) & mQueueMask;
+    }
+}
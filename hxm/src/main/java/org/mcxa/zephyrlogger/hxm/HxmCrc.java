@@ -0,0 +1,46 @@
+package org.mcxa.zephyrlogger.hxm;
+
+/*
+ * HxmCrc
+ *
+ * The CRC of an HxM message: 8 bits, polynomial 0x8C (x^8 + x^5 + x^4 + 1, bit reversed),
+ * starting from 0, over the DLC payload bytes only (see the Bluetooth HXM API Guide).  It is
+ * computed a byte at a time from a 256 entry table.
+ */
+public final class HxmCrc {
+    public static final int POLYNOMIAL = 0x8C;
+
+    private static final byte[] TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            TABLE[i] = (byte) crc;
+        }
+    }
+
+    private HxmCrc() {
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        return update(0, data, offset, length);
+    }
+
+    /*
+     * Carry on a CRC over more bytes, for data that isn't in one piece
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++)
+            crc = TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        return crc;
+    }
+
+    /*
+     * The CRC the message starting at offset should carry, over its payload
+     */
+    public static int ofFrame(byte[] frame, int offset) {
+        return compute(frame, offset + HxmFrame.OFFSET_FIRMWARE_ID, HxmFrameReader.DLC);
+    }
+}
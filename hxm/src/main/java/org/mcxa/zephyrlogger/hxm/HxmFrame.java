@@ -0,0 +1,164 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import java.nio.ByteBuffer;
+
+/*
+ * HxmFrame
+ *
+ * A flyweight view of a single HxM message.  Nothing is copied or decoded up front, wrap()
+ * just points the view at the bytes and every getter pulls its field straight out of them,
+ * so a single instance can be reused for every frame that goes by without creating garbage.
+ * The view can sit on a byte[] (what the Bluetooth reader hands around) or on any ByteBuffer,
+ * a memory mapped file of recorded frames for example.
+ *
+ * Multi-byte fields are little endian and unsigned, see the Bluetooth HXM API Guide.  The view
+ * does not own the bytes, if the underlying buffer is reused the values change with it.
+ */
+public class HxmFrame {
+    // Field offsets from the start of the message
+    public static final int OFFSET_STX = 0;
+    public static final int OFFSET_MSGID = 1;
+    public static final int OFFSET_DLC = 2;
+    public static final int OFFSET_FIRMWARE_ID = 3;
+    public static final int OFFSET_FIRMWARE_VERSION = 5;
+    public static final int OFFSET_HARDWARE_ID = 7;
+    public static final int OFFSET_HARDWARE_VERSION = 9;
+    public static final int OFFSET_BATTERY = 11;
+    public static final int OFFSET_HEART_RATE = 12;
+    public static final int OFFSET_HEART_BEAT_NUMBER = 13;
+    public static final int OFFSET_HB_TIME_1 = 14;
+    public static final int OFFSET_RESERVED_1 = 44;
+    public static final int OFFSET_RESERVED_2 = 46;
+    public static final int OFFSET_RESERVED_3 = 48;
+    public static final int OFFSET_DISTANCE = 50;
+    public static final int OFFSET_SPEED = 52;
+    public static final int OFFSET_STRIDES = 54;
+    public static final int OFFSET_RESERVED_4 = 55;
+    public static final int OFFSET_RESERVED_5 = 56;
+    public static final int OFFSET_CRC = 58;
+    public static final int OFFSET_ETX = 59;
+
+    // The message carries the timestamps of the last 15 heart beats
+    public static final int HB_TIME_COUNT = 15;
+
+    private byte[] mArray;
+    private ByteBuffer mBuffer;
+    private int mOffset;
+
+    public HxmFrame wrap(byte[] array, int offset) {
+        mArray = array;
+        mBuffer = null;
+        mOffset = offset;
+        return this;
+    }
+
+    /*
+     * Wrap a ByteBuffer, offset is an absolute index into it, the buffer's position is left alone
+     */
+    public HxmFrame wrap(ByteBuffer buffer, int offset) {
+        mArray = null;
+        mBuffer = buffer;
+        mOffset = offset;
+        return this;
+    }
+
+    public int stx() { return u8(OFFSET_STX); }
+    public int msgId() { return u8(OFFSET_MSGID); }
+    public int dlc() { return u8(OFFSET_DLC); }
+    public int firmwareId() { return u16(OFFSET_FIRMWARE_ID); }
+    public int firmwareVersion() { return u16(OFFSET_FIRMWARE_VERSION); }
+    public int hardwareId() { return u16(OFFSET_HARDWARE_ID); }
+    public int hardwareVersion() { return u16(OFFSET_HARDWARE_VERSION); }
+    public int batteryIndicator() { return u8(OFFSET_BATTERY); }
+    public int heartRate() { return u8(OFFSET_HEART_RATE); }
+    public int heartBeatNumber() { return u8(OFFSET_HEART_BEAT_NUMBER); }
+
+    /*
+     * @param n  which timestamp, 1 through 15 like the hbTime fields of HrmReading
+     * @return the beat timestamp in milliseconds on the strap's 16 bit clock
+     */
+    public int hbTime(int n) {
+        if (n < 1 || n > HB_TIME_COUNT)
+            throw new IndexOutOfBoundsException("hbTime" + n);
+        return u16(OFFSET_HB_TIME_1 + 2 * (n - 1));
+    }
+
+    public int reserved1() { return u16(OFFSET_RESERVED_1); }
+    public int reserved2() { return u16(OFFSET_RESERVED_2); }
+    public int reserved3() { return u16(OFFSET_RESERVED_3); }
+
+    // in 1/16 m, rolls over at 256 m
+    public int distance() { return u16(OFFSET_DISTANCE); }
+
+    // in 1/256 m/s
+    public int speed() { return u16(OFFSET_SPEED); }
+
+    public int strides() { return u8(OFFSET_STRIDES); }
+    public int reserved4() { return u8(OFFSET_RESERVED_4); }
+    public int reserved5() { return u16(OFFSET_RESERVED_5); }
+    public int crc() { return u8(OFFSET_CRC); }
+    public int etx() { return u8(OFFSET_ETX); }
+
+    /*
+     * Raw byte at the given offset into the message, as stored (signed)
+     */
+    public byte byteAt(int index) {
+        return mArray != null ? mArray[mOffset + index] : mBuffer.get(mOffset + index);
+    }
+
+    /*
+     * Copy the whole message out, length bytes starting at the wrapped offset
+     */
+    public void copyTo(byte[] dst, int offset) {
+        if (mArray != null) {
+            System.arraycopy(mArray, mOffset, dst, offset, HxmFrameReader.FRAME_LENGTH);
+        } else {
+            for (int i = 0; i < HxmFrameReader.FRAME_LENGTH; i++)
+                dst[offset + i] = mBuffer.get(mOffset + i);
+        }
+    }
+
+    /*
+     * Append the frame as the comma separated fields written to the data file, the same text
+     * HrmReading.toString() produces, without boxing anything.  Single byte fields that
+     * HrmReading keeps in a byte are printed signed, just like it does.
+     */
+    public StringBuilder appendCsv(StringBuilder sb) {
+        sb.append(byteAt(OFFSET_STX)).append(',')
+                .append(byteAt(OFFSET_MSGID)).append(',')
+                .append(byteAt(OFFSET_DLC)).append(',')
+                .append(firmwareId()).append(',')
+                .append(firmwareVersion()).append(',')
+                .append(hardwareId()).append(',')
+                .append(hardwareVersion()).append(',')
+                .append(batteryIndicator()).append(',')
+                .append(heartRate()).append(',')
+                .append(heartBeatNumber()).append(',');
+        for (int n = 1; n <= HB_TIME_COUNT; n++)
+            sb.append(hbTime(n)).append(',');
+        sb.append(reserved1()).append(',')
+                .append(reserved2()).append(',')
+                .append(reserved3()).append(',')
+                .append(distance()).append(',')
+                .append(speed()).append(',')
+                .append(byteAt(OFFSET_STRIDES)).append(',')
+                .append(byteAt(OFFSET_RESERVED_4)).append(',');
+        // the trailing reserved5,crc,etx columns are in the file format twice
+        for (int i = 0; i < 2; i++) {
+            sb.append(reserved5()).append(',')
+                    .append(byteAt(OFFSET_CRC)).append(',')
+                    .append(byteAt(OFFSET_ETX));
+            if (i == 0)
+                sb.append(',');
+        }
+        return sb;
+    }
+
+    private int u8(int index) {
+        return byteAt(index) & 0xFF;
+    }
+
+    private int u16(int index) {
+        return (byteAt(index) & 0xFF) | (byteAt(index + 1) & 0xFF) << 8;
+    }
+}
@@ -0,0 +1,219 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * HxmFrameReader
+ *
+ * Pulls bytes from an InputStream in bulk into a ring buffer and hands back complete
+ * HxM messages.  A message looks like this (see the basic message format in the
+ * Bluetooth HXM API Guide):
+ *
+ *      STX | MSGID | DLC | 55 payload bytes | CRC | ETX
+ *
+ * The reader hunts for STX, checks that MSGID, DLC and ETX are where they should be and
+ * that the CRC matches the payload (see HxmCrc), and only then consumes the candidate.
+ * When a candidate turns out to be bogus we only step over its STX byte, so a real message
+ * starting somewhere inside the garbage is still found on the next pass and no bytes are
+ * thrown away.  A message that fails its CRC is dropped here, nothing after the reader
+ * ever sees it.
+ *
+ * The reader counts what it finds: messages handed out, messages dropped for a bad CRC,
+ * messages cut short (the header was right but the next message started before the ETX)
+ * and the times it lost step with the stream and had to skip bytes to find it again.  The
+ * counters are only written by the reading thread but can be read from any thread.
+ *
+ * There is nothing Android specific in here, any InputStream will do, which makes it easy
+ * to feed the reader from a file or a socket on a desktop JVM.  The reader is not thread
+ * safe, it is meant to be owned by the thread doing the reading.
+ */
+public class HxmFrameReader {
+    public static final int STX = 0x02;
+    public static final int MSGID = 0x26;
+    public static final int DLC = 55;
+    public static final int ETX = 0x03;
+
+    // STX + MSGID + DLC + payload + CRC + ETX
+    public static final int FRAME_LENGTH = DLC + 5;
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final InputStream mInStream;
+    private final byte[] mRing;
+    private final int mMask;
+
+    // index of the oldest unread byte, and how many unread bytes there are
+    private int mHead;
+    private int mCount;
+
+    private volatile long mAccepted;
+    private volatile long mCrcFailed;
+    private volatile long mTruncated;
+    private volatile long mResyncs;
+    private volatile long mSkippedBytes;
+    // false from skipping a byte until the next good message, so one bad patch is one resync
+    private boolean mInStep = true;
+
+    public HxmFrameReader(InputStream in) {
+        this(in, DEFAULT_CAPACITY);
+    }
+
+    /*
+     * @param in        the stream to read HxM messages from
+     * @param capacity  size of the ring buffer, rounded up to a power of two and never
+     *                  smaller than two frames
+     */
+    public HxmFrameReader(InputStream in, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2 * FRAME_LENGTH) - 1) << 1;
+        mInStream = in;
+        mRing = new byte[size];
+        mMask = size - 1;
+    }
+
+    /*
+     * Block until a complete frame is available and copy it into dst at offset.
+     * @return FRAME_LENGTH, or -1 if the stream ended before another complete frame
+     */
+    public int readFrame(byte[] dst, int offset) throws IOException {
+        if (dst.length - offset < FRAME_LENGTH)
+            throw new IllegalArgumentException("destination too small for a HxM frame");
+
+        while (true) {
+            // Hunt for the start of message character, everything before it is noise
+            while (mCount > 0 && peek(0) != STX)
+                skip();
+
+            if (mCount < FRAME_LENGTH) {
+                if (!fill()) {
+                    if (mCount >= 3 && peek(1) == MSGID && peek(2) == DLC)
+                        mTruncated++;
+                    return -1;
+                }
+                continue;
+            }
+
+            // We have a full candidate in the buffer, check the fixed bytes of the header and trailer
+            if (peek(1) != MSGID || peek(2) != DLC) {
+                // Not a message, step over this STX only and look for the next one
+                skip();
+                continue;
+            }
+            if (peek(FRAME_LENGTH - 1) != ETX) {
+                // The header is right, the rest of the message never came
+                mTruncated++;
+                skip();
+                continue;
+            }
+            if (crc() != peek(FRAME_LENGTH - 2)) {
+                mCrcFailed++;
+                skip();
+                continue;
+            }
+
+            copyOut(dst, offset, FRAME_LENGTH);
+            mHead = (mHead + FRAME_LENGTH) & mMask;
+            mCount -= FRAME_LENGTH;
+            mAccepted++;
+            mInStep = true;
+            return FRAME_LENGTH;
+        }
+    }
+
+    /*
+     * Same as readFrame(byte[], int), but treats the end of the stream as an error.
+     */
+    public void readFully(byte[] dst, int offset) throws IOException {
+        if (readFrame(dst, offset) < 0)
+            throw new EOFException("HxM stream ended");
+    }
+
+    /*
+     * Bytes currently buffered but not yet handed out
+     */
+    public int available() {
+        return mCount;
+    }
+
+    /*
+     * Messages handed out by readFrame()
+     */
+    public long getAcceptedFrames() {
+        return mAccepted;
+    }
+
+    /*
+     * Messages that looked right but were dropped because the CRC didn't match
+     */
+    public long getCrcFailures() {
+        return mCrcFailed;
+    }
+
+    /*
+     * Messages with a good header whose ETX wasn't there, because they were cut short
+     */
+    public long getTruncatedFrames() {
+        return mTruncated;
+    }
+
+    /*
+     * Times the reader lost step with the stream and skipped bytes to find a message again
+     */
+    public long getResyncs() {
+        return mResyncs;
+    }
+
+    /*
+     * Bytes thrown away while finding the messages
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    private void skip() {
+        mHead = (mHead + 1) & mMask;
+        mCount--;
+        mSkippedBytes++;
+        if (mInStep) {
+            mInStep = false;
+            mResyncs++;
+        }
+    }
+
+    /*
+     * CRC of the payload of the candidate at the head, which may wrap around the end of the ring
+     */
+    private int crc() {
+        int start = (mHead + HxmFrame.OFFSET_FIRMWARE_ID) & mMask;
+        int first = Math.min(DLC, mRing.length - start);
+        int crc = HxmCrc.update(0, mRing, start, first);
+        return HxmCrc.update(crc, mRing, 0, DLC - first);
+    }
+
+    private int peek(int i) {
+        return mRing[(mHead + i) & mMask] & 0xFF;
+    }
+
+    /*
+     * Read as much as the stream will give us in one call into the free part of the ring.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        int tail = (mHead + mCount) & mMask;
+        // only read up to the physical end of the array, the next call wraps around
+        int free = (tail >= mHead || mCount == 0) ? mRing.length - tail : mHead - tail;
+        free = Math.min(free, mRing.length - mCount);
+        int n = mInStream.read(mRing, tail, free);
+        if (n < 0)
+            return false;
+        mCount += n;
+        return true;
+    }
+
+    private void copyOut(byte[] dst, int offset, int length) {
+        int first = Math.min(length, mRing.length - mHead);
+        System.arraycopy(mRing, mHead, dst, offset, first);
+        System.arraycopy(mRing, 0, dst, offset + first, length - first);
+    }
+}
@@ -0,0 +1,62 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import java.util.Random;
+
+/*
+ * ReconnectBackoff
+ *
+ * How long to wait before each attempt to connect to a strap again after losing it.  The
+ * waits double from one attempt to the next up to a maximum, and each is somewhere between
+ * half and all of that at random ("equal jitter"), so a few straps lost at the same moment
+ * don't all go for the radio at once and keep getting in each other's way.
+ *
+ * The first waits are short since a strap that dropped out is usually back in range in a
+ * second or two, a strap that stays away costs one attempt per maximum wait.
+ */
+public class ReconnectBackoff {
+    private final long mInitialMs;
+    private final long mMaxMs;
+    private final Random mRandom;
+    private int mAttempts;
+
+    /*
+     * @param initialMs  wait before the first attempt, at most
+     * @param maxMs      longest wait between attempts
+     */
+    public ReconnectBackoff(long initialMs, long maxMs) {
+        this(initialMs, maxMs, new Random());
+    }
+
+    public ReconnectBackoff(long initialMs, long maxMs, Random random) {
+        mInitialMs = initialMs;
+        mMaxMs = maxMs;
+        mRandom = random;
+    }
+
+    /*
+     * The wait before the next attempt, in ms
+     */
+    public synchronized long nextDelay() {
+        long ceiling = mMaxMs;
+        // past 2^20 times the initial wait we are at the maximum anyway
+        if (mAttempts < 20)
+            ceiling = Math.min(mMaxMs, mInitialMs << mAttempts);
+        mAttempts++;
+        long half = ceiling / 2;
+        return half + (long) (mRandom.nextDouble() * (ceiling - half + 1));
+    }
+
+    /*
+     * Attempts made since the last reset()
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    /*
+     * Start from the shortest wait again, once connected
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,110 @@
+package org.mcxa.zephyrlogger.hxm;
+
+/*
+ * RrBuffer
+ *
+ * A ring of the most recent R-R intervals, in milliseconds, kept in a plain int array.
+ * Every interval ever added gets a sequence number (0 for the first one) so a consumer
+ * can remember where it left off and pick up only the beats it hasn't seen, as long as it
+ * doesn't fall more than a buffer's worth behind.
+ *
+ * Intervals normally follow on from each other, but where beats went missing in between
+ * (see RrIntervalExtractor) the interval after the gap is marked, and the difference between
+ * it and the one before means nothing.
+ *
+ * Not thread safe, the owner of the buffer has to take care of that.
+ */
+public class RrBuffer {
+    private final int[] mIntervals;
+    private final boolean[] mBreaks;
+    private final int mMask;
+    private long mCount;
+    private boolean mBreakPending;
+
+    /*
+     * @param capacity  number of intervals kept, rounded up to a power of two
+     */
+    public RrBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mIntervals = new int[size];
+        mBreaks = new boolean[size];
+        mMask = size - 1;
+    }
+
+    public void add(int rrMs) {
+        mIntervals[(int) (mCount & mMask)] = rrMs;
+        mBreaks[(int) (mCount & mMask)] = mBreakPending;
+        mBreakPending = false;
+        mCount++;
+    }
+
+    /*
+     * The next interval added doesn't follow on from the last one, beats went missing between them
+     */
+    public void markBreak() {
+        mBreakPending = true;
+    }
+
+    public void clear() {
+        mCount = 0;
+        mBreakPending = false;
+    }
+
+    public int capacity() {
+        return mIntervals.length;
+    }
+
+    /*
+     * Number of intervals added since the buffer was created or cleared, which is also the
+     * sequence number the next interval will get
+     */
+    public long count() {
+        return mCount;
+    }
+
+    /*
+     * Number of intervals still held
+     */
+    public int size() {
+        return (int) Math.min(mCount, mIntervals.length);
+    }
+
+    /*
+     * @param sequence  sequence number of the interval, it must still be in the buffer
+     */
+    public int get(long sequence) {
+        if (sequence < 0 || sequence >= mCount || sequence < mCount - mIntervals.length)
+            throw new IndexOutOfBoundsException("interval " + sequence + " is not in the buffer");
+        return mIntervals[(int) (sequence & mMask)];
+    }
+
+    /*
+     * @param sequence  sequence number of the interval, it must still be in the buffer
+     * @return true if beats went missing between this interval and the one before it
+     */
+    public boolean followsBreak(long sequence) {
+        get(sequence);
+        return mBreaks[(int) (sequence & mMask)];
+    }
+
+    /*
+     * @param back  0 for the newest interval, 1 for the one before it and so on
+     */
+    public int latest(int back) {
+        return get(mCount - 1 - back);
+    }
+
+    /*
+     * Mean of the newest n intervals, or of all of them if there are fewer
+     * @return the mean in ms, 0 if the buffer is empty
+     */
+    public int mean(int n) {
+        n = Math.min(n, size());
+        if (n == 0)
+            return 0;
+        long sum = 0;
+        for (int i = 0; i < n; i++)
+            sum += latest(i);
+        return (int) (sum / n);
+    }
+}
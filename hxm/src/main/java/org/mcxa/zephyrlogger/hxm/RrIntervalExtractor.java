@@ -0,0 +1,155 @@
+package org.mcxa.zephyrlogger.hxm;
+
+/*
+ * RrIntervalExtractor
+ *
+ * Pulls the R-R intervals out of a stream of HxM messages, each beat exactly once.
+ *
+ * Every message carries the timestamps of the last 15 beats, hbTime1 being the newest, so
+ * at one message a second the same beats show up in many messages in a row.  The message
+ * also carries heartBeatNumber, which counts beats modulo 256.  The difference between the
+ * heartBeatNumber of two messages says how many of the timestamps are new, only those are
+ * turned into intervals and added to the RrBuffer.
+ *
+ * The timestamps are milliseconds on a 16 bit clock on the strap, so the difference between
+ * two of them is taken modulo 65536, which is exact across the rollover as long as beats
+ * are less than a minute apart.
+ *
+ * The beat numbers and the clock are kept on the strap, they carry on across a lost
+ * Bluetooth connection and the extractor carries on with them: a short dropout is bridged
+ * by the timestamps the message still has, a longer one costs the beats that had already
+ * left it.  Only when the strap is switched off and on do they start over, and then the
+ * newest beat of the last message isn't where the beat numbers say it should be in the
+ * next one, or more beats went by than could have in the time between the two messages,
+ * which is how extract() tells.  Wherever the series of intervals breaks off the
+ * next interval added to the RrBuffer is marked (see RrBuffer.followsBreak()) so nobody
+ * takes the difference between it and the one before.
+ */
+public class RrIntervalExtractor {
+    // no heart beats faster than 240 bpm, and the read times are off by a second or two either way
+    private static final int MIN_RR_MS = 250;
+    private static final long READ_SLACK_MS = 2000;
+
+    private final RrBuffer mBuffer;
+
+    private boolean mStarted;
+    private int mLastBeatNumber;
+    private int mLastBeatTime;
+    private long mLastReadMs = -1;
+    private long mMissedBeats;
+    private long mBreaks;
+    private long mRestarts;
+
+    public RrIntervalExtractor(RrBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    public RrBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /*
+     * Forget the previous message, the next one starts a new series.  Not for a strap that
+     * connected again, its beat numbers carry on, only for feeding in the frames of another
+     * one.
+     */
+    public void reset() {
+        mStarted = false;
+        mBuffer.markBreak();
+    }
+
+    /*
+     * Beats that were never seen because too many of them went by between two messages
+     * (more than 15, a long dropout) so their timestamps had already left the message
+     */
+    public long getMissedBeats() {
+        return mMissedBeats;
+    }
+
+    /*
+     * Times the series of intervals broke off, after a long dropout or the strap starting
+     * over.  A consumer that compares this before and after extract() knows the first of
+     * the new intervals doesn't follow on from the ones it had.
+     */
+    public long getBreaks() {
+        return mBreaks;
+    }
+
+    /*
+     * Times the strap was switched off and on, its clock, beat numbers and distance all
+     * started over
+     */
+    public long getRestarts() {
+        return mRestarts;
+    }
+
+    /*
+     * Add the intervals ending at the beats that are new in this message, oldest first
+     * @return the number of intervals added
+     */
+    public int extract(HxmFrame frame) {
+        return extract(frame, -1);
+    }
+
+    /*
+     * Same as extract(HxmFrame), with the time the message was read to tell a restart of
+     * the strap from a dropout
+     * @param readMs  phone time the message was read in ms, -1 if not known
+     */
+    public int extract(HxmFrame frame, long readMs) {
+        int beatNumber = frame.heartBeatNumber();
+        int newBeats = HxmFrame.HB_TIME_COUNT;
+        boolean restarted = false;
+        if (mStarted) {
+            newBeats = (beatNumber - mLastBeatNumber) & 0xFF;
+            // the newest beat we had is the one just before the new ones, unless the strap started over
+            if (newBeats < HxmFrame.HB_TIME_COUNT)
+                restarted = frame.hbTime(newBeats + 1) != mLastBeatTime;
+            else if (readMs >= 0 && mLastReadMs >= 0)
+                restarted = newBeats > (readMs - mLastReadMs + READ_SLACK_MS) / MIN_RR_MS;
+        }
+        mLastReadMs = readMs;
+        if (newBeats == 0 && !restarted)
+            return 0;
+
+        int added = 0;
+        if (!mStarted || restarted || newBeats > HxmFrame.HB_TIME_COUNT) {
+            /*
+             * Either the first message, or we lost track across a dropout or a restart.  All
+             * we have are the intervals between the timestamps in this message.
+             */
+            if (restarted)
+                mRestarts++;
+            else if (mStarted)
+                mMissedBeats += newBeats - HxmFrame.HB_TIME_COUNT;
+            if (mStarted) {
+                mBreaks++;
+                mBuffer.markBreak();
+            }
+            int previous = frame.hbTime(HxmFrame.HB_TIME_COUNT);
+            for (int n = HxmFrame.HB_TIME_COUNT - 1; n >= 1; n--) {
+                int time = frame.hbTime(n);
+                mBuffer.add((time - previous) & 0xFFFF);
+                previous = time;
+                added++;
+            }
+        } else {
+            /*
+             * The beat before the oldest new one is the newest beat of the last message, which
+             * may not be in this one any more if exactly 15 beats went by
+             */
+            int previous = mLastBeatTime;
+            for (int n = newBeats; n >= 1; n--) {
+                int time = frame.hbTime(n);
+                mBuffer.add((time - previous) & 0xFFFF);
+                previous = time;
+                added++;
+            }
+        }
+
+        mStarted = true;
+        mLastBeatNumber = beatNumber;
+        mLastBeatTime = frame.hbTime(1);
+        return added;
+    }
+}
@@ -0,0 +1,246 @@
+package org.mcxa.zephyrlogger.hxm;
+
+/*
+ * SensorClock
+ *
+ * Maps the strap's clock onto the phone's, so every beat gets a time on the phone's time
+ * base and not just the time its message happened to be read.
+ *
+ * The beat timestamps in a message are the strap's own millisecond clock, 16 bits of it,
+ * so it wraps every 65.5 s and runs a little fast or slow against the phone.  For every
+ * message with a new beat in it we pair the newest beat's strap time (unwrapped into a
+ * running count) with the phone time the message was read, and fit a straight line through
+ * the last quarter of an hour of these pairs.  The slope is the drift between the two clocks.
+ *
+ * The read time is always later than the beat, by the time until the strap sent the next
+ * message plus whatever the Bluetooth link and the phone added, so the points scatter
+ * above the line rather than around it, by up to a whole beat.  A least squares fit through
+ * all of them would have a slope hundreds of ppm out.  Instead the line is the one that
+ * stays under every point while being as close to them as it can, an edge of their lower
+ * convex hull, which only rests on the messages that got through quickest right after a
+ * beat.  What is left is the smallest delivery delay of the link, a constant of a few tens
+ * of ms, instead of the hundreds of ms of jitter in the read times.
+ *
+ * Phone times can be in any millisecond time base as long as it doesn't jump around, so
+ * feed it a monotonic one (elapsedRealtime) and move the results onto the wall clock when
+ * they are used.  A wall clock set by NTP bends the fit by as much as it was stepped, only
+ * a jump of more than a few seconds makes the clock start over.  Not thread safe, feed and
+ * ask it from one thread.
+ */
+public class SensorClock {
+    private static final int DEFAULT_WINDOW = 1024;
+
+    // fewer points than this, or a shorter span of strap time, and we don't trust a slope
+    private static final int MIN_FIT_POINTS = 16;
+    private static final long MIN_FIT_SPAN_MS = 30000;
+    // no crystal is off by more than this, a steeper fit is the data's fault
+    private static final double MAX_DRIFT = 1e-3;
+    // read times this far off the line mean the phone's time base jumped
+    private static final long MAX_EARLY_MS = 1000;
+    private static final long MAX_LATE_MS = 10000;
+
+    private static final int WRAP = 0x10000;
+
+    // The window of (strap time, phone time) pairs
+    private final long[] mStrap;
+    private final long[] mLocal;
+    private int mNext;
+    private int mCount;
+    // scratch for the fit
+    private final int[] mHull;
+
+    private boolean mStarted;
+    private int mLastBeatNumber;
+    private int mLastBeatTime;
+    private long mLastLocalMs;
+    private long mStrapMs;
+
+    // The fit: local = mRefLocal + mSlope * (strap - mRefStrap) + mOffset
+    private long mRefStrap;
+    private long mRefLocal;
+    private double mSlope = 1;
+    private double mOffset;
+    private double mJitter;
+    private long mResets;
+
+    public SensorClock() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /*
+     * @param window  number of messages the fit goes over, at one a second 1024 is 17 minutes,
+     *                the longer the window the steadier the drift
+     */
+    public SensorClock(int window) {
+        mStrap = new long[window];
+        mLocal = new long[window];
+        mHull = new int[window];
+    }
+
+    /*
+     * Start over, for a strap that was switched off and on (see RrIntervalExtractor.getRestarts()).
+     * Not for one that only lost its connection, its clock carries on.
+     */
+    public void reset() {
+        mStarted = false;
+        mCount = 0;
+        mNext = 0;
+        mSlope = 1;
+        mOffset = 0;
+        mJitter = 0;
+    }
+
+    /*
+     * Take in a message
+     * @param readMs  phone time the message was read, in ms
+     * @return true if the message had a new beat and went into the fit
+     */
+    public boolean update(HxmFrame frame, long readMs) {
+        int beatNumber = frame.heartBeatNumber();
+        int beatTime = frame.hbTime(1);
+        if (mStarted && beatNumber == mLastBeatNumber)
+            return false;
+
+        if (!mStarted) {
+            mStrapMs = beatTime;
+        } else {
+            /*
+             * The strap clock wraps every 65.5 s.  After a dropout longer than that, the
+             * phone's clock tells how many times it went round.
+             */
+            long delta = (beatTime - mLastBeatTime) & (WRAP - 1);
+            long elapsed = (long) ((readMs - mLastLocalMs) / mSlope);
+            delta += Math.max(0, Math.round((double) (elapsed - delta) / WRAP)) * WRAP;
+            mStrapMs += delta;
+        }
+        mStarted = true;
+        mLastBeatNumber = beatNumber;
+        mLastBeatTime = beatTime;
+        mLastLocalMs = readMs;
+
+        if (mCount > 0) {
+            double residual = readMs - toLocalTime(mStrapMs);
+            if (residual < -MAX_EARLY_MS || residual > MAX_LATE_MS) {
+                // the phone's clock jumped, nothing we have is any good
+                mResets++;
+                mCount = 0;
+                mNext = 0;
+                mSlope = 1;
+            }
+        }
+
+        mStrap[mNext] = mStrapMs;
+        mLocal[mNext] = readMs;
+        mNext = (mNext + 1) % mStrap.length;
+        if (mCount < mStrap.length)
+            mCount++;
+        fit();
+        return true;
+    }
+
+    /*
+     * @return true once there has been a message to go by
+     */
+    public boolean isSynced() {
+        return mCount > 0;
+    }
+
+    /*
+     * Phone time of a moment on the strap's unwrapped clock
+     */
+    public long toLocalTime(long strapMs) {
+        return mRefLocal + Math.round(mSlope * (strapMs - mRefStrap) + mOffset);
+    }
+
+    /*
+     * Phone time of beat n (1 is the newest) of the last message given to update()
+     * @return the time, or -1 before the first message
+     */
+    public long beatTime(HxmFrame frame, int n) {
+        if (mCount == 0)
+            return -1;
+        // beats go back from the newest, which is where mStrapMs is
+        return toLocalTime(mStrapMs - ((mLastBeatTime - frame.hbTime(n)) & (WRAP - 1)));
+    }
+
+    /*
+     * How much faster the strap's clock runs than the phone's, in parts per million
+     */
+    public double getDriftPpm() {
+        return (1 / mSlope - 1) * 1e6;
+    }
+
+    /*
+     * Standard deviation of the read times around the line, what the fit takes out of them
+     */
+    public double getJitterMs() {
+        return mJitter;
+    }
+
+    /*
+     * Times the phone's clock jumped and the fit started over
+     */
+    public long getResets() {
+        return mResets;
+    }
+
+    /*
+     * The line under all the points of the window that is closest to them on the whole: the
+     * edge of their lower convex hull above the middle of the window.  Everything is
+     * relative to the newest point so the numbers stay small.
+     */
+    private void fit() {
+        int window = mStrap.length;
+        int oldest = (mNext - mCount + window) % window;
+        int newest = (mNext - 1 + window) % window;
+        mRefStrap = mStrap[newest];
+        mRefLocal = mLocal[newest];
+
+        // lower hull, the points come in order of strap time already (monotone chain)
+        int hull = 0;
+        double sx = 0;
+        for (int j = 0; j < mCount; j++) {
+            int i = (oldest + j) % window;
+            sx += mStrap[i] - mRefStrap;
+            while (hull >= 2 && !turnsLeft(mHull[hull - 2], mHull[hull - 1], i))
+                hull--;
+            mHull[hull++] = i;
+        }
+        double mx = sx / mCount + mRefStrap;
+
+        double slope = 1;
+        long span = mRefStrap - mStrap[oldest];
+        if (mCount >= MIN_FIT_POINTS && span >= MIN_FIT_SPAN_MS) {
+            for (int h = 1; h < hull; h++) {
+                int a = mHull[h - 1], b = mHull[h];
+                if (mStrap[b] >= mx || h == hull - 1) {
+                    slope = (double) (mLocal[b] - mLocal[a]) / (mStrap[b] - mStrap[a]);
+                    break;
+                }
+            }
+            if (Double.isNaN(slope) || Math.abs(slope - 1) > MAX_DRIFT)
+                slope = 1;
+        }
+        mSlope = slope;
+
+        double min = Double.MAX_VALUE, sum = 0, sumSquares = 0;
+        for (int i = 0; i < mCount; i++) {
+            double r = (mLocal[i] - mRefLocal) - slope * (mStrap[i] - mRefStrap);
+            min = Math.min(min, r);
+            sum += r;
+            sumSquares += r * r;
+        }
+        mOffset = min;
+        double mean = sum / mCount;
+        mJitter = Math.sqrt(Math.max(0, sumSquares / mCount - mean * mean));
+    }
+
+    /*
+     * Whether going from a through b to c turns left, keeping b on the lower hull
+     */
+    private boolean turnsLeft(int a, int b, int c) {
+        long x1 = mStrap[b] - mStrap[a], y1 = mLocal[b] - mLocal[a];
+        long x2 = mStrap[c] - mStrap[a], y2 = mLocal[c] - mLocal[a];
+        return x1 * y2 - y1 * x2 > 0;
+    }
+}
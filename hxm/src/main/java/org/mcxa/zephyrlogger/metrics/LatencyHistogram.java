@@ -0,0 +1,107 @@
+package org.mcxa.zephyrlogger.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * LatencyHistogram
+ *
+ * Counts durations into fixed buckets that double in width: the first holds everything
+ * under 1 us, bucket i holds [2^(i-1), 2^i) us, and the last everything from about half an
+ * hour up.  That is coarse, a percentile is only known to within a factor of two, but it
+ * is plenty to tell a 2 ms stall from a 200 ms one and it costs one atomic increment per
+ * sample, with no locks and no allocation.  Any number of threads can record at once and
+ * read it at the same time; a reader may see a sample in the count and not yet in the
+ * sum, which doesn't matter for what it is used for.
+ */
+public class LatencyHistogram {
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        mBuckets.incrementAndGet(bucketOf(nanos));
+        mCount.incrementAndGet();
+        mSumNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos))
+            max = mMaxNanos.get();
+    }
+
+    /*
+     * Record the time since a System.nanoTime() stamp
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSumNanos.get() / count;
+    }
+
+    public long getBucket(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /*
+     * The smallest duration that doesn't fit in a bucket any more, in ns
+     */
+    public static long bucketLimitNanos(int bucket) {
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1000L << bucket;
+    }
+
+    /*
+     * An upper bound on the given fraction of the samples, 0.99 for the 99th percentile
+     * @return the limit of the bucket the percentile falls in, capped by the largest sample,
+     *         0 with no samples
+     */
+    public long getPercentileNanos(double fraction) {
+        long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return Math.min(bucketLimitNanos(i), mMaxNanos.get());
+        }
+        return mMaxNanos.get();
+    }
+
+    /*
+     * Start counting over.  Samples recorded while this runs may or may not survive it.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            mBuckets.set(i, 0);
+        mCount.set(0);
+        mSumNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    private static int bucketOf(long nanos) {
+        // number of bits in the duration in us, so 0 us is bucket 0 and 1 us bucket 1
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+}
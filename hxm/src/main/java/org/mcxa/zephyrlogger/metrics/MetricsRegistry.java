@@ -0,0 +1,142 @@
+package org.mcxa.zephyrlogger.metrics;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/*
+ * MetricsRegistry
+ *
+ * Named latency histograms and gauges, collected in one place so they can be shown and
+ * dumped together.  Registering and dumping take a lock, recording doesn't: the hot path
+ * holds on to the histogram it records into and never comes back here.  Names are kept in the
+ * order they were registered, which is the order they are dumped in; use the order of
+ * the stages a frame goes through.
+ */
+public class MetricsRegistry {
+    /*
+     * A value read when the metrics are shown, a queue depth or a count kept elsewhere
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    // rates are worked out since then
+    private volatile long mStartNanos = System.nanoTime();
+
+    // copied on write, so a dump can go through them without holding the lock
+    private String[] mHistogramNames = new String[0];
+    private LatencyHistogram[] mHistograms = new LatencyHistogram[0];
+    private String[] mGaugeNames = new String[0];
+    private Gauge[] mGauges = new Gauge[0];
+
+    /*
+     * The histogram with the given name, created the first time it is asked for
+     */
+    public synchronized LatencyHistogram histogram(String name) {
+        int i = indexOf(mHistogramNames, name);
+        if (i >= 0)
+            return mHistograms[i];
+        LatencyHistogram histogram = new LatencyHistogram();
+        register(name, histogram);
+        return histogram;
+    }
+
+    /*
+     * Add a histogram kept by someone else, replacing any with the same name
+     */
+    public synchronized void register(String name, LatencyHistogram histogram) {
+        int i = indexOf(mHistogramNames, name);
+        if (i >= 0) {
+            LatencyHistogram[] histograms = mHistograms.clone();
+            histograms[i] = histogram;
+            mHistograms = histograms;
+            return;
+        }
+        mHistogramNames = append(mHistogramNames, name);
+        LatencyHistogram[] histograms = new LatencyHistogram[mHistograms.length + 1];
+        System.arraycopy(mHistograms, 0, histograms, 0, mHistograms.length);
+        histograms[mHistograms.length] = histogram;
+        mHistograms = histograms;
+    }
+
+    /*
+     * Add a gauge, replacing any with the same name
+     */
+    public synchronized void register(String name, Gauge gauge) {
+        int i = indexOf(mGaugeNames, name);
+        if (i >= 0) {
+            Gauge[] gauges = mGauges.clone();
+            gauges[i] = gauge;
+            mGauges = gauges;
+            return;
+        }
+        mGaugeNames = append(mGaugeNames, name);
+        Gauge[] gauges = new Gauge[mGauges.length + 1];
+        System.arraycopy(mGauges, 0, gauges, 0, mGauges.length);
+        gauges[mGauges.length] = gauge;
+        mGauges = gauges;
+    }
+
+    /*
+     * Start every histogram, and the rates, over
+     */
+    public void reset() {
+        mStartNanos = System.nanoTime();
+        LatencyHistogram[] histograms;
+        synchronized (this) {
+            histograms = mHistograms;
+        }
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+    }
+
+    /*
+     * Write every histogram and gauge as text, one per line.  For each histogram: the number
+     * of samples, their rate per second since the registry was created, the mean, the 50th,
+     * 90th and 99th percentile and the maximum, in ms.  Rates count from the last reset().
+     */
+    public void dump(Appendable out) throws IOException {
+        double uptime = (System.nanoTime() - mStartNanos) / 1e9;
+        out.append(String.format(Locale.US, "since %.1f s%n", uptime));
+        out.append(String.format(Locale.US, "%-28s %9s %8s %9s %9s %9s %9s %9s%n",
+                "stage (ms)", "count", "rate/s", "mean", "p50", "p90", "p99", "max"));
+        String[] names;
+        LatencyHistogram[] histograms;
+        synchronized (this) {
+            names = mHistogramNames;
+            histograms = mHistograms;
+        }
+        for (int i = 0; i < names.length; i++) {
+            LatencyHistogram h = histograms[i];
+            long count = h.getCount();
+            out.append(String.format(Locale.US, "%-28s %9d %8.2f %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                    names[i], count, count / Math.max(uptime, 1e-3), h.getMeanNanos() / 1e6,
+                    h.getPercentileNanos(0.5) / 1e6, h.getPercentileNanos(0.9) / 1e6,
+                    h.getPercentileNanos(0.99) / 1e6, h.getMaxNanos() / 1e6));
+        }
+
+        String[] gaugeNames;
+        Gauge[] gauges;
+        synchronized (this) {
+            gaugeNames = mGaugeNames;
+            gauges = mGauges;
+        }
+        for (int i = 0; i < gaugeNames.length; i++)
+            out.append(String.format(Locale.US, "%-28s %9d%n", gaugeNames[i], gauges[i].get()));
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    private static String[] append(String[] names, String name) {
+        String[] result = new String[names.length + 1];
+        System.arraycopy(names, 0, result, 0, names.length);
+        result[names.length] = name;
+        return result;
+    }
+}
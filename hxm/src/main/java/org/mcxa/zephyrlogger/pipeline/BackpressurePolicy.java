@@ -0,0 +1,26 @@
+package org.mcxa.zephyrlogger.pipeline;
+
+/*
+ * What a sink's queue does with a new frame when the sink has fallen behind and the queue is full
+ */
+public enum BackpressurePolicy {
+    /*
+     * Drop the oldest queued frame to make room, the sink gets the most recent run of frames
+     * with a gap where it fell behind.  For analytics that can live with a gap.
+     */
+    DROP_OLDEST,
+
+    /*
+     * Make the publisher wait until there is room, nothing is lost but everything upstream of
+     * the pipeline is held up.  For sinks that must see every frame, with a queue sized so
+     * this never happens in practice.
+     */
+    BLOCK,
+
+    /*
+     * Replace the most recently queued frame from the same strap, the sink sees a sample of the
+     * stream that always ends with the latest frame.  For the display, where only the current
+     * values matter.
+     */
+    SAMPLE
+}
@@ -0,0 +1,393 @@
+package org.mcxa.zephyrlogger.pipeline;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.metrics.LatencyHistogram;
+
+import java.io.IOException;
+
+/*
+ * ReadingPipeline
+ *
+ * Fans the frames coming off the straps out to any number of ReadingSinks.  Every sink that
+ * is registered gets a bounded queue of its own and a worker thread that takes frames off
+ * it and calls the sink, so publish() only copies the frame into each queue and returns.
+ * What happens when a sink can't keep up is up to the BackpressurePolicy it was registered
+ * with; apart from BLOCK, a slow sink never holds up the publisher or any other sink.
+ *
+ * Sinks can come and go while frames are flowing.  publish() is meant to be called from a
+ * single thread, registering and closing can happen from any thread.
+ *
+ * Each subscription times the frames going through it: how long they wait in the queue
+ * and how long the sink takes with each of them, see getQueueLatency() and getSinkLatency().
+ */
+public class ReadingPipeline {
+    /*
+     * Told about a sink that threw, on the sink's worker thread.  The sink has been taken out
+     * of the pipeline.
+     */
+    public interface ErrorListener {
+        void onSinkError(Subscription subscription, Exception e);
+    }
+
+    private static final int FRAME_LENGTH = HxmFrameReader.FRAME_LENGTH;
+
+    // how long a worker waits for frames before calling onIdle() anyway
+    private static final long IDLE_INTERVAL_MS = 1000;
+
+    private final ErrorListener mListener;
+
+    // copied on write, so publish() can go through it without taking a lock
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private boolean mClosed;
+    // the sinks that were registered when the pipeline was closed
+    private Subscription[] mClosedSubscriptions = new Subscription[0];
+
+    /*
+     * @param listener  told about failing sinks, may be null
+     */
+    public ReadingPipeline(ErrorListener listener) {
+        mListener = listener;
+    }
+
+    /*
+     * Add a sink, it gets every frame published from now on
+     * @param name      names the worker thread, and the sink in errors
+     * @param capacity  number of frames that can queue up for the sink
+     */
+    public synchronized Subscription register(String name, ReadingSink sink, int capacity, BackpressurePolicy policy) {
+        if (mClosed)
+            throw new IllegalStateException("pipeline is closed");
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be at least 1");
+
+        Subscription subscription = new Subscription(name, sink, capacity, policy);
+        Subscription[] subscriptions = new Subscription[mSubscriptions.length + 1];
+        System.arraycopy(mSubscriptions, 0, subscriptions, 0, mSubscriptions.length);
+        subscriptions[mSubscriptions.length] = subscription;
+        mSubscriptions = subscriptions;
+        subscription.mThread.start();
+        return subscription;
+    }
+
+    /*
+     * Queue a frame for every sink, the frame is copied so the caller can reuse its buffer
+     * right away
+     * @param device  the strap the frame came from, passed on to the sinks
+     * @param timeMs, elapsedMs  when the frame was read, see ReadingSink.onFrame()
+     */
+    public void publish(int device, long timeMs, long elapsedMs, HxmFrame frame) {
+        for (Subscription subscription : mSubscriptions)
+            subscription.offer(device, timeMs, elapsedMs, frame);
+    }
+
+    /*
+     * Close every sink and stop taking new ones.  Queued frames are still delivered, this
+     * does not wait for that, see awaitClosed().
+     */
+    public void close() {
+        Subscription[] subscriptions;
+        synchronized (this) {
+            mClosed = true;
+            subscriptions = mSubscriptions;
+            mClosedSubscriptions = subscriptions;
+            mSubscriptions = new Subscription[0];
+        }
+        for (Subscription subscription : subscriptions)
+            subscription.close();
+    }
+
+    /*
+     * Wait for the sinks that were registered when close() was called to finish
+     * @return true if they all finished within the timeout
+     */
+    public boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        Subscription[] subscriptions;
+        synchronized (this) {
+            subscriptions = mClosedSubscriptions;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Subscription subscription : subscriptions) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || !subscription.awaitClosed(left))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * The sinks currently registered
+     */
+    public Subscription[] getSubscriptions() {
+        return mSubscriptions.clone();
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] old = mSubscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == subscription) {
+                Subscription[] subscriptions = new Subscription[old.length - 1];
+                System.arraycopy(old, 0, subscriptions, 0, i);
+                System.arraycopy(old, i + 1, subscriptions, i, old.length - i - 1);
+                mSubscriptions = subscriptions;
+                return;
+            }
+        }
+    }
+
+    /*
+     * A registered sink, its queue and its worker thread
+     */
+    public class Subscription {
+        private final String mName;
+        private final ReadingSink mSink;
+        private final int mCapacity;
+        private final BackpressurePolicy mPolicy;
+        private final Thread mThread;
+
+        // The queue, a ring of frame slots guarded by this
+        private final int[] mDevices;
+        private final long[] mTimes;
+        private final long[] mElapsed;
+        // System.nanoTime() when each frame was queued
+        private final long[] mQueuedNanos;
+        private final byte[] mFrames;
+        private int mHead;
+        private int mCount;
+        private int mMaxCount;
+        private boolean mClosing;
+        private boolean mFailed;
+        private long mDropped;
+
+        // only written by the worker thread
+        private volatile long mDelivered;
+
+        private final LatencyHistogram mQueueLatency = new LatencyHistogram();
+        private final LatencyHistogram mSinkLatency = new LatencyHistogram();
+
+        Subscription(String name, ReadingSink sink, int capacity, BackpressurePolicy policy) {
+            mName = name;
+            mSink = sink;
+            mCapacity = capacity;
+            mPolicy = policy;
+            mDevices = new int[capacity];
+            mTimes = new long[capacity];
+            mElapsed = new long[capacity];
+            mQueuedNanos = new long[capacity];
+            mFrames = new byte[capacity * FRAME_LENGTH];
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    deliverLoop();
+                }
+            }, "ReadingSink-" + name);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public ReadingSink getSink() {
+            return mSink;
+        }
+
+        public BackpressurePolicy getPolicy() {
+            return mPolicy;
+        }
+
+        /*
+         * Frames handed to the sink so far
+         */
+        public long getDelivered() {
+            return mDelivered;
+        }
+
+        /*
+         * Frames the sink never saw because it fell behind
+         */
+        public synchronized long getDropped() {
+            return mDropped;
+        }
+
+        public synchronized int getQueued() {
+            return mCount;
+        }
+
+        /*
+         * The most frames that were ever queued at once
+         */
+        public synchronized int getMaxQueued() {
+            return mMaxCount;
+        }
+
+        /*
+         * Time from publish() to the sink being handed the frame
+         */
+        public LatencyHistogram getQueueLatency() {
+            return mQueueLatency;
+        }
+
+        /*
+         * Time the sink spends in onFrame()
+         */
+        public LatencyHistogram getSinkLatency() {
+            return mSinkLatency;
+        }
+
+        /*
+         * Take the sink out of the pipeline.  Frames already queued are still delivered, then
+         * the sink is closed.  Does not wait for that to happen, see awaitClosed().
+         */
+        public void close() {
+            remove(this);
+            synchronized (this) {
+                mClosing = true;
+                notifyAll();
+            }
+        }
+
+        /*
+         * Wait for the worker to finish after close()
+         * @return true if it finished within the timeout
+         */
+        public boolean awaitClosed(long timeoutMs) throws InterruptedException {
+            mThread.join(timeoutMs);
+            return !mThread.isAlive();
+        }
+
+        /*
+         * @return false if the frame was not queued, because the sink is closed, failed or
+         *         the publisher was interrupted while waiting for room
+         */
+        synchronized boolean offer(int device, long timeMs, long elapsedMs, HxmFrame frame) {
+            if (mClosing || mFailed)
+                return false;
+
+            if (mCount == mCapacity) {
+                switch (mPolicy) {
+                    case DROP_OLDEST:
+                        mHead = (mHead + 1) % mCapacity;
+                        mCount--;
+                        mDropped++;
+                        break;
+
+                    case SAMPLE: {
+                        // replace the latest frame of the same strap, so no strap drops out
+                        // of the sample, or the latest frame if the strap has none queued
+                        int slot = (mHead + mCount - 1) % mCapacity;
+                        for (int i = mCount - 1; i >= 0; i--) {
+                            int s = (mHead + i) % mCapacity;
+                            if (mDevices[s] == device) {
+                                slot = s;
+                                break;
+                            }
+                        }
+                        mDevices[slot] = device;
+                        mTimes[slot] = timeMs;
+                        mElapsed[slot] = elapsedMs;
+                        mQueuedNanos[slot] = System.nanoTime();
+                        frame.copyTo(mFrames, slot * FRAME_LENGTH);
+                        mDropped++;
+                        return true;
+                    }
+
+                    case BLOCK:
+                        while (mCount == mCapacity && !mClosing && !mFailed) {
+                            try {
+                                wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                mDropped++;
+                                return false;
+                            }
+                        }
+                        if (mClosing || mFailed)
+                            return false;
+                        break;
+                }
+            }
+
+            int slot = (mHead + mCount) % mCapacity;
+            mDevices[slot] = device;
+            mTimes[slot] = timeMs;
+            mElapsed[slot] = elapsedMs;
+            mQueuedNanos[slot] = System.nanoTime();
+            frame.copyTo(mFrames, slot * FRAME_LENGTH);
+            mCount++;
+            if (mCount > mMaxCount)
+                mMaxCount = mCount;
+            notifyAll();
+            return true;
+        }
+
+        private void deliverLoop() {
+            // Everything below is only touched by the worker thread
+            int[] devices = new int[mCapacity];
+            long[] times = new long[mCapacity];
+            long[] elapsed = new long[mCapacity];
+            long[] queuedNanos = new long[mCapacity];
+            byte[] frames = new byte[mCapacity * FRAME_LENGTH];
+            HxmFrame frame = new HxmFrame();
+
+            try {
+                while (true) {
+                    int batch;
+                    boolean closing;
+                    synchronized (this) {
+                        if (mCount == 0 && !mClosing) {
+                            try {
+                                wait(IDLE_INTERVAL_MS);
+                            } catch (InterruptedException e) {
+                                mClosing = true;
+                            }
+                        }
+                        // take everything that is queued in one go
+                        batch = mCount;
+                        for (int i = 0; i < batch; i++) {
+                            int slot = (mHead + i) % mCapacity;
+                            devices[i] = mDevices[slot];
+                            times[i] = mTimes[slot];
+                            elapsed[i] = mElapsed[slot];
+                            queuedNanos[i] = mQueuedNanos[slot];
+                            System.arraycopy(mFrames, slot * FRAME_LENGTH, frames, i * FRAME_LENGTH, FRAME_LENGTH);
+                        }
+                        mHead = (mHead + batch) % mCapacity;
+                        mCount = 0;
+                        closing = mClosing;
+                        // make room for a publisher that is blocked on us
+                        if (batch > 0)
+                            notifyAll();
+                    }
+
+                    for (int i = 0; i < batch; i++) {
+                        long start = System.nanoTime();
+                        mQueueLatency.record(start - queuedNanos[i]);
+                        mSink.onFrame(devices[i], times[i], elapsed[i], frame.wrap(frames, i * FRAME_LENGTH));
+                        mSinkLatency.recordSince(start);
+                        mDelivered++;
+                    }
+                    mSink.onIdle();
+
+                    if (closing)
+                        break;
+                }
+            } catch (IOException | RuntimeException e) {
+                remove(this);
+                synchronized (this) {
+                    mFailed = true;
+                    mCount = 0;
+                    notifyAll();
+                }
+                if (mListener != null)
+                    mListener.onSinkError(this, e);
+            } finally {
+                mSink.onClose();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.mcxa.zephyrlogger.pipeline;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+
+import java.io.IOException;
+
+/*
+ * ReadingSink
+ *
+ * A consumer of the frames published to a ReadingPipeline: the display, a session file,
+ * analytics, a network forwarder...  Each sink is called on a thread of its own, one call
+ * at a time, so a sink needs no locking for its own state and a slow one only holds up
+ * itself.
+ */
+public interface ReadingSink {
+    /*
+     * A frame was received.  The frame is only valid during the call, copy out what is needed.
+     * Throwing takes the sink out of the pipeline, onClose() is still called.
+     * @param device     which strap the frame came from, when several are connected
+     * @param timeMs     wall clock time the frame was read, for recording it
+     * @param elapsedMs  the same moment on the phone's monotonic clock (elapsedRealtime), for
+     *                   timing frames against each other, the wall clock can be set under us
+     */
+    void onFrame(int device, long timeMs, long elapsedMs, HxmFrame frame) throws IOException;
+
+    /*
+     * Called once the queue has been drained, and every so often while no frames come in,
+     * for work like flushing that should happen between frames
+     */
+    void onIdle() throws IOException;
+
+    /*
+     * The sink was removed or the pipeline closed, after the last frame.  Release what the
+     * sink holds, nothing else is called after this.
+     */
+    void onClose();
+}
@@ -0,0 +1,65 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.mcxa.zephyrlogger.session.BinarySessionFormat.*;
+
+/*
+ * BinarySessionEncoder
+ *
+ * Writes sessions in the BinarySessionFormat, the message bytes go out untouched so there is
+ * no per-frame formatting at all.
+ */
+public class BinarySessionEncoder implements SessionEncoder {
+    private final byte[] mRecord = new byte[FRAME_RECORD_LENGTH];
+    private final byte[] mGap = new byte[GAP_RECORD_LENGTH];
+
+    @Override
+    public String extension() {
+        return EXTENSION;
+    }
+
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        putShort(header, 4, VERSION);
+        putShort(header, 6, HEADER_LENGTH);
+        putShort(header, 8, HxmFrameReader.FRAME_LENGTH);
+        out.write(header);
+    }
+
+    @Override
+    public void writeFrame(OutputStream out, long timeMs, HxmFrame frame) throws IOException {
+        putShort(mRecord, 0, FRAME_RECORD_BODY_LENGTH + 1);
+        mRecord[2] = TYPE_FRAME;
+        putLong(mRecord, 3, timeMs);
+        frame.copyTo(mRecord, 11);
+        out.write(mRecord);
+    }
+
+    @Override
+    public void writeGap(OutputStream out, long startMs, long endMs) throws IOException {
+        putShort(mGap, 0, GAP_RECORD_BODY_LENGTH + 1);
+        mGap[2] = TYPE_GAP;
+        putLong(mGap, 3, startMs);
+        putLong(mGap, 11, endMs);
+        out.write(mGap);
+    }
+
+    static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    static void putLong(byte[] b, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+/*
+ * BinarySessionFormat
+ *
+ * Layout of the compact session files, which keep the raw HxM messages instead of formatting
+ * them as text.  All numbers are big endian.
+ *
+ * The file starts with a header block:
+ *
+ *      magic "ZLOG" | version (u16) | header length (u16) | frame length (u16) | reserved
+ *
+ * followed by records, each prefixed with its length so readers can step over record types
+ * they don't know about:
+ *
+ *      length (u16, bytes after this field) | type (u8) | body
+ *
+ * A frame record (TYPE_FRAME) has the receive time in ms since the epoch (i64) followed by
+ * the 60 bytes of the message exactly as they came off the wire, 71 bytes in all against
+ * roughly 150 for the same frame as a CSV line.
+ *
+ * A gap record (TYPE_GAP) marks a time the strap was not connected: the receive times of the
+ * last frame before it and the first frame after it (i64 each).  Readers from before gaps
+ * were recorded skip them like any other record they don't know.
+ */
+public final class BinarySessionFormat {
+    public static final String EXTENSION = ".zlog";
+
+    public static final byte[] MAGIC = {'Z', 'L', 'O', 'G'};
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+
+    public static final int TYPE_FRAME = 1;
+    public static final int TYPE_GAP = 2;
+
+    // length prefix + type
+    public static final int RECORD_HEADER_LENGTH = 3;
+    public static final int FRAME_RECORD_BODY_LENGTH = 8 + HxmFrameReader.FRAME_LENGTH;
+    public static final int FRAME_RECORD_LENGTH = RECORD_HEADER_LENGTH + FRAME_RECORD_BODY_LENGTH;
+    public static final int GAP_RECORD_BODY_LENGTH = 16;
+    public static final int GAP_RECORD_LENGTH = RECORD_HEADER_LENGTH + GAP_RECORD_BODY_LENGTH;
+
+    private BinarySessionFormat() {
+    }
+
+    /*
+     * Does the start of a file look like one of ours?
+     */
+    public static boolean hasMagic(byte[] bytes, int offset, int length) {
+        if (length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[offset + i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+}
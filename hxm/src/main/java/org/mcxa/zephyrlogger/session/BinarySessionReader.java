@@ -0,0 +1,122 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.mcxa.zephyrlogger.session.BinarySessionFormat.*;
+
+/*
+ * BinarySessionReader
+ *
+ * Reads a session written in the BinarySessionFormat one frame at a time, or with
+ * nextRecord() the gaps in between as well.  The frame handed out by frame() is a view over
+ * the reader's own buffer, it changes with every next().
+ */
+public class BinarySessionReader implements Closeable {
+    private final DataInputStream mIn;
+    private final int mVersion;
+    private final byte[] mBody = new byte[0xFFFF];
+    private final HxmFrame mFrame = new HxmFrame();
+    private long mTimeMs;
+    private long mGapEndMs;
+
+    public BinarySessionReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(in);
+
+        byte[] magic = new byte[MAGIC.length];
+        mIn.readFully(magic);
+        if (!hasMagic(magic, 0, magic.length))
+            throw new IOException("not a binary ZephyrLogger session");
+        mVersion = mIn.readUnsignedShort();
+        if (mVersion > VERSION)
+            throw new IOException("session format version " + mVersion + " is newer than this reader");
+        int headerLength = mIn.readUnsignedShort();
+        int frameLength = mIn.readUnsignedShort();
+        if (headerLength < 10)
+            throw new IOException("corrupt session header");
+        if (frameLength != HxmFrameReader.FRAME_LENGTH)
+            throw new IOException("unexpected frame length " + frameLength);
+        // skip whatever else is in the header
+        mIn.readFully(mBody, 0, headerLength - 10);
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /*
+     * Move on to the next frame record, records of other types are skipped.
+     * @return false at the end of the session, a record cut short by the end of the
+     *         file (the recording was interrupted) also ends the session
+     */
+    public boolean next() throws IOException {
+        int type;
+        do {
+            type = nextRecord();
+        } while (type == TYPE_GAP);
+        return type == TYPE_FRAME;
+    }
+
+    /*
+     * Move on to the next frame or gap, records of other types are skipped.  For a gap,
+     * timeMs() is when it started and gapEndMs() when it ended.
+     * @return TYPE_FRAME or TYPE_GAP, -1 at the end of the session
+     */
+    public int nextRecord() throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = mIn.readUnsignedShort();
+                mIn.readFully(mBody, 0, length);
+            } catch (EOFException e) {
+                return -1;
+            }
+            if (length == 0)
+                throw new IOException("corrupt session, empty record");
+
+            if (mBody[0] == TYPE_FRAME && length == FRAME_RECORD_BODY_LENGTH + 1) {
+                mTimeMs = getLong(mBody, 1);
+                mFrame.wrap(mBody, 9);
+                return TYPE_FRAME;
+            }
+            if (mBody[0] == TYPE_GAP && length == GAP_RECORD_BODY_LENGTH + 1) {
+                mTimeMs = getLong(mBody, 1);
+                mGapEndMs = getLong(mBody, 9);
+                return TYPE_GAP;
+            }
+        }
+    }
+
+    public long timeMs() {
+        return mTimeMs;
+    }
+
+    /*
+     * Receive time of the first frame after the current gap
+     */
+    public long gapEndMs() {
+        return mGapEndMs;
+    }
+
+    public HxmFrame frame() {
+        return mFrame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    static long getLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        return value;
+    }
+}
@@ -0,0 +1,89 @@
+package org.mcxa.zephyrlogger.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * BinaryToCsv
+ *
+ * Desktop converter from binary session files to the CSV data files the app writes in text
+ * mode, so existing tools keep working on sessions recorded in the compact format.
+ *
+ *      java -cp hxm.jar org.mcxa.zephyrlogger.session.BinaryToCsv Zephyr_<tag>_data.zlog [out.txt]
+ *
+ * Without an output name the .zlog extension is swapped for .txt.  Segments that have been
+ * compressed (.zlog.gz, see SegmentCompactor) are read as they are.  Gaps in the recording
+ * come out as the same #gap comment lines the app writes.
+ */
+public class BinaryToCsv {
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: BinaryToCsv <session.zlog> [output.txt]");
+            System.exit(2);
+        }
+
+        File in = new File(args[0]);
+        File out;
+        if (args.length == 2) {
+            out = new File(args[1]);
+        } else {
+            String name = in.getName();
+            if (name.endsWith(SegmentCompactor.EXTENSION))
+                name = name.substring(0, name.length() - SegmentCompactor.EXTENSION.length());
+            if (name.endsWith(BinarySessionFormat.EXTENSION))
+                name = name.substring(0, name.length() - BinarySessionFormat.EXTENSION.length());
+            out = new File(in.getParentFile(), name + CsvSessionEncoder.EXTENSION);
+        }
+
+        try {
+            long frames = convert(in, out);
+            System.out.println(in + " -> " + out + ": " + frames + " frames");
+        } catch (IOException e) {
+            System.err.println(in + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /*
+     * @return the number of frames converted
+     */
+    public static long convert(File in, File out) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(in), 65536);
+        if (in.getName().endsWith(SegmentCompactor.EXTENSION))
+            is = new GZIPInputStream(is, 65536);
+        BinarySessionReader reader = new BinarySessionReader(is);
+        try {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 65536);
+            try {
+                return convert(reader, os);
+            } finally {
+                os.close();
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static long convert(BinarySessionReader reader, OutputStream out) throws IOException {
+        CsvSessionEncoder csv = new CsvSessionEncoder();
+        csv.writeHeader(out);
+        long frames = 0;
+        int type;
+        while ((type = reader.nextRecord()) >= 0) {
+            if (type == BinarySessionFormat.TYPE_GAP) {
+                csv.writeGap(out, reader.timeMs(), reader.gapEndMs());
+            } else {
+                csv.writeFrame(out, reader.timeMs(), reader.frame());
+                frames++;
+            }
+        }
+        return frames;
+    }
+}
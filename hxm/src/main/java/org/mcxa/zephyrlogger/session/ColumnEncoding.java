@@ -0,0 +1,259 @@
+package org.mcxa.zephyrlogger.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.mcxa.zephyrlogger.session.ColumnarSessionFormat.ENCODING_DELTA;
+import static org.mcxa.zephyrlogger.session.ColumnarSessionFormat.ENCODING_PACKED;
+import static org.mcxa.zephyrlogger.session.ColumnarSessionFormat.ENCODING_RLE;
+
+/*
+ * ColumnEncoding
+ *
+ * Encodes and decodes the values of one column chunk of a columnar session file (see
+ * ColumnarSessionFormat).  A chunk is
+ *
+ *      encoding (u8) | body
+ *
+ * with numbers in the body as varints (7 bits a byte, low first, signed ones zigzagged):
+ *
+ *      RLE     runs of (value, run length) up to the number of values
+ *      PACKED  smallest value | bits per value (u8) | every value less the smallest, bit
+ *              packed with the high bit first
+ *      DELTA   first value | bits of the field (u8) | the differences between each value and
+ *              the one before as a PACKED body, taken modulo 2^bits for a message field so
+ *              a counter that wraps around doesn't make them any wider
+ *
+ * encode() works out the size of each and writes the smallest.
+ */
+final class ColumnEncoding {
+    private ColumnEncoding() {
+    }
+
+    /*
+     * @param fieldBits  width of the message field the values come from, 0 if they don't wrap
+     * @param scratch    at least count long, for the differences
+     */
+    static void encode(long[] values, int count, int fieldBits, long[] scratch, ByteArrayOutputStream out) {
+        long rleSize = rleSize(values, count);
+        long packedSize = packedSize(values, 0, count);
+        long deltaSize = Long.MAX_VALUE;
+        if (count > 1) {
+            deltas(values, count, fieldBits, scratch);
+            deltaSize = varintSize(zigzag(values[0])) + 1 + packedSize(scratch, 0, count - 1);
+        }
+
+        if (rleSize <= packedSize && rleSize <= deltaSize) {
+            out.write(ENCODING_RLE);
+            writeRle(values, count, out);
+        } else if (packedSize <= deltaSize) {
+            out.write(ENCODING_PACKED);
+            writePacked(values, 0, count, out);
+        } else {
+            out.write(ENCODING_DELTA);
+            writeVarint(zigzag(values[0]), out);
+            out.write(fieldBits);
+            writePacked(scratch, 0, count - 1, out);
+        }
+    }
+
+    /*
+     * Decode the count values of a chunk, the first length bytes of bytes, into values
+     */
+    static void decode(byte[] bytes, int length, int count, long[] values) throws IOException {
+        Input in = new Input(bytes, length);
+        int encoding = in.u8();
+        switch (encoding) {
+            case ENCODING_RLE:
+                for (int i = 0; i < count; ) {
+                    long value = unzigzag(in.varint());
+                    long run = in.varint();
+                    if (run <= 0 || run > count - i)
+                        throw new IOException("corrupt column, run of " + run);
+                    for (long r = 0; r < run; r++)
+                        values[i++] = value;
+                }
+                break;
+
+            case ENCODING_PACKED:
+                readPacked(in, values, 0, count);
+                break;
+
+            case ENCODING_DELTA:
+                if (count == 0)
+                    break;
+                values[0] = unzigzag(in.varint());
+                int bits = in.u8();
+                long mask = bits == 0 || bits >= 64 ? -1L : (1L << bits) - 1;
+                readPacked(in, values, 1, count - 1);
+                for (int i = 1; i < count; i++)
+                    values[i] = (values[i - 1] + values[i]) & mask;
+                break;
+
+            default:
+                throw new IOException("unknown column encoding " + encoding);
+        }
+    }
+
+    private static long rleSize(long[] values, int count) {
+        long size = 0;
+        for (int i = 0; i < count; ) {
+            int run = 1;
+            while (i + run < count && values[i + run] == values[i])
+                run++;
+            size += varintSize(zigzag(values[i])) + varintSize(run);
+            i += run;
+        }
+        return size;
+    }
+
+    private static void writeRle(long[] values, int count, ByteArrayOutputStream out) {
+        for (int i = 0; i < count; ) {
+            int run = 1;
+            while (i + run < count && values[i + run] == values[i])
+                run++;
+            writeVarint(zigzag(values[i]), out);
+            writeVarint(run, out);
+            i += run;
+        }
+    }
+
+    private static void deltas(long[] values, int count, int fieldBits, long[] out) {
+        long mask = fieldBits == 0 ? -1L : (1L << fieldBits) - 1;
+        for (int i = 1; i < count; i++)
+            out[i - 1] = (values[i] - values[i - 1]) & mask;
+    }
+
+    private static long packedSize(long[] values, int from, int count) {
+        if (count == 0)
+            return 2;
+        long min = min(values, from, count);
+        int width = width(values, from, count, min);
+        return varintSize(zigzag(min)) + 1 + ((long) count * width + 7) / 8;
+    }
+
+    private static void writePacked(long[] values, int from, int count, ByteArrayOutputStream out) {
+        long min = count == 0 ? 0 : min(values, from, count);
+        int width = width(values, from, count, min);
+        writeVarint(zigzag(min), out);
+        out.write(width);
+
+        long acc = 0;
+        int bits = 0;
+        for (int i = from; i < from + count; i++) {
+            long x = values[i] - min;
+            // at most 32 bits at a time, so the few bits still waiting in acc never spill out
+            for (int remaining = width; remaining > 0; ) {
+                int take = Math.min(remaining, 32);
+                remaining -= take;
+                acc = acc << take | (x >>> remaining) & ((1L << take) - 1);
+                bits += take;
+                while (bits >= 8) {
+                    bits -= 8;
+                    out.write((int) (acc >>> bits));
+                }
+            }
+        }
+        if (bits > 0)
+            out.write((int) (acc << (8 - bits)));
+    }
+
+    private static void readPacked(Input in, long[] values, int from, int count) throws IOException {
+        long min = unzigzag(in.varint());
+        int width = in.u8();
+        if (width > 64)
+            throw new IOException("corrupt column, " + width + " bits per value");
+
+        long acc = 0;
+        int bits = 0;
+        for (int i = from; i < from + count; i++) {
+            long x = 0;
+            for (int remaining = width; remaining > 0; ) {
+                int take = Math.min(remaining, 32);
+                remaining -= take;
+                while (bits < take) {
+                    acc = acc << 8 | in.u8();
+                    bits += 8;
+                }
+                bits -= take;
+                x = x << take | (acc >>> bits) & ((1L << take) - 1);
+            }
+            values[i] = min + x;
+        }
+    }
+
+    private static long min(long[] values, int from, int count) {
+        long min = Long.MAX_VALUE;
+        for (int i = from; i < from + count; i++)
+            min = Math.min(min, values[i]);
+        return min;
+    }
+
+    /*
+     * Bits needed for the largest value less min, 64 if the range doesn't fit a long
+     */
+    private static int width(long[] values, int from, int count, long min) {
+        long range = 0;
+        for (int i = from; i < from + count; i++) {
+            long x = values[i] - min;
+            if (x < 0)
+                return 64;
+            range = Math.max(range, x);
+        }
+        return 64 - Long.numberOfLeadingZeros(range);
+    }
+
+    private static long zigzag(long v) {
+        return v << 1 ^ v >> 63;
+    }
+
+    private static long unzigzag(long v) {
+        return v >>> 1 ^ -(v & 1);
+    }
+
+    private static int varintSize(long v) {
+        int size = 1;
+        while ((v >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    private static void writeVarint(long v, ByteArrayOutputStream out) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    /*
+     * Read position in the bytes of a chunk
+     */
+    private static class Input {
+        private final byte[] mBytes;
+        private final int mLength;
+        private int mPos;
+
+        Input(byte[] bytes, int length) {
+            mBytes = bytes;
+            mLength = length;
+        }
+
+        int u8() throws IOException {
+            if (mPos >= mLength)
+                throw new IOException("corrupt column, cut short");
+            return mBytes[mPos++] & 0xFF;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = u8();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return v;
+            }
+            throw new IOException("corrupt column, varint too long");
+        }
+    }
+}
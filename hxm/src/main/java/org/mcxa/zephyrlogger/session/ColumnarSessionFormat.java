@@ -0,0 +1,76 @@
+package org.mcxa.zephyrlogger.session;
+
+/*
+ * ColumnarSessionFormat
+ *
+ * Layout of the columnar session files, made for analytics over whole archives rather than
+ * for recording: a query that wants the heart rate and the R-R intervals reads those two
+ * columns and skips the bytes of all the others.  All numbers are big endian.
+ *
+ *      magic "ZCOL" | version (u16) | reserved (u16) | row groups | footer |
+ *      footer length (i32) | magic "ZCOL"
+ *
+ * The rows, one per frame, are cut into row groups of ROW_GROUP_ROWS, and each row group
+ * is stored a column after the other.  The columns are the receive time, every field of the
+ * message (FIELDS, named like the CSV columns) so the frames can be rebuilt exactly, and
+ * the R-R intervals pulled out of the beat timestamps (see RrIntervalExtractor): RR_COUNT,
+ * the number of new intervals in each frame, and RR, all the intervals one after the other.
+ *
+ * Every column chunk picks whichever of three encodings (see ColumnEncoding) comes out
+ * smallest for its values:
+ *
+ *  - ENCODING_RLE, runs of the same value, for the columns that hardly ever change: the
+ *    header bytes, the firmware and hardware ids, the reserved fields
+ *  - ENCODING_PACKED, the values less the smallest one in as few bits as they need, for
+ *    heart rate, R-R and the like that stay in a narrow range
+ *  - ENCODING_DELTA, the differences between one value and the next, packed the same way,
+ *    for the receive times, the beat numbers and the beat timestamps
+ *
+ * The footer has the column names and, for every row group, where each column chunk is,
+ * how long it is and how many values it has, followed by the gaps in the recording:
+ *
+ *      columns (u16) | per column: name (UTF) | width in bits of the message field, 0 for others
+ *      row groups (i32) | per group: rows (i32) | per column: offset (i64) | length (i32) | values (i32)
+ *      gaps (i32) | per gap: start (i64) | end (i64)
+ */
+public final class ColumnarSessionFormat {
+    public static final String EXTENSION = ".zcol";
+
+    public static final byte[] MAGIC = {'Z', 'C', 'O', 'L'};
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+    // footer length and the magic again
+    public static final int TRAILER_LENGTH = 8;
+
+    // about four and a half hours of frames
+    public static final int ROW_GROUP_ROWS = 16384;
+
+    public static final int ENCODING_RLE = 1;
+    public static final int ENCODING_PACKED = 2;
+    public static final int ENCODING_DELTA = 3;
+
+    public static final String TIME = "time";
+    public static final String HEART_RATE = "heartRate";
+    public static final String RR_COUNT = "rrCount";
+    public static final String RR = "rr";
+
+    /*
+     * The fields of the message in the order they come, and their width in bytes
+     */
+    public static final String[] FIELDS = {
+            "stx", "msgId", "dlc", "firmwareId", "firmwareVersion", "hardwareId",
+            "hardwareVersion", "batteryIndicator", "heartRate", "heartBeatNumber",
+            "hbTime1", "hbTime2", "hbTime3", "hbTime4", "hbTime5", "hbTime6", "hbTime7",
+            "hbTime8", "hbTime9", "hbTime10", "hbTime11", "hbTime12", "hbTime13", "hbTime14",
+            "hbTime15", "reserved1", "reserved2", "reserved3", "distance", "speed", "strides",
+            "reserved4", "reserved5", "crc", "etx"
+    };
+    public static final int[] FIELD_WIDTHS = {
+            1, 1, 1, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+            2, 2, 2, 2, 2, 1, 1, 2, 1, 1
+    };
+
+    private ColumnarSessionFormat() {
+    }
+}
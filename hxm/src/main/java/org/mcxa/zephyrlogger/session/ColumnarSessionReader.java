@@ -0,0 +1,189 @@
+package org.mcxa.zephyrlogger.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.mcxa.zephyrlogger.session.ColumnarSessionFormat.*;
+
+/*
+ * ColumnarSessionReader
+ *
+ * Reads the columns of a columnar session file (see ColumnarSessionFormat).  Opening the
+ * file only reads its footer, and readColumns() then reads the chunks of the columns asked
+ * for and nothing else: the heart rate and R-R intervals of a session come to a few percent
+ * of the file.
+ *
+ *      ColumnarSessionReader reader = new ColumnarSessionReader(file);
+ *      long[][] columns = reader.readColumns(ColumnarSessionFormat.HEART_RATE, ColumnarSessionFormat.RR);
+ *
+ * Every column has a value per row except RR, which has every interval one after the other,
+ * RR_COUNT of them for each row.
+ */
+public class ColumnarSessionReader implements Closeable {
+    private final RandomAccessFile mFile;
+    private final List<String> mColumns = new ArrayList<>();
+    // per row group and column: offset, length, values
+    private final long[][][] mChunks;
+    private final long[] mGaps;
+    private long mRows;
+    private long mBytesRead;
+
+    public ColumnarSessionReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        boolean ok = false;
+        try {
+            long length = mFile.length();
+            byte[] header = new byte[HEADER_LENGTH];
+            byte[] trailer = new byte[TRAILER_LENGTH];
+            if (length < HEADER_LENGTH + TRAILER_LENGTH)
+                throw new IOException(file + " is not a columnar session");
+            mFile.readFully(header);
+            mFile.seek(length - TRAILER_LENGTH);
+            mFile.readFully(trailer);
+            if (!startsWithMagic(header, 0) || !startsWithMagic(trailer, 4))
+                throw new IOException(file + " is not a columnar session, or it was never finished");
+            int version = (header[4] & 0xFF) << 8 | (header[5] & 0xFF);
+            if (version > VERSION)
+                throw new IOException("columnar session version " + version + " is newer than this reader");
+
+            int footerLength = (trailer[0] & 0xFF) << 24 | (trailer[1] & 0xFF) << 16
+                    | (trailer[2] & 0xFF) << 8 | (trailer[3] & 0xFF);
+            if (footerLength < 0 || footerLength > length - HEADER_LENGTH - TRAILER_LENGTH)
+                throw new IOException(file + " has a corrupt footer");
+            byte[] footer = new byte[footerLength];
+            mFile.seek(length - TRAILER_LENGTH - footerLength);
+            mFile.readFully(footer);
+            mBytesRead = HEADER_LENGTH + TRAILER_LENGTH + footerLength;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+            int columns = in.readUnsignedShort();
+            for (int c = 0; c < columns; c++) {
+                mColumns.add(in.readUTF());
+                in.readUnsignedByte();
+            }
+            int groups = in.readInt();
+            mChunks = new long[groups][columns][];
+            for (int g = 0; g < groups; g++) {
+                mRows += in.readInt();
+                for (int c = 0; c < columns; c++)
+                    mChunks[g][c] = new long[]{in.readLong(), in.readInt(), in.readInt()};
+            }
+            int gaps = in.readInt();
+            mGaps = new long[2 * gaps];
+            for (int i = 0; i < mGaps.length; i++)
+                mGaps[i] = in.readLong();
+            ok = true;
+        } finally {
+            if (!ok)
+                mFile.close();
+        }
+    }
+
+    /*
+     * Number of rows, one per frame
+     */
+    public long getRows() {
+        return mRows;
+    }
+
+    public List<String> getColumns() {
+        return Collections.unmodifiableList(mColumns);
+    }
+
+    /*
+     * The gaps in the recording, the start and end of each one after the other
+     */
+    public long[] getGaps() {
+        return mGaps.clone();
+    }
+
+    /*
+     * Bytes read from the file so far, footer included
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long[] readColumn(String name) throws IOException {
+        return readColumns(name)[0];
+    }
+
+    /*
+     * Read whole columns, the chunks of each row group in the order they are in the file
+     * @return the values of each column, in the order asked for
+     */
+    public long[][] readColumns(String... names) throws IOException {
+        int[] indexes = new int[names.length];
+        long[][] values = new long[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            indexes[i] = mColumns.indexOf(names[i]);
+            if (indexes[i] < 0)
+                throw new IOException("no column " + names[i]);
+            long count = 0;
+            for (long[][] group : mChunks)
+                count += group[indexes[i]][2];
+            if (count > Integer.MAX_VALUE)
+                throw new IOException("column " + names[i] + " is too long to read in one go");
+            values[i] = new long[(int) count];
+        }
+
+        int[] filled = new int[names.length];
+        byte[] bytes = new byte[0];
+        long[] chunkValues = new long[0];
+        // the columns in file order, so the reads only ever go forward
+        Integer[] order = fileOrder(indexes);
+        for (long[][] group : mChunks) {
+            for (int k : order) {
+                long[] chunk = group[indexes[k]];
+                int length = (int) chunk[1];
+                int count = (int) chunk[2];
+                if (bytes.length < length)
+                    bytes = new byte[length];
+                mFile.seek(chunk[0]);
+                mFile.readFully(bytes, 0, length);
+                mBytesRead += length;
+                if (chunkValues.length < count)
+                    chunkValues = new long[count];
+                ColumnEncoding.decode(bytes, length, count, chunkValues);
+                System.arraycopy(chunkValues, 0, values[k], filled[k], count);
+                filled[k] += count;
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private static Integer[] fileOrder(final int[] indexes) {
+        Integer[] order = new Integer[indexes.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return indexes[a] - indexes[b];
+            }
+        });
+        return order;
+    }
+
+    private static boolean startsWithMagic(byte[] bytes, int offset) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[offset + i] != MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+}
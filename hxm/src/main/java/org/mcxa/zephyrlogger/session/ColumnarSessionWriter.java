@@ -0,0 +1,163 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.mcxa.zephyrlogger.session.ColumnarSessionFormat.*;
+
+/*
+ * ColumnarSessionWriter
+ *
+ * Writes a session as a columnar file (see ColumnarSessionFormat), for exporting recordings
+ * to be analysed rather than while recording: the values of a row group are held in memory
+ * column by column until it is full, and the file is only complete once close() has written
+ * the footer.
+ *
+ * Not thread safe.
+ */
+public class ColumnarSessionWriter implements Closeable {
+    // the time column, the message fields, then the R-R columns
+    private static final int FIELD_COLUMN = 1;
+    private static final int RR_COUNT_COLUMN = FIELD_COLUMN + FIELDS.length;
+    private static final int RR_COLUMN = RR_COUNT_COLUMN + 1;
+    private static final int COLUMNS = RR_COLUMN + 1;
+
+    private final DataOutputStream mOut;
+    private long mOffset;
+
+    private final long[][] mValues = new long[COLUMNS][];
+    private int mRows;
+    private int mRrCount;
+    private long[] mScratch = new long[ROW_GROUP_ROWS];
+    private final ByteArrayOutputStream mChunk = new ByteArrayOutputStream(ROW_GROUP_ROWS);
+
+    private final byte[] mFrame = new byte[HxmFrameReader.FRAME_LENGTH];
+    private final RrBuffer mRrBuffer = new RrBuffer(HxmFrame.HB_TIME_COUNT + 1);
+    private final RrIntervalExtractor mRrExtractor = new RrIntervalExtractor(mRrBuffer);
+
+    // offset, length and values of every column chunk written, a row group after the other
+    private final List<long[]> mChunks = new ArrayList<>();
+    private final List<Integer> mGroupRows = new ArrayList<>();
+    private final List<long[]> mGaps = new ArrayList<>();
+
+    public ColumnarSessionWriter(File file) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        for (int c = 0; c < COLUMNS; c++)
+            mValues[c] = new long[c == RR_COLUMN ? ROW_GROUP_ROWS * 2 : ROW_GROUP_ROWS];
+        mOut.write(MAGIC);
+        mOut.writeShort(VERSION);
+        mOut.writeShort(0);
+        mOffset = HEADER_LENGTH;
+    }
+
+    public void writeFrame(long timeMs, HxmFrame frame) throws IOException {
+        mValues[0][mRows] = timeMs;
+        frame.copyTo(mFrame, 0);
+        for (int f = 0, offset = 0; f < FIELDS.length; f++) {
+            int value = mFrame[offset] & 0xFF;
+            if (FIELD_WIDTHS[f] == 2)
+                value |= (mFrame[offset + 1] & 0xFF) << 8;
+            mValues[FIELD_COLUMN + f][mRows] = value;
+            offset += FIELD_WIDTHS[f];
+        }
+
+        int newIntervals = mRrExtractor.extract(frame, timeMs);
+        mValues[RR_COUNT_COLUMN][mRows] = newIntervals;
+        long[] rr = mValues[RR_COLUMN];
+        if (mRrCount + newIntervals > rr.length)
+            rr = mValues[RR_COLUMN] = Arrays.copyOf(rr, rr.length * 2);
+        for (int i = newIntervals - 1; i >= 0; i--)
+            rr[mRrCount++] = mRrBuffer.latest(i);
+
+        if (++mRows == ROW_GROUP_ROWS)
+            writeRowGroup();
+    }
+
+    /*
+     * The strap was not connected between these two receive times.  It kept counting beats,
+     * the R-R intervals carry on across the gap with the ones that went by while it lasted
+     * left out.
+     */
+    public void writeGap(long startMs, long endMs) {
+        mGaps.add(new long[]{startMs, endMs});
+    }
+
+    /*
+     * Write what is left and the footer
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mRows > 0)
+                writeRowGroup();
+            writeFooter();
+        } finally {
+            mOut.close();
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        for (int c = 0; c < COLUMNS; c++) {
+            int count = c == RR_COLUMN ? mRrCount : mRows;
+            int fieldBits = c >= FIELD_COLUMN && c < RR_COUNT_COLUMN ? 8 * FIELD_WIDTHS[c - FIELD_COLUMN] : 0;
+            if (mScratch.length < count)
+                mScratch = new long[count];
+            mChunk.reset();
+            ColumnEncoding.encode(mValues[c], count, fieldBits, mScratch, mChunk);
+            mChunk.writeTo(mOut);
+            mChunks.add(new long[]{mOffset, mChunk.size(), count});
+            mOffset += mChunk.size();
+        }
+        mGroupRows.add(mRows);
+        mRows = 0;
+        mRrCount = 0;
+    }
+
+    private void writeFooter() throws IOException {
+        int start = mOut.size();
+        mOut.writeShort(COLUMNS);
+        mOut.writeUTF(TIME);
+        mOut.writeByte(0);
+        for (int f = 0; f < FIELDS.length; f++) {
+            mOut.writeUTF(FIELDS[f]);
+            mOut.writeByte(8 * FIELD_WIDTHS[f]);
+        }
+        mOut.writeUTF(RR_COUNT);
+        mOut.writeByte(0);
+        mOut.writeUTF(RR);
+        mOut.writeByte(0);
+
+        mOut.writeInt(mGroupRows.size());
+        for (int g = 0; g < mGroupRows.size(); g++) {
+            mOut.writeInt(mGroupRows.get(g));
+            for (int c = 0; c < COLUMNS; c++) {
+                long[] chunk = mChunks.get(g * COLUMNS + c);
+                mOut.writeLong(chunk[0]);
+                mOut.writeInt((int) chunk[1]);
+                mOut.writeInt((int) chunk[2]);
+            }
+        }
+
+        mOut.writeInt(mGaps.size());
+        for (long[] gap : mGaps) {
+            mOut.writeLong(gap[0]);
+            mOut.writeLong(gap[1]);
+        }
+
+        mOut.writeInt(mOut.size() - start);
+        mOut.write(MAGIC);
+    }
+}
@@ -0,0 +1,72 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * CsvSessionEncoder
+ *
+ * The original text format of the data files, one line per frame with the receive time
+ * followed by every field of the message.  Yes, the last three columns are in there twice,
+ * existing tools expect them so the format stays the way it is.
+ *
+ * A time the strap was not connected is marked by a comment line, which CSV tools can be
+ * told to skip: #gap,<time of the last frame before it>,<time of the first frame after it>
+ */
+public class CsvSessionEncoder implements SessionEncoder {
+    public static final String EXTENSION = ".txt";
+    public static final String GAP_PREFIX = "#gap,";
+
+    /**
+     * CSV format for the file
+     */
+    public static final String HEADER = "timeInMs,stx,msgId,dlc,firmwareId,firmwareVersion,hardWareId," +
+            "hardwareVersion,batteryIndicator,heartRate,heartBeatNumber,hbTime1,hbTime2," +
+            "hbTime3,hbTime4,hbTime5,hbTime6,hbTime7,hbTime8,hbTime9,hbTime10,hbTime11," +
+            "hbTime12,hbTime13,hbTime14,hbTime15,reserved1,reserved2,reserved3,distance," +
+            "speed,strides,reserved4,reserved5,crc,etx,reserved5,crc,etx";
+
+    private final StringBuilder mLine = new StringBuilder(192);
+    private byte[] mBytes = new byte[192];
+
+    @Override
+    public String extension() {
+        return EXTENSION;
+    }
+
+    @Override
+    public void writeHeader(OutputStream out) throws IOException {
+        mLine.setLength(0);
+        mLine.append(HEADER).append('\n');
+        writeLine(out);
+    }
+
+    @Override
+    public void writeFrame(OutputStream out, long timeMs, HxmFrame frame) throws IOException {
+        mLine.setLength(0);
+        mLine.append(timeMs).append(',');
+        frame.appendCsv(mLine).append('\n');
+        writeLine(out);
+    }
+
+    @Override
+    public void writeGap(OutputStream out, long startMs, long endMs) throws IOException {
+        mLine.setLength(0);
+        mLine.append(GAP_PREFIX).append(startMs).append(',').append(endMs).append('\n');
+        writeLine(out);
+    }
+
+    /*
+     * The line is plain ASCII, copy the chars over ourselves rather than go through a charset encoder
+     */
+    private void writeLine(OutputStream out) throws IOException {
+        int length = mLine.length();
+        if (mBytes.length < length)
+            mBytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            mBytes[i] = (byte) mLine.charAt(i);
+        out.write(mBytes, 0, length);
+    }
+}
@@ -0,0 +1,381 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * MappedSessionReader
+ *
+ * Walks through a recorded session straight out of a memory mapped file, for batch jobs that
+ * go through a lot of recordings.  Both kinds of data file are understood, the format is
+ * picked from the first bytes of the file:
+ *
+ *  - binary sessions (BinarySessionFormat), where frame() is a view right on the mapped bytes
+ *  - CSV data files as written by the app, where each line is parsed in place, without making
+ *    a String of it, and the columns are packed back into a 60 byte HxM message
+ *
+ * Either way the caller gets the same HxmFrame view of every message, valid until the next
+ * call to next().  Gaps, binary gap records and #gap lines alike, come out of nextRecord().
+ * Big files are mapped a window at a time, so there is no 2GB limit.  A session that is
+ * already in memory, a segment that had to be decompressed for example, can be read from a
+ * ByteBuffer the same way.
+ */
+public class MappedSessionReader implements Closeable {
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // null when reading from memory
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    private final boolean mBinary;
+
+    // the part of the file currently mapped, and the read position in it
+    private ByteBuffer mMap;
+    private long mMapStart;
+    private int mPos;
+
+    private final HxmFrame mFrame = new HxmFrame();
+    private final byte[] mCsvFrame = new byte[HxmFrameReader.FRAME_LENGTH];
+    private final long[] mValue = new long[1];
+    private long mTimeMs;
+    private long mGapEndMs;
+    private long mSkippedLines;
+
+    public MappedSessionReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mChannel = mFile.getChannel();
+        mSize = mChannel.size();
+
+        boolean ok = false;
+        try {
+            map(0);
+            mBinary = mMap.limit() >= BinarySessionFormat.HEADER_LENGTH && hasMagic();
+            if (mBinary)
+                readBinaryHeader();
+            ok = true;
+        } finally {
+            if (!ok)
+                mFile.close();
+        }
+    }
+
+    /*
+     * Read the session from the remaining bytes of a buffer, which are all there is of it
+     */
+    public MappedSessionReader(ByteBuffer session) throws IOException {
+        mFile = null;
+        mChannel = null;
+        mMap = session.slice();
+        mSize = mMap.limit();
+        mBinary = mMap.limit() >= BinarySessionFormat.HEADER_LENGTH && hasMagic();
+        if (mBinary)
+            readBinaryHeader();
+    }
+
+    public boolean isBinary() {
+        return mBinary;
+    }
+
+    /*
+     * Move on to the next frame, gaps are skipped
+     * @return false at the end of the session
+     */
+    public boolean next() throws IOException {
+        int type;
+        do {
+            type = nextRecord();
+        } while (type == BinarySessionFormat.TYPE_GAP);
+        return type == BinarySessionFormat.TYPE_FRAME;
+    }
+
+    /*
+     * Move on to the next frame or gap.  For a gap, timeMs() is when it started and
+     * gapEndMs() when it ended.
+     * @return BinarySessionFormat.TYPE_FRAME or TYPE_GAP, -1 at the end of the session
+     */
+    public int nextRecord() throws IOException {
+        return mBinary ? nextBinary() : nextCsv();
+    }
+
+    /*
+     * Receive time of the current frame, in ms since the epoch
+     */
+    public long timeMs() {
+        return mTimeMs;
+    }
+
+    /*
+     * Receive time of the first frame after the current gap
+     */
+    public long gapEndMs() {
+        return mGapEndMs;
+    }
+
+    public HxmFrame frame() {
+        return mFrame;
+    }
+
+    /*
+     * CSV lines that were passed over because they could not be parsed, a line cut short
+     * at the end of an interrupted recording for example
+     */
+    public long getSkippedLines() {
+        return mSkippedLines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMap = null;
+        if (mFile != null)
+            mFile.close();
+    }
+
+    /*
+     * Map a window of the file starting at the given file offset
+     */
+    private void map(long start) throws IOException {
+        mMapStart = start;
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, mSize - start));
+        mPos = 0;
+    }
+
+    /*
+     * Make sure the next count bytes are in the mapped window
+     * @return false if the file ends first
+     */
+    private boolean ensure(int count) throws IOException {
+        if (mPos + count <= mMap.limit())
+            return true;
+        long position = mMapStart + mPos;
+        if (position + count > mSize)
+            return false;
+        map(position);
+        return true;
+    }
+
+    private boolean hasMagic() {
+        for (int i = 0; i < BinarySessionFormat.MAGIC.length; i++) {
+            if (mMap.get(i) != BinarySessionFormat.MAGIC[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void readBinaryHeader() throws IOException {
+        int version = mMap.getShort(4) & 0xFFFF;
+        int headerLength = mMap.getShort(6) & 0xFFFF;
+        int frameLength = mMap.getShort(8) & 0xFFFF;
+        if (version > BinarySessionFormat.VERSION)
+            throw new IOException("session format version " + version + " is newer than this reader");
+        if (frameLength != HxmFrameReader.FRAME_LENGTH || headerLength < 10)
+            throw new IOException("corrupt session header");
+        mPos = headerLength;
+    }
+
+    private int nextBinary() throws IOException {
+        while (ensure(2)) {
+            int length = mMap.getShort(mPos) & 0xFFFF;
+            if (length == 0)
+                throw new IOException("corrupt session, empty record at " + (mMapStart + mPos));
+            // a record cut short by the end of the file ends the session
+            if (!ensure(2 + length))
+                return -1;
+
+            int body = mPos + 2;
+            mPos = body + length;
+            if (mMap.get(body) == BinarySessionFormat.TYPE_FRAME
+                    && length == BinarySessionFormat.FRAME_RECORD_BODY_LENGTH + 1) {
+                mTimeMs = mMap.getLong(body + 1);
+                mFrame.wrap(mMap, body + 9);
+                return BinarySessionFormat.TYPE_FRAME;
+            }
+            if (mMap.get(body) == BinarySessionFormat.TYPE_GAP
+                    && length == BinarySessionFormat.GAP_RECORD_BODY_LENGTH + 1) {
+                mTimeMs = mMap.getLong(body + 1);
+                mGapEndMs = mMap.getLong(body + 9);
+                return BinarySessionFormat.TYPE_GAP;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Byte width of each CSV column after the time, in the order they appear in the message.
+     * The last three columns repeat reserved5,crc,etx and are not needed to rebuild the frame.
+     */
+    private static final int[] CSV_COLUMN_WIDTHS = {
+            1, 1, 1, 2, 2, 2, 2, 1, 1, 1,
+            2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+            2, 2, 2, 2, 2, 1, 1, 2, 1, 1
+    };
+
+    private int nextCsv() throws IOException {
+        while (true) {
+            int end = findLineEnd();
+            if (end < 0)
+                return -1;
+            int start = mPos;
+            mPos = end + 1;
+            int type = parseCsvLine(start, end);
+            if (type == BinarySessionFormat.TYPE_FRAME)
+                mFrame.wrap(mCsvFrame, 0);
+            if (type != 0)
+                return type;
+        }
+    }
+
+    /*
+     * @return index in the window of the newline ending the line at mPos, or of the end of the
+     *         file for a last line without one, -1 when there are no lines left
+     */
+    private int findLineEnd() throws IOException {
+        while (true) {
+            int limit = mMap.limit();
+            for (int i = mPos; i < limit; i++) {
+                if (mMap.get(i) == '\n')
+                    return i;
+            }
+            long lineStart = mMapStart + mPos;
+            if (mMapStart + limit >= mSize)
+                return mPos < limit ? limit : -1;
+            if (mPos == 0) {
+                // longer than the whole window, no line we wrote (a binary file named .txt), skip it
+                mSkippedLines++;
+                if (!skipPast(limit))
+                    return -1;
+                continue;
+            }
+            // the line runs past the window, map again from the start of the line
+            map(lineStart);
+        }
+    }
+
+    /*
+     * Move mPos past the next newline from index from of the window on, mapping the windows
+     * after it as needed
+     * @return false if the file ends first
+     */
+    private boolean skipPast(int from) throws IOException {
+        int i = from;
+        while (true) {
+            int limit = mMap.limit();
+            for (; i < limit; i++) {
+                if (mMap.get(i) == '\n') {
+                    mPos = i + 1;
+                    return true;
+                }
+            }
+            if (mMapStart + limit >= mSize) {
+                mPos = limit;
+                return false;
+            }
+            map(mMapStart + limit);
+            i = 0;
+        }
+    }
+
+    /*
+     * Parse one line of the data file into mTimeMs and mCsvFrame, or for a gap into mTimeMs
+     * and mGapEndMs
+     * @return TYPE_FRAME or TYPE_GAP, 0 for the header line, blank, comment or malformed lines
+     */
+    private int parseCsvLine(int start, int end) {
+        if (end > start && mMap.get(end - 1) == '\r')
+            end--;
+        if (start == end)
+            return 0;
+        byte first = mMap.get(start);
+        if (first == '#')
+            return parseGapLine(start, end);
+        if (first != '-' && (first < '0' || first > '9')) {
+            // the header
+            return 0;
+        }
+
+        int p = start;
+        long[] value = mValue;
+        p = parseLong(p, end, value);
+        if (p < 0) {
+            mSkippedLines++;
+            return 0;
+        }
+        mTimeMs = value[0];
+
+        int offset = 0;
+        for (int width : CSV_COLUMN_WIDTHS) {
+            if (p >= end || mMap.get(p) != ',') {
+                mSkippedLines++;
+                return 0;
+            }
+            p = parseLong(p + 1, end, value);
+            if (p < 0) {
+                mSkippedLines++;
+                return 0;
+            }
+            int v = (int) value[0];
+            mCsvFrame[offset] = (byte) v;
+            if (width == 2)
+                mCsvFrame[offset + 1] = (byte) (v >> 8);
+            offset += width;
+        }
+        return BinarySessionFormat.TYPE_FRAME;
+    }
+
+    /*
+     * #gap,<start>,<end>, other comments are passed over
+     */
+    private int parseGapLine(int start, int end) {
+        String prefix = CsvSessionEncoder.GAP_PREFIX;
+        if (end - start <= prefix.length())
+            return 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (mMap.get(start + i) != prefix.charAt(i))
+                return 0;
+        }
+        long[] value = mValue;
+        int p = parseLong(start + prefix.length(), end, value);
+        if (p < 0 || p >= end || mMap.get(p) != ',') {
+            mSkippedLines++;
+            return 0;
+        }
+        mTimeMs = value[0];
+        if (parseLong(p + 1, end, value) < 0) {
+            mSkippedLines++;
+            return 0;
+        }
+        mGapEndMs = value[0];
+        return BinarySessionFormat.TYPE_GAP;
+    }
+
+    /*
+     * Parse a decimal number starting at p into out[0]
+     * @return the index just past the number, or -1 if there is no number at p
+     */
+    private int parseLong(int p, int end, long[] out) {
+        boolean negative = false;
+        if (p < end && mMap.get(p) == '-') {
+            negative = true;
+            p++;
+        }
+        int digitsStart = p;
+        long v = 0;
+        while (p < end) {
+            int c = mMap.get(p) - '0';
+            if (c < 0 || c > 9)
+                break;
+            v = v * 10 + c;
+            p++;
+        }
+        if (p == digitsStart)
+            return -1;
+        out[0] = negative ? -v : v;
+        return p;
+    }
+}
@@ -0,0 +1,180 @@
+package org.mcxa.zephyrlogger.session;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * SegmentCompactor
+ *
+ * Gzips closed session segments, one after the other on a thread of its own at the lowest
+ * priority, so compressing never competes with the capture.  A segment is written to
+ * <name>.gz.part, synced, renamed to <name>.gz and only then deleted, so at every point in
+ * time one complete copy of it exists.  If the process dies first the plain segment is
+ * simply left as it is; readers should take <name>.gz if it is there and <name> otherwise.
+ *
+ * The thread is started when there is a segment to compress and ends once it has had
+ * nothing to do for a minute, so an idle compactor costs nothing and doesn't need closing.
+ */
+public class SegmentCompactor {
+    public static final String EXTENSION = ".gz";
+    private static final String PART_EXTENSION = ".part";
+    private static final long IDLE_TIMEOUT_MS = 60000;
+
+    private final ArrayDeque<File> mQueue = new ArrayDeque<>();
+    private Thread mThread;
+    private boolean mClosed;
+
+    private volatile long mCompacted;
+    private volatile long mFailed;
+    private volatile long mBytesIn;
+    private volatile long mBytesOut;
+
+    /*
+     * Queue a file to be compressed, it must not be written to any more
+     * @return false if the compactor is closed and the file was left alone
+     */
+    public synchronized boolean compact(File segment) {
+        if (mClosed)
+            return false;
+        mQueue.add(segment);
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    compactLoop();
+                }
+            }, "SegmentCompactor");
+            mThread.setPriority(Thread.MIN_PRIORITY);
+            mThread.start();
+        }
+        notifyAll();
+        return true;
+    }
+
+    /*
+     * Stop taking files.  Whatever is queued is still compressed, this does not wait for it,
+     * see awaitClosed().
+     */
+    public synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    /*
+     * Wait for the queue to be worked off after close()
+     * @return true if it was within the timeout
+     */
+    public boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null)
+            return true;
+        thread.join(timeoutMs);
+        return !thread.isAlive();
+    }
+
+    public synchronized int getQueued() {
+        return mQueue.size();
+    }
+
+    public long getCompacted() {
+        return mCompacted;
+    }
+
+    public long getFailed() {
+        return mFailed;
+    }
+
+    /*
+     * Size of the segments compressed so far, before and after
+     */
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    /*
+     * The name a segment has once it is compressed
+     */
+    public static File compressedFile(File segment) {
+        return new File(segment.getPath() + EXTENSION);
+    }
+
+    /*
+     * Compress a file to <name>.gz and delete it, on the calling thread
+     */
+    public static void gzip(File segment) throws IOException {
+        File gz = compressedFile(segment);
+        File part = new File(gz.getPath() + PART_EXTENSION);
+        InputStream in = new FileInputStream(segment);
+        try {
+            FileOutputStream file = new FileOutputStream(part);
+            try {
+                GZIPOutputStream out = new GZIPOutputStream(file, 65536);
+                byte[] buffer = new byte[65536];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+                out.finish();
+                out.flush();
+                // the compressed copy has to be on disk before the original goes
+                file.getFD().sync();
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        if (!part.renameTo(gz)) {
+            part.delete();
+            throw new IOException("could not rename " + part + " to " + gz);
+        }
+        if (!segment.delete())
+            throw new IOException("could not delete " + segment + " after compressing it");
+    }
+
+    private void compactLoop() {
+        while (true) {
+            File segment;
+            synchronized (this) {
+                if (mQueue.isEmpty() && !mClosed) {
+                    try {
+                        wait(IDLE_TIMEOUT_MS);
+                    } catch (InterruptedException e) {
+                        mClosed = true;
+                    }
+                }
+                segment = mQueue.poll();
+                if (segment == null) {
+                    // closed, or nothing to do for a while, compact() starts a new thread when there is more
+                    mThread = null;
+                    return;
+                }
+            }
+
+            long size = segment.length();
+            try {
+                gzip(segment);
+                mBytesIn += size;
+                mBytesOut += compressedFile(segment).length();
+                mCompacted++;
+            } catch (IOException e) {
+                // the plain segment is still there, which is no worse than not compressing it
+                mFailed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * SessionEncoder
+ *
+ * Turns the frames of a recording session into the bytes of a session file.  An encoder
+ * may keep scratch space between calls, so every writer gets its own instance.
+ */
+public interface SessionEncoder {
+    /*
+     * File name suffix for sessions in this format, including the dot
+     */
+    String extension();
+
+    /*
+     * Written once at the start of a new session file
+     */
+    void writeHeader(OutputStream out) throws IOException;
+
+    /*
+     * @param timeMs  wall clock time the frame was received, in ms since the epoch
+     */
+    void writeFrame(OutputStream out, long timeMs, HxmFrame frame) throws IOException;
+
+    /*
+     * Written between the frames on either side of a time the strap was not connected
+     * @param startMs  receive time of the last frame before the gap
+     * @param endMs    receive time of the first frame after it
+     */
+    void writeGap(OutputStream out, long startMs, long endMs) throws IOException;
+}
@@ -0,0 +1,108 @@
+package org.mcxa.zephyrlogger.session;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * SessionIndex
+ *
+ * The index of a session stored in segments, a small CSV file with a line for every segment
+ * once it is closed:
+ *
+ *      segment,firstTimeMs,lastTimeMs,frames,bytes
+ *
+ * segment is the file name of the segment as it was written, it may since have been
+ * compressed to <segment>.gz (see SegmentCompactor).  The times are those of the first and
+ * last frame in it and bytes its size before compression.  The file is only ever appended
+ * to, a line at a time, so it stays readable while the session is still going.
+ */
+public class SessionIndex {
+    public static final String HEADER = "segment,firstTimeMs,lastTimeMs,frames,bytes";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /*
+     * One segment of the session
+     */
+    public static class Entry {
+        public final String segment;
+        public final long firstTimeMs;
+        public final long lastTimeMs;
+        public final long frames;
+        public final long bytes;
+
+        public Entry(String segment, long firstTimeMs, long lastTimeMs, long frames, long bytes) {
+            this.segment = segment;
+            this.firstTimeMs = firstTimeMs;
+            this.lastTimeMs = lastTimeMs;
+            this.frames = frames;
+            this.bytes = bytes;
+        }
+
+        /*
+         * The segment in the folder of the index, compressed if it has been
+         */
+        public File file(File folder) {
+            File plain = new File(folder, segment);
+            File gz = SegmentCompactor.compressedFile(plain);
+            return gz.exists() ? gz : plain;
+        }
+    }
+
+    private SessionIndex() {
+    }
+
+    /*
+     * Add a line for a segment, creating the index with its header if it doesn't exist
+     */
+    public static void append(File index, Entry entry) throws IOException {
+        boolean isNew = !index.exists();
+        Writer out = new OutputStreamWriter(new FileOutputStream(index, true), ASCII);
+        try {
+            StringBuilder line = new StringBuilder(96);
+            if (isNew)
+                line.append(HEADER).append('\n');
+            line.append(entry.segment).append(',').append(entry.firstTimeMs).append(',')
+                    .append(entry.lastTimeMs).append(',').append(entry.frames).append(',')
+                    .append(entry.bytes).append('\n');
+            out.write(line.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * The segments listed in an index, in the order they were written.  Lines that can't be
+     * parsed, like a last line cut short by a crash, are skipped.
+     */
+    public static List<Entry> read(File index) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), ASCII));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length != 5 || line.equals(HEADER))
+                    continue;
+                try {
+                    entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                } catch (NumberFormatException e) {
+                    // not a whole line
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+}
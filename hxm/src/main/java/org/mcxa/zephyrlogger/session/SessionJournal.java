@@ -0,0 +1,357 @@
+package org.mcxa.zephyrlogger.session;
+
+import org.mcxa.zephyrlogger.hxm.HxmCrc;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * SessionJournal
+ *
+ * Write-ahead journal of a session segment while it is open.  Every frame goes into the
+ * journal before it is encoded into the segment, so if the process dies, or the segment
+ * can't be written for a while, the whole segment can be written again from the journal
+ * (see Reader.rebuild()).  The journal is deleted once its segment has been closed.
+ *
+ * The journal is preallocated for a good number of frames and memory mapped, appending a
+ * frame is a copy into the page cache without any system call.  What has been copied
+ * survives the process being killed, checkpoint() forces it out to storage so it survives
+ * the phone going down as well.  A full journal is doubled in size.  Writing to a mapping
+ * whose storage has gone away kills the process, so journals belong in internal storage and
+ * not on a card that can be pulled.
+ *
+ * Layout, all numbers big endian:
+ *
+ *      magic "ZJNL" | version (u16) | header length (u16) | record length (u16) |
+ *      segment path length (u16) | segment path (UTF-8) | zeros up to the header length
+ *
+ * followed by fixed size records, the receive time in ms since the epoch (i64) and the 60
+ * bytes of the message.  STX, the first byte of the message, is stored last, so a record is
+ * either all there or not at all.  The records end at the first one that isn't a whole HxM
+ * message with a good CRC, the preallocated space after the last one is zero.
+ *
+ * A gap in the session (see SessionEncoder.writeGap()) takes a record of its own: the start
+ * of the gap where the time goes, GAP_MARKER where STX would be and then the end of the gap
+ * (i64), the marker again stored last.
+ */
+public class SessionJournal implements Closeable {
+    public static final String EXTENSION = ".journal";
+
+    public static final byte[] MAGIC = {'Z', 'J', 'N', 'L'};
+    public static final int VERSION = 2;
+    public static final int RECORD_LENGTH = 8 + HxmFrameReader.FRAME_LENGTH;
+    public static final byte GAP_MARKER = 'G';
+
+    private static final int FIXED_HEADER_LENGTH = 12;
+    private static final int HEADER_ALIGN = 64;
+    private static final String PART_EXTENSION = ".part";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final int mHeaderLength;
+
+    private MappedByteBuffer mMap;
+    private int mCapacity;
+    private int mRecords;
+    private final byte[] mScratch = new byte[HxmFrameReader.FRAME_LENGTH];
+
+    private SessionJournal(File file, RandomAccessFile raf, int headerLength) {
+        mFile = file;
+        mRaf = raf;
+        mChannel = raf.getChannel();
+        mHeaderLength = headerLength;
+    }
+
+    /*
+     * Start the journal of a segment, anything already at that path is thrown away
+     * @param capacity  number of frames to preallocate room for
+     */
+    public static SessionJournal create(File file, File segment, int capacity) throws IOException {
+        byte[] path = segment.getAbsolutePath().getBytes(UTF8);
+        if (path.length > 0xFFFF)
+            throw new IOException("segment path too long: " + segment);
+        int headerLength = (FIXED_HEADER_LENGTH + path.length + HEADER_ALIGN - 1) / HEADER_ALIGN * HEADER_ALIGN;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        boolean ok = false;
+        try {
+            raf.setLength(0);
+            SessionJournal journal = new SessionJournal(file, raf, headerLength);
+            journal.map(Math.max(capacity, 1));
+            MappedByteBuffer map = journal.mMap;
+            map.position(0);
+            map.put(MAGIC);
+            map.putShort((short) VERSION);
+            map.putShort((short) headerLength);
+            map.putShort((short) RECORD_LENGTH);
+            map.putShort((short) path.length);
+            map.put(path);
+            // the header has to be there before any frame is
+            map.force();
+            ok = true;
+            return journal;
+        } finally {
+            if (!ok)
+                raf.close();
+        }
+    }
+
+    /*
+     * The journals in a folder, in no particular order
+     */
+    public static File[] find(File folder) {
+        File[] journals = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(EXTENSION);
+            }
+        });
+        return journals != null ? journals : new File[0];
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /*
+     * Frames and gaps appended so far
+     */
+    public int getRecords() {
+        return mRecords;
+    }
+
+    public void append(long timeMs, HxmFrame frame) throws IOException {
+        int pos = nextRecord();
+        frame.copyTo(mScratch, 0);
+        mMap.putLong(pos, timeMs);
+        mMap.position(pos + 9);
+        mMap.put(mScratch, 1, mScratch.length - 1);
+        // STX last, the record doesn't count until it is there
+        mMap.put(pos + 8, mScratch[0]);
+        mRecords++;
+    }
+
+    public void appendGap(long startMs, long endMs) throws IOException {
+        int pos = nextRecord();
+        mMap.putLong(pos, startMs);
+        mMap.putLong(pos + 9, endMs);
+        mMap.put(pos + 8, GAP_MARKER);
+        mRecords++;
+    }
+
+    /*
+     * Force everything appended so far out to storage
+     */
+    public void checkpoint() {
+        mMap.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpoint();
+        mRaf.close();
+    }
+
+    /*
+     * Close the journal and remove its file, once the segment is safely closed
+     */
+    public void delete() throws IOException {
+        mRaf.close();
+        if (!mFile.delete() && mFile.exists())
+            throw new IOException("could not delete " + mFile);
+    }
+
+    /*
+     * Where the next record goes, after making room for it
+     */
+    private int nextRecord() throws IOException {
+        if (mRecords == mCapacity) {
+            checkpoint();
+            map(mCapacity * 2);
+        }
+        return mHeaderLength + mRecords * RECORD_LENGTH;
+    }
+
+    private void map(int capacity) throws IOException {
+        long size = mHeaderLength + (long) capacity * RECORD_LENGTH;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("journal " + mFile + " is full");
+        // the file is extended with zeros, which is where the records end
+        mRaf.setLength(size);
+        mMap = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mCapacity = capacity;
+    }
+
+    /*
+     * Reads the frames and gaps back out of a journal, whether it was closed or left behind
+     * by a process that died
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile mRaf;
+        private final MappedByteBuffer mMap;
+        private final File mSegment;
+        private final int mRecordLength;
+
+        private int mPos;
+        private long mTimeMs;
+        private boolean mGap;
+        private long mGapEndMs;
+        private final byte[] mRecord = new byte[HxmFrameReader.FRAME_LENGTH];
+        private final HxmFrame mFrame = new HxmFrame();
+
+        public Reader(File journal) throws IOException {
+            mRaf = new RandomAccessFile(journal, "r");
+            boolean ok = false;
+            try {
+                FileChannel channel = mRaf.getChannel();
+                mMap = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (mMap.limit() < FIXED_HEADER_LENGTH)
+                    throw new IOException(journal + " is not a session journal");
+                for (int i = 0; i < MAGIC.length; i++) {
+                    if (mMap.get(i) != MAGIC[i])
+                        throw new IOException(journal + " is not a session journal");
+                }
+                int version = mMap.getShort(4) & 0xFFFF;
+                if (version > VERSION)
+                    throw new IOException(journal + " is version " + version + ", too new for us");
+                int headerLength = mMap.getShort(6) & 0xFFFF;
+                mRecordLength = mMap.getShort(8) & 0xFFFF;
+                int pathLength = mMap.getShort(10) & 0xFFFF;
+                if (mRecordLength < RECORD_LENGTH || FIXED_HEADER_LENGTH + pathLength > headerLength
+                        || headerLength > mMap.limit())
+                    throw new IOException(journal + " has a broken header");
+
+                byte[] path = new byte[pathLength];
+                mMap.position(FIXED_HEADER_LENGTH);
+                mMap.get(path);
+                mSegment = new File(new String(path, UTF8));
+                mPos = headerLength;
+                ok = true;
+            } finally {
+                if (!ok)
+                    mRaf.close();
+            }
+        }
+
+        /*
+         * The segment the journal was written for
+         */
+        public File getSegment() {
+            return mSegment;
+        }
+
+        /*
+         * Move on to the next frame or gap
+         * @return false after the last whole record
+         */
+        public boolean next() {
+            if (mPos + mRecordLength > mMap.limit())
+                return false;
+            long timeMs = mMap.getLong(mPos);
+            if (mMap.get(mPos + 8) == GAP_MARKER) {
+                mTimeMs = timeMs;
+                mGapEndMs = mMap.getLong(mPos + 9);
+                mGap = true;
+                mPos += mRecordLength;
+                return true;
+            }
+            mMap.position(mPos + 8);
+            mMap.get(mRecord);
+            if ((mRecord[HxmFrame.OFFSET_STX] & 0xFF) != HxmFrameReader.STX
+                    || (mRecord[HxmFrame.OFFSET_MSGID] & 0xFF) != HxmFrameReader.MSGID
+                    || (mRecord[HxmFrame.OFFSET_DLC] & 0xFF) != HxmFrameReader.DLC
+                    || (mRecord[HxmFrame.OFFSET_ETX] & 0xFF) != HxmFrameReader.ETX
+                    || (mRecord[HxmFrame.OFFSET_CRC] & 0xFF) != HxmCrc.ofFrame(mRecord, 0))
+                return false;
+            mTimeMs = timeMs;
+            mGap = false;
+            mFrame.wrap(mRecord, 0);
+            mPos += mRecordLength;
+            return true;
+        }
+
+        /*
+         * Is the current record a gap rather than a frame?
+         */
+        public boolean isGap() {
+            return mGap;
+        }
+
+        /*
+         * Receive time of the current frame, or when the current gap started, in ms since
+         * the epoch
+         */
+        public long timeMs() {
+            return mTimeMs;
+        }
+
+        public long gapEndMs() {
+            return mGapEndMs;
+        }
+
+        /*
+         * The current frame, valid until the next call to next()
+         */
+        public HxmFrame frame() {
+            return mFrame;
+        }
+
+        /*
+         * Write the segment again from the records in the journal that haven't been read yet,
+         * all of them on a new Reader, replacing whatever is left of it.  It is written to
+         * <segment>.part and synced first, then renamed over the segment.
+         * @return the index entry of the segment
+         */
+        public SessionIndex.Entry rebuild(SessionEncoder encoder) throws IOException {
+            File part = new File(mSegment.getPath() + PART_EXTENSION);
+            long firstTimeMs = 0, lastTimeMs = 0, frames = 0;
+            FileOutputStream file = new FileOutputStream(part);
+            try {
+                OutputStream out = new BufferedOutputStream(file, 65536);
+                encoder.writeHeader(out);
+                while (next()) {
+                    if (mGap) {
+                        encoder.writeGap(out, mTimeMs, mGapEndMs);
+                        continue;
+                    }
+                    if (frames == 0)
+                        firstTimeMs = mTimeMs;
+                    lastTimeMs = mTimeMs;
+                    encoder.writeFrame(out, mTimeMs, mFrame);
+                    frames++;
+                }
+                out.flush();
+                file.getFD().sync();
+            } catch (IOException e) {
+                file.close();
+                part.delete();
+                throw e;
+            }
+            file.close();
+
+            if (!part.renameTo(mSegment) && !(mSegment.delete() && part.renameTo(mSegment))) {
+                part.delete();
+                throw new IOException("could not rename " + part + " to " + mSegment);
+            }
+            return new SessionIndex.Entry(mSegment.getName(), firstTimeMs, lastTimeMs, frames, mSegment.length());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mRaf.close();
+        }
+    }
+}
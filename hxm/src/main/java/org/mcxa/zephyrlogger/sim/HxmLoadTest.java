@@ -0,0 +1,156 @@
+package org.mcxa.zephyrlogger.sim;
+
+import org.mcxa.zephyrlogger.hxm.HrvMetrics;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.hxm.RrBuffer;
+import org.mcxa.zephyrlogger.hxm.RrIntervalExtractor;
+import org.mcxa.zephyrlogger.session.BinarySessionEncoder;
+import org.mcxa.zephyrlogger.session.CsvSessionEncoder;
+import org.mcxa.zephyrlogger.session.SessionEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/*
+ * HxmLoadTest
+ *
+ * Desktop load test of the per frame work the app does: framing with HxmFrameReader, the
+ * R-R and HRV analysis, and encoding for the session file (written to nowhere, so the disk
+ * doesn't get measured).  Frames come from the simulator, or from a recorded session.
+ *
+ *      java -cp hxm.jar org.mcxa.zephyrlogger.sim.HxmLoadTest [-frames n] [-rate fps]
+ *              [-noise p] [-seed s] [-binary] [-replay session [-speed x]]
+ *
+ * -rate holds the simulator to that many frames per second, the default is flat out.
+ * -noise sets the chance of each kind of damage (garbage, truncation, corruption) per frame.
+ */
+public class HxmLoadTest {
+    public static void main(String[] args) {
+        long frames = 100000;
+        double rate = 0;
+        double noise = 0;
+        long seed = 1;
+        boolean binary = false;
+        String replay = null;
+        double speed = 0;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-binary"))
+                    binary = true;
+                else if (i + 1 == args.length)
+                    throw new IllegalArgumentException(arg);
+                else if (arg.equals("-frames"))
+                    frames = Long.parseLong(args[++i]);
+                else if (arg.equals("-rate"))
+                    rate = Double.parseDouble(args[++i]);
+                else if (arg.equals("-noise"))
+                    noise = Double.parseDouble(args[++i]);
+                else if (arg.equals("-seed"))
+                    seed = Long.parseLong(args[++i]);
+                else if (arg.equals("-replay"))
+                    replay = args[++i];
+                else if (arg.equals("-speed"))
+                    speed = Double.parseDouble(args[++i]);
+                else
+                    throw new IllegalArgumentException(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("usage: HxmLoadTest [-frames n] [-rate fps] [-noise p] [-seed s] [-binary] [-replay session [-speed x]]");
+            System.exit(2);
+        }
+
+        HxmSimulator simulator = null;
+        InputStream in;
+        try {
+            if (replay != null) {
+                in = new ReplayInputStream(new File(replay), speed);
+            } else {
+                simulator = new HxmSimulator(seed)
+                        .setFrameRate(rate)
+                        .setMaxFrames(frames)
+                        .setNoise(noise, noise, noise);
+                in = simulator;
+            }
+            run(in, binary ? new BinarySessionEncoder() : new CsvSessionEncoder(), simulator);
+            in.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void run(InputStream in, SessionEncoder encoder, HxmSimulator simulator) throws IOException {
+        HxmFrameReader reader = new HxmFrameReader(in);
+        byte[] buffer = new byte[HxmFrameReader.FRAME_LENGTH];
+        HxmFrame frame = new HxmFrame();
+        RrBuffer rrBuffer = new RrBuffer(256);
+        RrIntervalExtractor extractor = new RrIntervalExtractor(rrBuffer);
+        HrvMetrics hrv = new HrvMetrics(60000, 256);
+        CountingOutputStream out = new CountingOutputStream();
+        encoder.writeHeader(out);
+
+        long framingNanos = 0, analysisNanos = 0, encodingNanos = 0;
+        long count = 0;
+        long timeMs = System.currentTimeMillis();
+        long start = System.nanoTime();
+        while (true) {
+            long t0 = System.nanoTime();
+            if (reader.readFrame(buffer, 0) < 0)
+                break;
+            long t1 = System.nanoTime();
+            frame.wrap(buffer, 0);
+            extractor.extract(frame);
+            hrv.addFrom(rrBuffer);
+            long t2 = System.nanoTime();
+            encoder.writeFrame(out, timeMs + count * 1000, frame);
+            long t3 = System.nanoTime();
+
+            framingNanos += t1 - t0;
+            analysisNanos += t2 - t1;
+            encodingNanos += t3 - t2;
+            count++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d frames in %.3f s, %.0f frames/s",
+                count, elapsed / 1e9, count * 1e9 / Math.max(elapsed, 1)));
+        if (count > 0) {
+            System.out.println(String.format(Locale.US, "  framing   %8.0f ns/frame (includes waiting for the source)", (double) framingNanos / count));
+            System.out.println(String.format(Locale.US, "  analysis  %8.0f ns/frame", (double) analysisNanos / count));
+            System.out.println(String.format(Locale.US, "  encoding  %8.0f ns/frame, %d bytes", (double) encodingNanos / count, out.count));
+        }
+        System.out.println(String.format(Locale.US, "  reader: %d accepted, %d CRC failures, %d truncated, %d resyncs, %d bytes skipped",
+                reader.getAcceptedFrames(), reader.getCrcFailures(), reader.getTruncatedFrames(),
+                reader.getResyncs(), reader.getSkippedBytes()));
+        System.out.println(String.format(Locale.US, "  last RMSSD %.1f ms, SDNN %.1f ms, %d missed beats",
+                hrv.rmssd(), hrv.sdnn(), extractor.getMissedBeats()));
+        if (simulator != null) {
+            System.out.println(String.format(Locale.US, "  simulator: %d frames, %d garbage bytes, %d truncated, %d corrupted",
+                    simulator.getFrames(), simulator.getGarbageBytes(),
+                    simulator.getTruncatedFrames(), simulator.getCorruptedFrames()));
+        }
+    }
+
+    /*
+     * Throws the bytes away, only counting them
+     */
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
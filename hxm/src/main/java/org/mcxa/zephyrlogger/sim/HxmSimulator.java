@@ -0,0 +1,290 @@
+package org.mcxa.zephyrlogger.sim;
+
+import org.mcxa.zephyrlogger.hxm.HxmCrc;
+import org.mcxa.zephyrlogger.hxm.HxmFrame;
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+
+/*
+ * HxmSimulator
+ *
+ * An InputStream that behaves like the Bluetooth socket of an HxM strap, for running the
+ * reader, decoder and writers without hardware.  It makes up valid HxM messages (STX, MSGID,
+ * DLC, payload, CRC, ETX), one for every second of strap time, with a heart rate that drifts
+ * slowly around a baseline, beat to beat variation on top, and beat timestamps, beat numbers,
+ * distance and strides that move along with it the way a real strap's do.
+ *
+ * The stream can be made as bad as a real link in a crowded gym: random garbage between
+ * messages, messages cut short and messages with a byte flipped after the CRC was worked
+ * out.  Each of these happens to a message with the probability set for it.
+ *
+ * Messages come as fast as they are read unless a frame rate is set, then read() holds each
+ * one back until it is due, 1 per second like the strap or 100 or 1000 per second for load
+ * tests.  Everything random comes from the seed, the same seed gives the same bytes.
+ */
+public class HxmSimulator extends InputStream {
+    private static final int FRAME_LENGTH = HxmFrameReader.FRAME_LENGTH;
+    private static final int MAX_GARBAGE = 32;
+
+    // the strap sends a message every second
+    private static final int FRAME_PERIOD_MS = 1000;
+
+    private final Random mRandom;
+
+    // Settings
+    private double mFrameRate;
+    private long mMaxFrames = -1;
+    private double mHeartRate = 70;
+    private double mHeartRateSwing = 10;
+    private double mRrJitterMs = 15;
+    private double mGarbageProbability;
+    private double mTruncateProbability;
+    private double mCorruptProbability;
+
+    // The strap, its clock runs in ms from when it was switched on
+    private long mSensorMs;
+    private long mNextBeatMs;
+    private int mBeatNumber;
+    private final int[] mBeatTimes = new int[HxmFrame.HB_TIME_COUNT];
+    private double mBattery = 100;
+    private double mDistance;
+    private int mStrides;
+    private int mSpeed;
+
+    // What read() hands out next
+    private final byte[] mOut = new byte[MAX_GARBAGE + FRAME_LENGTH];
+    private int mOutPos;
+    private int mOutLength;
+
+    private long mFrames;
+    private long mGarbageBytes;
+    private long mTruncated;
+    private long mCorrupted;
+    private long mStartNanos = -1;
+
+    public HxmSimulator(long seed) {
+        mRandom = new Random(seed);
+        mNextBeatMs = 500 + mRandom.nextInt(500);
+    }
+
+    /*
+     * Messages per second of wall time, 0 (the default) for as fast as they are read
+     */
+    public HxmSimulator setFrameRate(double framesPerSecond) {
+        mFrameRate = framesPerSecond;
+        return this;
+    }
+
+    /*
+     * End the stream after this many messages, -1 (the default) never ends
+     */
+    public HxmSimulator setMaxFrames(long maxFrames) {
+        mMaxFrames = maxFrames;
+        return this;
+    }
+
+    /*
+     * @param bpm    the baseline heart rate
+     * @param swing  how far the heart rate drifts from the baseline over a few minutes
+     */
+    public HxmSimulator setHeartRate(double bpm, double swing) {
+        mHeartRate = bpm;
+        mHeartRateSwing = swing;
+        return this;
+    }
+
+    /*
+     * Standard deviation of the random part of each R-R interval, in ms
+     */
+    public HxmSimulator setRrJitter(double ms) {
+        mRrJitterMs = ms;
+        return this;
+    }
+
+    /*
+     * @param garbage   chance of random bytes before a message
+     * @param truncate  chance of a message being cut short
+     * @param corrupt   chance of a payload byte being changed after the CRC was computed
+     */
+    public HxmSimulator setNoise(double garbage, double truncate, double corrupt) {
+        mGarbageProbability = garbage;
+        mTruncateProbability = truncate;
+        mCorruptProbability = corrupt;
+        return this;
+    }
+
+    /*
+     * Messages generated so far, whole or not
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    public long getGarbageBytes() {
+        return mGarbageBytes;
+    }
+
+    public long getTruncatedFrames() {
+        return mTruncated;
+    }
+
+    public long getCorruptedFrames() {
+        return mCorrupted;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutPos == mOutLength && !next())
+            return -1;
+        return mOut[mOutPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        // like a socket, hand out what we have rather than filling the whole request
+        if (mOutPos == mOutLength && !next())
+            return -1;
+        int n = Math.min(len, mOutLength - mOutPos);
+        System.arraycopy(mOut, mOutPos, b, off, n);
+        mOutPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return mOutLength - mOutPos;
+    }
+
+    /*
+     * Make up the next message, and whatever goes wrong with it on the way
+     * @return false at the end of the stream
+     */
+    private boolean next() throws IOException {
+        if (mMaxFrames >= 0 && mFrames >= mMaxFrames)
+            return false;
+        pace();
+
+        int length = 0;
+        if (mRandom.nextDouble() < mGarbageProbability) {
+            int n = 1 + mRandom.nextInt(MAX_GARBAGE);
+            for (int i = 0; i < n; i++)
+                mOut[length++] = (byte) mRandom.nextInt(256);
+            mGarbageBytes += n;
+        }
+
+        advance();
+        buildFrame(mOut, length);
+        int frameLength = FRAME_LENGTH;
+
+        if (mRandom.nextDouble() < mCorruptProbability) {
+            int i = length + HxmFrame.OFFSET_FIRMWARE_ID + mRandom.nextInt(HxmFrameReader.DLC);
+            mOut[i] ^= (byte) (1 + mRandom.nextInt(255));
+            mCorrupted++;
+        }
+        if (mRandom.nextDouble() < mTruncateProbability) {
+            frameLength = 1 + mRandom.nextInt(FRAME_LENGTH - 1);
+            mTruncated++;
+        }
+
+        mFrames++;
+        mOutPos = 0;
+        mOutLength = length + frameLength;
+        return true;
+    }
+
+    /*
+     * Hold back until the next message is due at the configured rate
+     */
+    private void pace() throws IOException {
+        if (mFrameRate <= 0)
+            return;
+        long now = System.nanoTime();
+        if (mStartNanos < 0)
+            mStartNanos = now;
+        long due = mStartNanos + (long) (mFrames * 1e9 / mFrameRate);
+        long wait = due - now;
+        if (wait <= 0)
+            return;
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("simulator interrupted");
+        }
+    }
+
+    /*
+     * Move the strap on by one message period, beating as it goes
+     */
+    private void advance() {
+        mSensorMs += FRAME_PERIOD_MS;
+        while (mNextBeatMs <= mSensorMs) {
+            System.arraycopy(mBeatTimes, 0, mBeatTimes, 1, mBeatTimes.length - 1);
+            mBeatTimes[0] = (int) (mNextBeatMs & 0xFFFF);
+            mBeatNumber = (mBeatNumber + 1) & 0xFF;
+            mNextBeatMs += nextRr(mNextBeatMs);
+            mStrides = (mStrides + (mSpeed > 0 ? 1 : 0)) & 0xFF;
+        }
+
+        // speed follows the heart rate, a walk at 90 bpm up to a run at 160
+        double bpm = currentBpm(mSensorMs);
+        double metresPerSecond = Math.max(0, (bpm - 90) / 20);
+        mSpeed = (int) Math.min(0xFFFF, metresPerSecond * 256);
+        mDistance += metresPerSecond * FRAME_PERIOD_MS / 1000;
+        mBattery = Math.max(0, mBattery - 0.0005);
+    }
+
+    private double currentBpm(long t) {
+        // a slow drift over five minutes around the baseline
+        return mHeartRate + mHeartRateSwing * Math.sin(2 * Math.PI * t / 300000.0);
+    }
+
+    /*
+     * Length of the beat starting at t, with some breathing (a four second cycle) and some
+     * randomness on top of the rate
+     */
+    private int nextRr(long t) {
+        double rr = 60000 / currentBpm(t);
+        rr += 25 * Math.sin(2 * Math.PI * t / 4000.0);
+        rr += mRandom.nextGaussian() * mRrJitterMs;
+        return (int) Math.max(250, Math.min(2000, rr));
+    }
+
+    private void buildFrame(byte[] b, int o) {
+        b[o] = HxmFrameReader.STX;
+        b[o + 1] = HxmFrameReader.MSGID;
+        b[o + 2] = HxmFrameReader.DLC;
+        putShort(b, o + HxmFrame.OFFSET_FIRMWARE_ID, 9500);
+        b[o + HxmFrame.OFFSET_FIRMWARE_VERSION] = 'S';
+        b[o + HxmFrame.OFFSET_FIRMWARE_VERSION + 1] = 'M';
+        putShort(b, o + HxmFrame.OFFSET_HARDWARE_ID, 7800);
+        b[o + HxmFrame.OFFSET_HARDWARE_VERSION] = 'S';
+        b[o + HxmFrame.OFFSET_HARDWARE_VERSION + 1] = 'M';
+        b[o + HxmFrame.OFFSET_BATTERY] = (byte) Math.round(mBattery);
+        b[o + HxmFrame.OFFSET_HEART_RATE] = (byte) Math.round(currentBpm(mSensorMs));
+        b[o + HxmFrame.OFFSET_HEART_BEAT_NUMBER] = (byte) mBeatNumber;
+        for (int i = 0; i < HxmFrame.HB_TIME_COUNT; i++)
+            putShort(b, o + HxmFrame.OFFSET_HB_TIME_1 + 2 * i, mBeatTimes[i]);
+        for (int i = HxmFrame.OFFSET_RESERVED_1; i < HxmFrame.OFFSET_DISTANCE; i++)
+            b[o + i] = 0;
+        // distance is in 1/16 m and wraps at 256 m
+        putShort(b, o + HxmFrame.OFFSET_DISTANCE, (int) (mDistance * 16) & 0xFFF);
+        putShort(b, o + HxmFrame.OFFSET_SPEED, mSpeed);
+        b[o + HxmFrame.OFFSET_STRIDES] = (byte) mStrides;
+        b[o + HxmFrame.OFFSET_RESERVED_4] = 0;
+        putShort(b, o + HxmFrame.OFFSET_RESERVED_5, 0);
+        b[o + HxmFrame.OFFSET_CRC] = (byte) HxmCrc.ofFrame(b, o);
+        b[o + HxmFrame.OFFSET_ETX] = HxmFrameReader.ETX;
+    }
+
+    private static void putShort(byte[] b, int i, int v) {
+        b[i] = (byte) v;
+        b[i + 1] = (byte) (v >> 8);
+    }
+}
@@ -0,0 +1,110 @@
+package org.mcxa.zephyrlogger.sim;
+
+import org.mcxa.zephyrlogger.hxm.HxmFrameReader;
+import org.mcxa.zephyrlogger.session.MappedSessionReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/*
+ * ReplayInputStream
+ *
+ * Plays a recorded session back as the byte stream the strap sent, so it can go through the
+ * same HxmFrameReader and everything after it as a live connection.  Any session file will
+ * do, CSV or binary (see MappedSessionReader).
+ *
+ * The messages keep the spacing they were recorded with, sped up by the given factor: at 1
+ * a session plays back in real time, at 100 an hour takes 36 seconds, and at 0 there is no
+ * waiting at all.
+ */
+public class ReplayInputStream extends InputStream {
+    private static final int FRAME_LENGTH = HxmFrameReader.FRAME_LENGTH;
+
+    private final MappedSessionReader mReader;
+    private final double mSpeed;
+
+    private final byte[] mOut = new byte[FRAME_LENGTH];
+    private int mOutPos = FRAME_LENGTH;
+
+    private long mFirstTimeMs = -1;
+    private long mStartNanos;
+    private long mFrames;
+
+    public ReplayInputStream(File session, double speed) throws IOException {
+        this(new MappedSessionReader(session), speed);
+    }
+
+    public ReplayInputStream(MappedSessionReader reader, double speed) {
+        mReader = reader;
+        mSpeed = speed;
+    }
+
+    public long getFrames() {
+        return mFrames;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (mOutPos == FRAME_LENGTH && !next())
+            return -1;
+        return mOut[mOutPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (mOutPos == FRAME_LENGTH && !next())
+            return -1;
+        int n = Math.min(len, FRAME_LENGTH - mOutPos);
+        System.arraycopy(mOut, mOutPos, b, off, n);
+        mOutPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return FRAME_LENGTH - mOutPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mReader.close();
+    }
+
+    private boolean next() throws IOException {
+        if (!mReader.next())
+            return false;
+        pace(mReader.timeMs());
+        mReader.frame().copyTo(mOut, 0);
+        mOutPos = 0;
+        mFrames++;
+        return true;
+    }
+
+    /*
+     * Hold back until the frame is due at the replay speed
+     */
+    private void pace(long timeMs) throws IOException {
+        if (mSpeed <= 0)
+            return;
+        long now = System.nanoTime();
+        if (mFirstTimeMs < 0) {
+            mFirstTimeMs = timeMs;
+            mStartNanos = now;
+            return;
+        }
+        long due = mStartNanos + (long) ((timeMs - mFirstTimeMs) * 1e6 / mSpeed);
+        long wait = due - now;
+        if (wait <= 0)
+            return;
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("replay interrupted");
+        }
+    }
+}
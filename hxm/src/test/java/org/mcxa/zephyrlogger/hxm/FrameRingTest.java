@@ -0,0 +1,187 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameRingTest {
+    private static final int FRAME_LENGTH = 8;
+
+    /*
+     * Keeps a copy of every frame drained, the ring's slots are reused after drain()
+     */
+    private static class Collector implements FrameRing.Consumer {
+        final List<byte[]> mFrames = new ArrayList<>();
+        final List<Long> mTimestamps = new ArrayList<>();
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, long timestamp) {
+            byte[] frame = new byte[FRAME_LENGTH];
+            System.arraycopy(buffer, offset, frame, 0, FRAME_LENGTH);
+            mFrames.add(frame);
+            mTimestamps.add(timestamp);
+        }
+    }
+
+    /*
+     * A frame that says which one it is, every byte of it
+     */
+    private static byte[] frame(long n) {
+        byte[] frame = new byte[FRAME_LENGTH];
+        for (int i = 0; i < FRAME_LENGTH; i++)
+            frame[i] = (byte) (n >>> (8 * i));
+        return frame;
+    }
+
+    private static long number(byte[] frame) {
+        long n = 0;
+        for (int i = 0; i < FRAME_LENGTH; i++)
+            n |= (frame[i] & 0xFFL) << (8 * i);
+        return n;
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(2, new FrameRing(1, FRAME_LENGTH).capacity());
+        assertEquals(8, new FrameRing(5, FRAME_LENGTH).capacity());
+        assertEquals(256, new FrameRing(256, FRAME_LENGTH).capacity());
+    }
+
+    @Test
+    public void drainHandsOverEverythingPublishedInOneBatch() {
+        FrameRing ring = new FrameRing(16, FRAME_LENGTH);
+        for (int i = 0; i < 5; i++)
+            assertTrue(ring.offer(frame(i), 0, 1000 + i));
+        assertEquals(5, ring.size());
+
+        Collector collector = new Collector();
+        assertEquals(5, ring.drain(collector));
+        assertEquals(0, ring.size());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(frame(i), collector.mFrames.get(i));
+            assertEquals(1000L + i, (long) collector.mTimestamps.get(i));
+        }
+        assertEquals(0, ring.drain(collector));
+        assertEquals(5, collector.mFrames.size());
+    }
+
+    @Test
+    public void offerCopiesFromAnOffset() {
+        FrameRing ring = new FrameRing(4, FRAME_LENGTH);
+        byte[] padded = new byte[3 + FRAME_LENGTH];
+        System.arraycopy(frame(42), 0, padded, 3, FRAME_LENGTH);
+        ring.offer(padded, 3, 7);
+
+        Collector collector = new Collector();
+        ring.drain(collector);
+        assertArrayEquals(frame(42), collector.mFrames.get(0));
+    }
+
+    @Test
+    public void claimAndPublishFillTheSlotInPlace() {
+        FrameRing ring = new FrameRing(4, FRAME_LENGTH);
+        int slot = ring.claim();
+        System.arraycopy(frame(9), 0, ring.buffer(), slot, FRAME_LENGTH);
+        // nothing is visible before it is published
+        assertEquals(0, ring.size());
+        ring.publish(99);
+        assertEquals(1, ring.size());
+
+        Collector collector = new Collector();
+        ring.drain(collector);
+        assertArrayEquals(frame(9), collector.mFrames.get(0));
+        assertEquals(99L, (long) collector.mTimestamps.get(0));
+    }
+
+    @Test
+    public void aFullRingDropsTheNewestFrameAndCountsIt() {
+        FrameRing ring = new FrameRing(4, FRAME_LENGTH);
+        for (int i = 0; i < 4; i++)
+            assertTrue(ring.offer(frame(i), 0, i));
+        assertEquals(-1, ring.claim());
+        assertFalse(ring.offer(frame(4), 0, 4));
+        assertFalse(ring.offer(frame(5), 0, 5));
+        assertEquals(2, ring.getOverruns());
+        assertEquals(4, ring.size());
+
+        Collector collector = new Collector();
+        assertEquals(4, ring.drain(collector));
+        for (int i = 0; i < 4; i++)
+            assertEquals(i, number(collector.mFrames.get(i)));
+
+        // drained slots are free again
+        assertTrue(ring.offer(frame(6), 0, 6));
+        assertEquals(2, ring.getOverruns());
+    }
+
+    @Test
+    public void framesComeOutInOrderAcrossManyWraps() {
+        FrameRing ring = new FrameRing(8, FRAME_LENGTH);
+        Collector collector = new Collector();
+        long next = 0;
+        // batches of every size up to the capacity, so the head and tail land on every slot
+        for (int round = 0; round < 100; round++) {
+            int batch = 1 + round % ring.capacity();
+            for (int i = 0; i < batch; i++, next++)
+                assertTrue(ring.offer(frame(next), 0, next));
+            assertEquals(batch, ring.drain(collector));
+        }
+
+        assertEquals(next, collector.mFrames.size());
+        for (int i = 0; i < next; i++) {
+            assertEquals(i, number(collector.mFrames.get(i)));
+            assertEquals((long) i, (long) collector.mTimestamps.get(i));
+        }
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void oneProducerAndOneConsumerLoseNothingUncounted() throws InterruptedException {
+        final int frames = 1000000;
+        final FrameRing ring = new FrameRing(64, FRAME_LENGTH);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] frame = new byte[FRAME_LENGTH];
+                for (int n = 0; n < frames; n++) {
+                    for (int i = 0; i < FRAME_LENGTH; i++)
+                        frame[i] = (byte) (n >>> (8 * (i % 4)));
+                    ring.offer(frame, 0, n);
+                }
+            }
+        });
+
+        final long[] received = new long[1];
+        final long[] last = {-1};
+        final long[] bad = new long[1];
+        FrameRing.Consumer consumer = new FrameRing.Consumer() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, long timestamp) {
+                // every byte has to be from the frame the timestamp says, and frames only go forward
+                for (int i = 0; i < FRAME_LENGTH; i++) {
+                    if (buffer[offset + i] != (byte) (timestamp >>> (8 * (i % 4))))
+                        bad[0]++;
+                }
+                if (timestamp <= last[0])
+                    bad[0]++;
+                last[0] = timestamp;
+                received[0]++;
+            }
+        };
+
+        producer.start();
+        while (producer.isAlive())
+            ring.drain(consumer);
+        producer.join();
+        ring.drain(consumer);
+
+        assertEquals(0, bad[0]);
+        assertEquals(frames, received[0] + ring.getOverruns());
+    }
+}
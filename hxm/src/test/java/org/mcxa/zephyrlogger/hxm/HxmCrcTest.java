@@ -0,0 +1,73 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import org.junit.Test;
+import org.mcxa.zephyrlogger.sim.HxmSimulator;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class HxmCrcTest {
+    /*
+     * The CRC a bit at a time, straight from the polynomial
+     */
+    private static int bitwise(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ HxmCrc.POLYNOMIAL : crc >>> 1;
+        }
+        return crc;
+    }
+
+    private static byte[] simulatedFrame(long seed) throws IOException {
+        byte[] frame = new byte[HxmFrameReader.FRAME_LENGTH];
+        new HxmFrameReader(new HxmSimulator(seed)).readFully(frame, 0);
+        return frame;
+    }
+
+    @Test
+    public void tableMatchesThePolynomial() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 37 + 11);
+        for (int length = 0; length <= data.length; length += 17)
+            assertEquals(bitwise(data, 0, length), HxmCrc.compute(data, 0, length));
+    }
+
+    @Test
+    public void updateCarriesOnAcrossPieces() {
+        byte[] data = new byte[HxmFrameReader.DLC];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i * 13);
+        int whole = HxmCrc.compute(data, 0, data.length);
+        for (int split = 0; split <= data.length; split++) {
+            int crc = HxmCrc.update(0, data, 0, split);
+            assertEquals(whole, HxmCrc.update(crc, data, split, data.length - split));
+        }
+    }
+
+    @Test
+    public void simulatedFramesCarryTheirCrc() throws IOException {
+        for (long seed = 0; seed < 20; seed++) {
+            byte[] frame = simulatedFrame(seed);
+            assertEquals(frame[HxmFrame.OFFSET_CRC] & 0xFF, HxmCrc.ofFrame(frame, 0));
+        }
+    }
+
+    @Test
+    public void everySingleByteErrorInThePayloadIsCaught() throws IOException {
+        byte[] frame = simulatedFrame(1);
+        int good = HxmCrc.ofFrame(frame, 0);
+        for (int i = HxmFrame.OFFSET_FIRMWARE_ID; i < HxmFrame.OFFSET_CRC; i++) {
+            byte original = frame[i];
+            for (int flip = 1; flip < 256; flip++) {
+                frame[i] = (byte) (original ^ flip);
+                assertNotEquals(good, HxmCrc.ofFrame(frame, 0));
+            }
+            frame[i] = original;
+        }
+    }
+}
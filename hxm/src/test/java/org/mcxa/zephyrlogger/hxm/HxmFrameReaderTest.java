@@ -0,0 +1,145 @@
+package org.mcxa.zephyrlogger.hxm;
+
+import org.junit.Test;
+import org.mcxa.zephyrlogger.sim.HxmSimulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HxmFrameReaderTest {
+    private static final int FRAMES = 5000;
+    private static final int LENGTH = HxmFrameReader.FRAME_LENGTH;
+
+    /*
+     * Read the whole stream, checking that everything handed out is a good message
+     * @return the number of messages handed out
+     */
+    private static long readAll(HxmFrameReader reader) throws IOException {
+        byte[] frame = new byte[LENGTH];
+        long frames = 0;
+        while (reader.readFrame(frame, 0) == LENGTH) {
+            assertEquals(HxmFrameReader.STX, frame[0]);
+            assertEquals(HxmFrameReader.MSGID, frame[1]);
+            assertEquals(HxmFrameReader.DLC, frame[2]);
+            assertEquals(HxmFrameReader.ETX, frame[LENGTH - 1]);
+            assertEquals(frame[HxmFrame.OFFSET_CRC] & 0xFF, HxmCrc.ofFrame(frame, 0));
+            frames++;
+        }
+        return frames;
+    }
+
+    @Test
+    public void cleanStreamIsReadWhole() throws IOException {
+        HxmSimulator simulator = new HxmSimulator(1).setMaxFrames(FRAMES);
+        HxmFrameReader reader = new HxmFrameReader(simulator);
+
+        assertEquals(FRAMES, readAll(reader));
+        assertEquals(FRAMES, reader.getAcceptedFrames());
+        assertEquals(0, reader.getCrcFailures());
+        assertEquals(0, reader.getTruncatedFrames());
+        assertEquals(0, reader.getResyncs());
+        assertEquals(0, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void corruptedMessagesFailTheirCrc() throws IOException {
+        HxmSimulator simulator = new HxmSimulator(2).setMaxFrames(FRAMES).setNoise(0, 0, 0.1);
+        HxmFrameReader reader = new HxmFrameReader(simulator);
+
+        long frames = readAll(reader);
+        assertTrue(simulator.getCorruptedFrames() > 0);
+        assertEquals(simulator.getCorruptedFrames(), reader.getCrcFailures());
+        assertEquals(FRAMES - simulator.getCorruptedFrames(), frames);
+        assertEquals(frames, reader.getAcceptedFrames());
+        assertEquals(0, reader.getTruncatedFrames());
+    }
+
+    @Test
+    public void truncatedMessagesAreCountedAndTheNextOneIsFound() throws IOException {
+        HxmSimulator simulator = new HxmSimulator(3).setMaxFrames(FRAMES).setNoise(0, 0.1, 0);
+        HxmFrameReader reader = new HxmFrameReader(simulator);
+
+        long frames = readAll(reader);
+        long truncated = simulator.getTruncatedFrames();
+        assertTrue(truncated > 0);
+        assertEquals(FRAMES - truncated, frames);
+        /*
+         * A message cut short within its first two bytes never shows a whole header, the
+         * reader can't tell it from noise; that is about 2 in 59 of them.  And once in a
+         * while the byte where its ETX should be is an ETX in the message after it, then
+         * it fails its CRC instead.
+         */
+        long dropped = reader.getTruncatedFrames() + reader.getCrcFailures();
+        assertTrue(dropped <= truncated);
+        assertTrue(dropped >= truncated * 9 / 10);
+    }
+
+    @Test
+    public void garbageBetweenMessagesIsSkipped() throws IOException {
+        HxmSimulator simulator = new HxmSimulator(4).setMaxFrames(FRAMES).setNoise(0.2, 0, 0);
+        HxmFrameReader reader = new HxmFrameReader(simulator);
+
+        assertEquals(FRAMES, readAll(reader));
+        assertTrue(simulator.getGarbageBytes() > 0);
+        assertEquals(simulator.getGarbageBytes(), reader.getSkippedBytes());
+        // one resync per patch of garbage at most, a patch starting with STX is stepped over without one
+        assertTrue(reader.getResyncs() > 0);
+        assertTrue(reader.getResyncs() <= simulator.getGarbageBytes());
+        assertEquals(0, reader.getCrcFailures());
+    }
+
+    @Test
+    public void everyFaultAtOnceLosesOnlyTheDamagedMessages() throws IOException {
+        HxmSimulator simulator = new HxmSimulator(5).setMaxFrames(FRAMES).setNoise(0.1, 0.05, 0.05);
+        HxmFrameReader reader = new HxmFrameReader(simulator);
+
+        long frames = readAll(reader);
+        long corrupted = simulator.getCorruptedFrames();
+        long truncated = simulator.getTruncatedFrames();
+        // a message both corrupted and cut short is counted by the simulator twice, but lost once
+        assertTrue(frames >= FRAMES - corrupted - truncated);
+        assertTrue(frames <= FRAMES - Math.max(corrupted, truncated));
+        assertTrue(reader.getCrcFailures() > 0);
+        assertTrue(reader.getCrcFailures() <= corrupted);
+        assertTrue(reader.getTruncatedFrames() <= simulator.getTruncatedFrames());
+    }
+
+    @Test
+    public void aFakeHeaderInGarbageDoesNotHideTheMessageAfterIt() throws IOException {
+        byte[] frame = new byte[LENGTH];
+        new HxmFrameReader(new HxmSimulator(6)).readFully(frame, 0);
+
+        // STX, MSGID and DLC with no message behind them, then the real one
+        byte[] stream = new byte[5 + LENGTH];
+        stream[0] = HxmFrameReader.STX;
+        stream[1] = HxmFrameReader.MSGID;
+        stream[2] = HxmFrameReader.DLC;
+        stream[3] = 0x7F;
+        stream[4] = HxmFrameReader.STX;
+        System.arraycopy(frame, 0, stream, 5, LENGTH);
+        HxmFrameReader reader = new HxmFrameReader(new ByteArrayInputStream(stream));
+
+        byte[] read = new byte[LENGTH];
+        assertEquals(LENGTH, reader.readFrame(read, 0));
+        assertArrayEquals(frame, read);
+        assertEquals(-1, reader.readFrame(read, 0));
+        assertEquals(1, reader.getAcceptedFrames());
+        assertEquals(5, reader.getSkippedBytes());
+        assertEquals(1, reader.getResyncs());
+    }
+
+    @Test
+    public void messagesWrappingAroundTheRingAreReadWhole() throws IOException {
+        // a ring of two and a bit messages, so most of them straddle its end
+        HxmSimulator simulator = new HxmSimulator(7).setMaxFrames(FRAMES).setNoise(0.3, 0, 0.05);
+        HxmFrameReader reader = new HxmFrameReader(simulator, 2 * LENGTH);
+
+        long frames = readAll(reader);
+        assertEquals(FRAMES - simulator.getCorruptedFrames(), frames);
+        assertEquals(simulator.getCorruptedFrames(), reader.getCrcFailures());
+    }
+}